@@ -153,16 +153,43 @@ public class RadiusAttribute {
 	 * @return attribute
 	 */
 	public byte[] writeAttribute() {
+		byte[] attr = new byte[getEncodedLength()];
+		writeAttribute(attr, 0);
+		return attr;
+	}
+
+	/**
+	 * Returns the number of bytes writeAttribute() produces for this attribute.
+	 *
+	 * @return encoded length, including type and length
+	 */
+	public int getEncodedLength() {
+		if (attributeData == null)
+			throw new NullPointerException("attribute data not set");
+
+		return 2 + attributeData.length;
+	}
+
+	/**
+	 * Encodes this attribute directly into the passed buffer, which must
+	 * have room for getEncodedLength() bytes at the given offset.
+	 *
+	 * @param buffer
+	 *            buffer to write to
+	 * @param offset
+	 *            position of the first byte of the attribute
+	 * @return position right after the attribute
+	 */
+	public int writeAttribute(byte[] buffer, int offset) {
 		if (getAttributeType() == -1)
 			throw new IllegalArgumentException("attribute type not set");
 		if (attributeData == null)
 			throw new NullPointerException("attribute data not set");
 
-		byte[] attr = new byte[2 + attributeData.length];
-		attr[0] = (byte) getAttributeType();
-		attr[1] = (byte) (2 + attributeData.length);
-		System.arraycopy(attributeData, 0, attr, 2, attributeData.length);
-		return attr;
+		buffer[offset] = (byte) getAttributeType();
+		buffer[offset + 1] = (byte) (2 + attributeData.length);
+		System.arraycopy(attributeData, 0, buffer, offset + 2, attributeData.length);
+		return offset + 2 + attributeData.length;
 	}
 
 	/**
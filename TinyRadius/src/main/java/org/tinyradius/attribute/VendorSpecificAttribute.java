@@ -7,8 +7,6 @@
  */
 package org.tinyradius.attribute;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -235,44 +233,49 @@ public class VendorSpecificAttribute extends RadiusAttribute {
 	}
 
 	/**
-	 * Renders this attribute as a byte array.
+	 * Returns the encoded length of this attribute, including the
+	 * vendor ID and all sub-attributes.
 	 * 
-	 * @see org.tinyradius.attribute.RadiusAttribute#writeAttribute()
+	 * @see org.tinyradius.attribute.RadiusAttribute#getEncodedLength()
 	 */
-	public byte[] writeAttribute() {
-		// write vendor ID
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(255);
-		bos.write(getChildVendorId() >> 24 & 0x0ff);
-		bos.write(getChildVendorId() >> 16 & 0x0ff);
-		bos.write(getChildVendorId() >> 8 & 0x0ff);
-		bos.write(getChildVendorId() & 0x0ff);
-
-		// write sub-attributes
-		try {
-			for (Iterator<RadiusAttribute> i = subAttributes.iterator(); i.hasNext();) {
-				RadiusAttribute a = i.next();
-				bos.write(a.writeAttribute());
-			}
-		}
-		catch (IOException ioe) {
-			// occurs never
-			throw new RuntimeException("error writing data", ioe);
+	public int getEncodedLength() {
+		int len = 4;
+		for (Iterator<RadiusAttribute> i = subAttributes.iterator(); i.hasNext();) {
+			len += i.next().getEncodedLength();
 		}
 
 		// check data length
-		byte[] attrData = bos.toByteArray();
-		int len = attrData.length;
 		if (len > 253) {
-			throw new RuntimeException("Vendor-Specific attribute too long: " + bos.size());
+			throw new RuntimeException("Vendor-Specific attribute too long: " + len);
 		}
 
-		// compose attribute
-		byte[] attr = new byte[len + 2];
-		attr[0] = VENDOR_SPECIFIC; // code
-		attr[1] = (byte) (len + 2); // length
-		System.arraycopy(attrData, 0, attr, 2, len);
+		return len + 2;
+	}
+
+	/**
+	 * Renders this attribute into the passed buffer.
+	 * 
+	 * @see org.tinyradius.attribute.RadiusAttribute#writeAttribute(byte[], int)
+	 */
+	public int writeAttribute(byte[] buffer, int offset) {
+		int len = getEncodedLength();
+
+		buffer[offset] = VENDOR_SPECIFIC; // code
+		buffer[offset + 1] = (byte) len; // length
+
+		// write vendor ID
+		buffer[offset + 2] = (byte) (getChildVendorId() >> 24 & 0x0ff);
+		buffer[offset + 3] = (byte) (getChildVendorId() >> 16 & 0x0ff);
+		buffer[offset + 4] = (byte) (getChildVendorId() >> 8 & 0x0ff);
+		buffer[offset + 5] = (byte) (getChildVendorId() & 0x0ff);
+
+		// write sub-attributes
+		int pos = offset + 6;
+		for (Iterator<RadiusAttribute> i = subAttributes.iterator(); i.hasNext();) {
+			pos = i.next().writeAttribute(buffer, pos);
+		}
 
-		return attr;
+		return pos;
 	}
 
 	/**
@@ -130,9 +130,9 @@ public class AccountingRequest extends RadiusPacket {
 	/**
 	 * Calculates the request authenticator as specified by RFC 2866.
 	 * 
-	 * @see org.tinyradius.packet.RadiusPacket#updateRequestAuthenticator(java.lang.String, int, byte[])
+	 * @see org.tinyradius.packet.RadiusPacket#updateRequestAuthenticator(java.lang.String, int, byte[], int)
 	 */
-	protected byte[] updateRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes) {
+	protected byte[] updateRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes, int offset) {
 		byte[] authenticator = new byte[16];
 		for (int i = 0; i < 16; i++)
 			authenticator[i] = 0;
@@ -144,7 +144,7 @@ public class AccountingRequest extends RadiusPacket {
 		md5.update((byte) (packetLength >> 8));
 		md5.update((byte) (packetLength & 0xff));
 		md5.update(authenticator, 0, authenticator.length);
-		md5.update(attributes, 0, attributes.length);
+		md5.update(attributes, offset, packetLength - RADIUS_HEADER_LENGTH);
 		md5.update(RadiusUtil.getUtf8Bytes(sharedSecret));
 		return md5.digest();
 	}
@@ -152,8 +152,8 @@ public class AccountingRequest extends RadiusPacket {
 	/**
 	 * Checks the received request authenticator as specified by RFC 2866.
 	 */
-	protected void checkRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes) throws RadiusException {
-		byte[] expectedAuthenticator = updateRequestAuthenticator(sharedSecret, packetLength, attributes);
+	protected void checkRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes, int offset) throws RadiusException {
+		byte[] expectedAuthenticator = updateRequestAuthenticator(sharedSecret, packetLength, attributes, offset);
 		byte[] receivedAuth = getAuthenticator();
 		for (int i = 0; i < 16; i++)
 			if (expectedAuthenticator[i] != receivedAuth[i])
@@ -18,10 +18,10 @@ public class CoaRequest extends RadiusPacket {
 	}
 	
 	/**
-	 * @see AccountingRequest#updateRequestAuthenticator(String, int, byte[])
+	 * @see AccountingRequest#updateRequestAuthenticator(String, int, byte[], int)
 	 */
 	protected byte[] updateRequestAuthenticator(String sharedSecret,
-			int packetLength, byte[] attributes) {
+			int packetLength, byte[] attributes, int offset) {
 		byte[] authenticator = new byte[16];
 		for (int i = 0; i < 16; i++)
 			authenticator[i] = 0;
@@ -32,7 +32,7 @@ public class CoaRequest extends RadiusPacket {
 		md5.update((byte) (packetLength >> 8));
 		md5.update((byte) (packetLength & 0xff));
 		md5.update(authenticator, 0, authenticator.length);
-		md5.update(attributes, 0, attributes.length);
+		md5.update(attributes, offset, packetLength - RADIUS_HEADER_LENGTH);
 		md5.update(RadiusUtil.getUtf8Bytes(sharedSecret));
 		return md5.digest();
 	}
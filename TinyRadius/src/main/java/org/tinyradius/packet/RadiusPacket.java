@@ -8,8 +8,7 @@
  */
 package org.tinyradius.packet;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -17,6 +16,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -620,7 +620,19 @@ public class RadiusPacket {
 	 *                communication error
 	 */
 	public void encodeRequestPacket(OutputStream out, String sharedSecret) throws IOException {
-		encodePacket(out, sharedSecret, null);
+		out.write(encodeRequestPacket(sharedSecret));
+		out.flush();
+	}
+
+	/**
+	 * Encodes this Radius packet.
+	 * 
+	 * @param sharedSecret
+	 *            shared secret to be used to encode this packet
+	 * @return the encoded packet
+	 */
+	public byte[] encodeRequestPacket(String sharedSecret) {
+		return encodePacket(sharedSecret, null);
 	}
 
 	/**
@@ -641,7 +653,51 @@ public class RadiusPacket {
 			throw new NullPointerException("request cannot be null");
 		}
 
-		encodePacket(out, sharedSecret, request);
+		out.write(encodeResponsePacket(sharedSecret, request));
+		out.flush();
+	}
+
+	/**
+	 * Encodes this Radius response packet.
+	 * 
+	 * @param sharedSecret
+	 *            shared secret to be used to encode this packet
+	 * @param request
+	 *            Radius request packet
+	 * @return the encoded packet
+	 */
+	public byte[] encodeResponsePacket(String sharedSecret, RadiusPacket request) {
+		if (request == null) {
+			throw new NullPointerException("request cannot be null");
+		}
+
+		return encodePacket(sharedSecret, request);
+	}
+
+	/**
+	 * Encodes this Radius response packet into the passed buffer, so a
+	 * caller that sends many packets can reuse the same buffer.
+	 * 
+	 * @param sharedSecret
+	 *            shared secret to be used to encode this packet
+	 * @param request
+	 *            Radius request packet
+	 * @param buffer
+	 *            buffer to encode the packet into, starting at offset 0,
+	 *            MAX_PACKET_LENGTH bytes is always enough
+	 * @return length of the encoded packet
+	 */
+	public int encodeResponsePacket(String sharedSecret, RadiusPacket request, byte[] buffer) {
+		if (request == null) {
+			throw new NullPointerException("request cannot be null");
+		}
+
+		int packetLength = prepareEncoding(sharedSecret, request);
+		if (packetLength > buffer.length)
+			throw new RuntimeException("buffer too small for packet");
+
+		writePacket(buffer, packetLength, sharedSecret, request);
+		return packetLength;
 	}
 
 	/**
@@ -737,6 +793,56 @@ public class RadiusPacket {
 		return decodePacket(dictionary, in, sharedSecret, request);
 	}
 
+	/**
+	 * Decodes a Radius response packet directly from the passed buffer,
+	 * e.g. the data of a received datagram.
+	 * Checks the packet authenticator.
+	 *
+	 * @param data
+	 *            buffer holding the packet
+	 * @param offset
+	 *            position of the packet in the buffer
+	 * @param length
+	 *            number of bytes available in the buffer
+	 * @param sharedSecret
+	 *            shared secret to be used to decode this packet
+	 * @param request
+	 *            Radius request packet
+	 * @return new RadiusPacket object
+	 * @exception RadiusException
+	 *                malformed packet
+	 */
+	public static RadiusPacket decodeResponsePacket(byte[] data, int offset, int length, String sharedSecret, RadiusPacket request) throws RadiusException {
+		if (request == null)
+			throw new NullPointerException("request may not be null");
+		return decodePacket(request.getDictionary(), data, offset, length, sharedSecret, request, UNDEFINED);
+	}
+
+	/**
+	 * Reads the header and attributes of a Radius request packet from the
+	 * passed buffer, without the shared secret. This allows the shared
+	 * secret to be looked up from the packet contents, after which
+	 * decodeEncryptedFields() must be called with the same buffer.
+	 *
+	 * @param dictionary
+	 *            dictionary to use for attributes
+	 * @param data
+	 *            buffer holding the packet
+	 * @param offset
+	 *            position of the packet in the buffer
+	 * @param length
+	 *            number of bytes available in the buffer
+	 * @param forceType
+	 *            type of RadiusPacket object to create, or UNDEFINED
+	 *            to use the packet type
+	 * @return new RadiusPacket object
+	 * @exception RadiusException
+	 *                malformed packet
+	 */
+	public static RadiusPacket readRequestPacket(Dictionary dictionary, byte[] data, int offset, int length, int forceType) throws RadiusException {
+		return readPacket(dictionary, data, offset, length, null, forceType);
+	}
+
 	/**
 	 * Retrieves the next packet identifier to use and increments the static
 	 * storage.
@@ -853,22 +959,33 @@ public class RadiusPacket {
 	}
 
 	/**
-	 * Encodes this Radius packet and sends it to the specified output
-	 * stream.
+	 * Encodes this Radius packet. The attributes are written straight into
+	 * the returned array, which is sized to the packet.
 	 * 
-	 * @param out
-	 *            output stream to use
 	 * @param sharedSecret
 	 *            shared secret to be used to encode this packet
 	 * @param request
 	 *            Radius request packet if this packet to be encoded
 	 *            is a response packet, null if this packet is a request packet
-	 * @exception IOException
-	 *                communication error
+	 * @return the encoded packet
 	 * @exception RuntimeException
 	 *                if required packet data has not been set
 	 */
-	protected void encodePacket(OutputStream out, String sharedSecret, RadiusPacket request) throws IOException {
+	protected byte[] encodePacket(String sharedSecret, RadiusPacket request) {
+		int packetLength = prepareEncoding(sharedSecret, request);
+
+		byte[] data = new byte[packetLength];
+		writePacket(data, packetLength, sharedSecret, request);
+		return data;
+	}
+
+	/**
+	 * Checks the packet can be encoded, creates the request authenticator
+	 * and encodes the request attributes if this is a request packet.
+	 * 
+	 * @return length of the encoded packet
+	 */
+	private int prepareEncoding(String sharedSecret, RadiusPacket request) {
 		// check shared secret
 		if (sharedSecret == null || sharedSecret.length() == 0)
 			throw new RuntimeException("no shared secret has been set");
@@ -885,28 +1002,43 @@ public class RadiusPacket {
 			encodeRequestAttributes(sharedSecret);
 		}
 
-		byte[] attributes = getAttributeBytes();
-		int packetLength = RADIUS_HEADER_LENGTH + attributes.length;
+		int packetLength = RADIUS_HEADER_LENGTH;
+		for (Iterator<RadiusAttribute> i = attributes.iterator(); i.hasNext();) {
+			packetLength += i.next().getEncodedLength();
+		}
+
 		if (packetLength > MAX_PACKET_LENGTH)
 			throw new RuntimeException("packet too long");
 
+		return packetLength;
+	}
+
+	/**
+	 * Writes the header, the attributes and the authenticator into
+	 * the first packetLength bytes of data.
+	 */
+	private void writePacket(byte[] data, int packetLength, String sharedSecret, RadiusPacket request) {
+		data[0] = (byte) getPacketType();
+		data[1] = (byte) getPacketIdentifier();
+		data[2] = (byte) (packetLength >> 8);
+		data[3] = (byte) (packetLength & 0x0ff);
+
+		int pos = RADIUS_HEADER_LENGTH;
+		for (Iterator<RadiusAttribute> i = attributes.iterator(); i.hasNext();) {
+			pos = i.next().writeAttribute(data, pos);
+		}
+
 		// response packet authenticator
 		if (request != null) {
 			// after encoding attributes, create authenticator
-			authenticator = createResponseAuthenticator(sharedSecret, packetLength, attributes, request.getAuthenticator());
+			authenticator = createResponseAuthenticator(sharedSecret, packetLength, data, RADIUS_HEADER_LENGTH, request.getAuthenticator());
 		}
 		else {
 			// update authenticator after encoding attributes
-			authenticator = updateRequestAuthenticator(sharedSecret, packetLength, attributes);
+			authenticator = updateRequestAuthenticator(sharedSecret, packetLength, data, RADIUS_HEADER_LENGTH);
 		}
 
-		DataOutputStream dos = new DataOutputStream(out);
-		dos.writeByte(getPacketType());
-		dos.writeByte(getPacketIdentifier());
-		dos.writeShort(packetLength);
-		dos.write(getAuthenticator());
-		dos.write(attributes);
-		dos.flush();
+		System.arraycopy(authenticator, 0, data, 4, 16);
 	}
 
 	/**
@@ -950,10 +1082,13 @@ public class RadiusPacket {
 	 * @param packetLength
 	 *            length of the final Radius packet
 	 * @param attributes
-	 *            attribute data
+	 *            buffer holding the attribute data
+	 * @param offset
+	 *            position of the attribute data in the buffer, the
+	 *            attribute data is packetLength - RADIUS_HEADER_LENGTH bytes
 	 * @return new request authenticator
 	 */
-	protected byte[] updateRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes) {
+	protected byte[] updateRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes, int offset) {
 		return authenticator;
 	}
 
@@ -965,12 +1100,14 @@ public class RadiusPacket {
 	 * @param packetLength
 	 *            length of response packet
 	 * @param attributes
-	 *            encoded attributes of response packet
+	 *            buffer holding the encoded attributes of response packet
+	 * @param offset
+	 *            position of the attribute data in the buffer
 	 * @param requestAuthenticator
 	 *            request packet authenticator
 	 * @return new 16 byte response authenticator
 	 */
-	protected byte[] createResponseAuthenticator(String sharedSecret, int packetLength, byte[] attributes, byte[] requestAuthenticator) {
+	protected byte[] createResponseAuthenticator(String sharedSecret, int packetLength, byte[] attributes, int offset, byte[] requestAuthenticator) {
 		MessageDigest md5 = getMd5Digest();
 		md5.reset();
 		md5.update((byte) getPacketType());
@@ -978,7 +1115,7 @@ public class RadiusPacket {
 		md5.update((byte) (packetLength >> 8));
 		md5.update((byte) (packetLength & 0x0ff));
 		md5.update(requestAuthenticator, 0, requestAuthenticator.length);
-		md5.update(attributes, 0, attributes.length);
+		md5.update(attributes, offset, packetLength - RADIUS_HEADER_LENGTH);
 		md5.update(RadiusUtil.getUtf8Bytes(sharedSecret));
 		return md5.digest();
 	}
@@ -1010,18 +1147,77 @@ public class RadiusPacket {
 	public static RadiusPacket decodePacket(Dictionary dictionary, InputStream in, 
 		String sharedSecret, RadiusPacket request, int forceType) throws IOException,
 	        RadiusException {
+		// read the header to find the packet length, then the rest of the packet behind it
+		DataInputStream dis = new DataInputStream(in);
+		byte[] header = new byte[4];
+		dis.readFully(header);
+
+		int length = (header[2] & 0x0ff) << 8 | (header[3] & 0x0ff);
+		if (length < RADIUS_HEADER_LENGTH)
+			throw new RadiusException("bad packet: packet too short (" + length + " bytes)");
+		if (length > MAX_PACKET_LENGTH)
+			throw new RadiusException("bad packet: packet too long (" + length + " bytes)");
+
+		byte[] data = new byte[length];
+		System.arraycopy(header, 0, data, 0, 4);
+		dis.readFully(data, 4, length - 4);
+
+		return decodePacket(dictionary, data, 0, length, sharedSecret, request, forceType);
+	}
+
+	/**
+	 * Decodes a Radius packet directly from the passed buffer.
+	 * 
+	 * @param dictionary
+	 *            dictionary to use for attributes
+	 * @param data
+	 *            buffer holding the packet
+	 * @param offset
+	 *            position of the packet in the buffer
+	 * @param length
+	 *            number of bytes available in the buffer
+	 * @param sharedSecret
+	 *            shared secret to be used to decode this packet
+	 * @param request
+	 *            Radius request packet if this is a response packet to be
+	 *            decoded, null if this is a request packet to be decoded
+	 * @param forceType
+	 *            type of RadiusPacket object to create, or UNDEFINED
+	 *            to use the packet type
+	 * @return new RadiusPacket object
+	 * @exception RadiusException
+	 *                if the Radius packet is malformed
+	 */
+	public static RadiusPacket decodePacket(Dictionary dictionary, byte[] data, int offset, int length, String sharedSecret, RadiusPacket request, int forceType)
+	        throws RadiusException {
 		// check shared secret
 		if (sharedSecret == null || sharedSecret.length() == 0)
 			throw new RuntimeException("no shared secret has been set");
 
+		RadiusPacket rp = readPacket(dictionary, data, offset, length, request, forceType);
+		rp.decodeEncryptedFields(sharedSecret, data, offset, request);
+
+		return rp;
+	}
+
+	/**
+	 * Reads the header and attributes of a Radius packet from the passed buffer.
+	 * The attribute values are copied, so the buffer may be reused afterwards,
+	 * but the encrypted fields are not decoded and the authenticator is not checked.
+	 */
+	private static RadiusPacket readPacket(Dictionary dictionary, byte[] data, int offset, int available, RadiusPacket request, int forceType)
+	        throws RadiusException {
 		// check request authenticator
 		if (request != null && request.getAuthenticator() == null)
 			throw new RuntimeException("request authenticator not set");
 
+		if (available < RADIUS_HEADER_LENGTH)
+			throw new RadiusException("bad packet: packet too short (" + available + " bytes)");
+
 		// read and check header
-		int type = in.read() & 0x0ff;
-		int identifier = in.read() & 0x0ff;
-		int length = (in.read() & 0x0ff) << 8 | (in.read() & 0x0ff);
+		int type = data[offset] & 0x0ff;
+		int identifier = data[offset + 1] & 0x0ff;
+		int length = (data[offset + 2] & 0x0ff) << 8 | (data[offset + 3] & 0x0ff);
 
 		if (request != null && request.getPacketIdentifier() != identifier)
 			throw new RadiusException("bad packet: invalid packet identifier (request: " + request.getPacketIdentifier() + ", response: "
@@ -1030,25 +1226,22 @@ public class RadiusPacket {
 			throw new RadiusException("bad packet: packet too short (" + length + " bytes)");
 		if (length > MAX_PACKET_LENGTH)
 			throw new RadiusException("bad packet: packet too long (" + length + " bytes)");
-
-		// read rest of packet
-		byte[] authenticator = new byte[16];
-		byte[] attributeData = new byte[length - RADIUS_HEADER_LENGTH];
-		in.read(authenticator);
-		in.read(attributeData);
+		if (length > available)
+			throw new RadiusException("bad packet: packet truncated (" + available + " of " + length + " bytes)");
 
 		// check and count attributes
-		int pos = 0;
-		while (pos < attributeData.length) {
-			if (pos + 1 >= attributeData.length)
+		int end = offset + length;
+		int pos = offset + RADIUS_HEADER_LENGTH;
+		while (pos < end) {
+			if (pos + 1 >= end)
 				throw new RadiusException("bad packet: attribute length mismatch");
-			int attributeLength = attributeData[pos + 1] & 0x0ff;
+			int attributeLength = data[pos + 1] & 0x0ff;
 			if (attributeLength < 2)
 				throw new RadiusException("bad packet: invalid attribute length");
 			pos += attributeLength;
 		}
 
-		if (pos != attributeData.length) {
+		if (pos != end) {
 			throw new RadiusException("bad packet: attribute length mismatch");
 		}
 
@@ -1057,31 +1250,51 @@ public class RadiusPacket {
 		rp.setDictionary(dictionary);
 		rp.setPacketType(type);
 		rp.setPacketIdentifier(identifier);
-		rp.authenticator = authenticator;
+		rp.authenticator = Arrays.copyOfRange(data, offset + 4, offset + RADIUS_HEADER_LENGTH);
 
 		// load attributes
-		pos = 0;
-		while (pos < attributeData.length) {
-			int attributeType = attributeData[pos] & 0x0ff;
-			int attributeLength = attributeData[pos + 1] & 0x0ff;
+		pos = offset + RADIUS_HEADER_LENGTH;
+		while (pos < end) {
+			int attributeType = data[pos] & 0x0ff;
+			int attributeLength = data[pos + 1] & 0x0ff;
 			RadiusAttribute a = RadiusAttribute.createRadiusAttribute(dictionary, -1, attributeType);
-			a.readAttribute(attributeData, pos, attributeLength);
+			a.readAttribute(data, pos, attributeLength);
 			rp.addAttribute(a);
 			pos += attributeLength;
 		}
 
+		return rp;
+	}
+
+	/**
+	 * Decodes the encrypted fields of a packet read by readRequestPacket()
+	 * and checks its authenticator.
+	 * 
+	 * @param sharedSecret
+	 *            shared secret to be used to decode this packet
+	 * @param data
+	 *            the buffer this packet was read from
+	 * @param offset
+	 *            position of the packet in the buffer
+	 * @param request
+	 *            Radius request packet if this is a response packet,
+	 *            null if this is a request packet
+	 * @exception RadiusException
+	 *                if the authenticator or an encrypted field is invalid
+	 */
+	public void decodeEncryptedFields(String sharedSecret, byte[] data, int offset, RadiusPacket request) throws RadiusException {
+		int length = (data[offset + 2] & 0x0ff) << 8 | (data[offset + 3] & 0x0ff);
+
 		// request packet?
 		if (request == null) {
 			// decode attributes
-			rp.decodeRequestAttributes(sharedSecret);
-			rp.checkRequestAuthenticator(sharedSecret, length, attributeData);
+			decodeRequestAttributes(sharedSecret);
+			checkRequestAuthenticator(sharedSecret, length, data, offset + RADIUS_HEADER_LENGTH);
 		}
 		else {
 			// response packet: check authenticator
-			rp.checkResponseAuthenticator(sharedSecret, length, attributeData, request.getAuthenticator());
+			checkResponseAuthenticator(sharedSecret, length, data, offset + RADIUS_HEADER_LENGTH, request.getAuthenticator());
 		}
-
-		return rp;
 	}
 
 	/**
@@ -1095,10 +1308,12 @@ public class RadiusPacket {
 	 * @param packetLength
 	 *            total length of the packet
 	 * @param attributes
-	 *            request attribute data
+	 *            buffer holding the request attribute data
+	 * @param offset
+	 *            position of the attribute data in the buffer
 	 * @throws RadiusException
 	 */
-	protected void checkRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes) throws RadiusException {
+	protected void checkRequestAuthenticator(String sharedSecret, int packetLength, byte[] attributes, int offset) throws RadiusException {
 	}
 
 	/**
@@ -1121,14 +1336,16 @@ public class RadiusPacket {
 	 * @param packetLength
 	 *            length of the response packet
 	 * @param attributes
-	 *            attribute data of the response packet
+	 *            buffer holding the attribute data of the response packet
+	 * @param offset
+	 *            position of the attribute data in the buffer
 	 * @param requestAuthenticator
 	 *            16 bytes authenticator of the request packet belonging
 	 *            to this response packet
 	 */
-	protected void checkResponseAuthenticator(String sharedSecret, int packetLength, byte[] attributes, byte[] requestAuthenticator)
+	protected void checkResponseAuthenticator(String sharedSecret, int packetLength, byte[] attributes, int offset, byte[] requestAuthenticator)
 	        throws RadiusException {
-		byte[] authenticator = createResponseAuthenticator(sharedSecret, packetLength, attributes, requestAuthenticator);
+		byte[] authenticator = createResponseAuthenticator(sharedSecret, packetLength, attributes, offset, requestAuthenticator);
 		byte[] receivedAuth = getAuthenticator();
 		for (int i = 0; i < 16; i++)
 			if (authenticator[i] != receivedAuth[i])
@@ -1136,36 +1353,31 @@ public class RadiusPacket {
 	}
 
 	/**
-	 * Returns a MD5 digest.
+	 * Returns a MD5 digest. The digest is cloned from a shared instance the
+	 * first time, which is cheaper than looking it up with MessageDigest.getInstance(),
+	 * and then reused for all digests of this packet.
 	 * 
 	 * @return MessageDigest object
 	 */
 	protected MessageDigest getMd5Digest() {
-		if (md5Digest == null)
+		if (md5Digest == null) {
 			try {
-				md5Digest = MessageDigest.getInstance("MD5");
+				md5Digest = (MessageDigest) md5Prototype.clone();
 			}
-			catch (NoSuchAlgorithmException nsae) {
-				throw new RuntimeException("md5 digest not available", nsae);
+			catch (CloneNotSupportedException e) {
+				md5Digest = createMd5Digest();
 			}
+		}
 		return md5Digest;
 	}
 
-	/**
-	 * Encodes the attributes of this Radius packet to a byte array.
-	 * 
-	 * @return byte array with encoded attributes
-	 * @throws IOException
-	 *             error writing data
-	 */
-	protected byte[] getAttributeBytes() throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(MAX_PACKET_LENGTH);
-		for (Iterator<RadiusAttribute> i = attributes.iterator(); i.hasNext();) {
-			RadiusAttribute a = i.next();
-			bos.write(a.writeAttribute());
+	private static MessageDigest createMd5Digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException("md5 digest not available", nsae);
 		}
-		bos.flush();
-		return bos.toByteArray();
 	}
 
 	/**
@@ -1188,6 +1400,11 @@ public class RadiusPacket {
 	 */
 	private MessageDigest md5Digest = null;
 
+	/**
+	 * MD5 digest the digests of all packets are cloned from.
+	 */
+	private static final MessageDigest md5Prototype = createMd5Digest();
+
 	/**
 	 * Authenticator for this Radius packet.
 	 */
@@ -0,0 +1,82 @@
+package org.tinyradius.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the packets received within the duplicate interval, so retransmitted
+ * packets can be discarded.
+ * 
+ * The packets are spread over a number of stripes by key, each with its own lock,
+ * so threads handling different packets rarely wait for each other. Each stripe
+ * keeps two generations of packets, and when a generation is older than the
+ * duplicate interval it is dropped as a whole, instead of iterating all packets
+ * to find the expired ones.
+ */
+public class DuplicatePacketFilter {
+	private static final int STRIPES = 64;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final long duplicateInterval;
+
+	/**
+	 * @param duplicateInterval
+	 *            a packet is a duplicate if the same packet was received
+	 *            less than this many ms ago
+	 */
+	public DuplicatePacketFilter(long duplicateInterval) {
+		this.duplicateInterval = duplicateInterval;
+
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Registers the packet as received, unless it is a duplicate.
+	 * 
+	 * @param key
+	 *            identifies the packet (client address, identifier and
+	 *            authenticator)
+	 * @param now
+	 *            current time in ms
+	 * @return true if the packet is a duplicate
+	 */
+	public boolean isDuplicate(String key, long now) {
+		Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+
+		synchronized (stripe) {
+			stripe.rotate(now, duplicateInterval);
+
+			Long receiveTime = stripe.current.get(key);
+			if (receiveTime == null) {
+				receiveTime = stripe.previous.get(key);
+			}
+
+			if (receiveTime != null && receiveTime >= now - duplicateInterval) {
+				return true;
+			}
+
+			stripe.current.put(key, now);
+
+			return false;
+		}
+	}
+
+	private static class Stripe {
+		private Map<String, Long> current = new HashMap<>();
+		private Map<String, Long> previous = new HashMap<>();
+		private long currentStart = 0;
+
+		// after rotating, current and previous together hold every packet received within the last duplicate interval
+		private void rotate(long now, long duplicateInterval) {
+			if (now - currentStart < duplicateInterval) {
+				return;
+			}
+
+			previous = (now - currentStart < 2 * duplicateInterval) ? current : new HashMap<>();
+			current = new HashMap<>();
+			currentStart = now;
+		}
+	}
+}
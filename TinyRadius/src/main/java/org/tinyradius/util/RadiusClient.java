@@ -7,8 +7,6 @@
  */
 package org.tinyradius.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -390,9 +388,7 @@ public class RadiusClient {
 	 * @throws IOException
 	 */
 	protected DatagramPacket makeDatagramPacket(RadiusPacket packet, int port) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		packet.encodeRequestPacket(bos, getSharedSecret());
-		byte[] data = bos.toByteArray();
+		byte[] data = packet.encodeRequestPacket(getSharedSecret());
 
 		InetAddress address = InetAddress.getByName(getHostName());
 		DatagramPacket datagram = new DatagramPacket(data, data.length, address, port);
@@ -409,8 +405,7 @@ public class RadiusClient {
 	 * @return RadiusPacket object
 	 */
 	protected RadiusPacket makeRadiusPacket(DatagramPacket packet, RadiusPacket request) throws IOException, RadiusException {
-		ByteArrayInputStream in = new ByteArrayInputStream(packet.getData());
-		return RadiusPacket.decodeResponsePacket(in, getSharedSecret(), request);
+		return RadiusPacket.decodeResponsePacket(packet.getData(), packet.getOffset(), packet.getLength(), getSharedSecret(), request);
 	}
 
 	private int authPort = 1812;
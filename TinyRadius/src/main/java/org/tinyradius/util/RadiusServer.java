@@ -7,8 +7,6 @@
  */
 package org.tinyradius.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -17,13 +15,16 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.tinyradius.attribute.RadiusAttribute;
+import org.tinyradius.dictionary.DefaultDictionary;
 import org.tinyradius.packet.AccessRequest;
 import org.tinyradius.packet.AccountingRequest;
 import org.tinyradius.packet.RadiusPacket;
@@ -43,9 +44,8 @@ public abstract class RadiusServer {
 	private DatagramSocket authSocket = null;
 	private DatagramSocket acctSocket = null;
 	private int socketTimeout = 3000;
-	private HashMap<String, Long> receivedPackets = new HashMap<>();
-	private long lastClean;
 	private long duplicateInterval = 30000; // 30 s
+	private DuplicatePacketFilter duplicatePacketFilter = new DuplicatePacketFilter(duplicateInterval);
 	protected transient boolean closing = false;
 
 	/**
@@ -53,6 +53,13 @@ public abstract class RadiusServer {
 	 */
 	protected ExecutorService executor = null;
 
+	// limits the number of packets being handled or waiting for the executor, null for no limit
+	private Semaphore pendingRequests = null;
+	private AtomicLong droppedPackets = new AtomicLong();
+
+	// encode buffer for responses, reused by the platform threads of the executor
+	private static final ThreadLocal<byte[]> sendBuffer = ThreadLocal.withInitial(() -> new byte[RadiusPacket.MAX_PACKET_LENGTH]);
+
 	/**
 	 * Constructs an answer for an Access-Request packet. Either this
 	 * method or isUserAuthenticated should be overriden.
@@ -68,6 +75,27 @@ public abstract class RadiusServer {
 	 */
 	public abstract RadiusPacket accessRequestReceived(AccessRequest accessRequest, InetSocketAddress client) throws RadiusException;
 
+	/**
+	 * Constructs an answer for an Access-Request packet, which may be
+	 * completed later. Override this instead of accessRequestReceived
+	 * when the answer has to wait for something (like the user),
+	 * so the waiting does not hold a thread from the executor.
+	 * The default implementation calls accessRequestReceived.
+	 * 
+	 * @param accessRequest
+	 *            Radius request packet
+	 * @param client
+	 *            address of Radius client
+	 * @return future completed with the response packet, or with null
+	 *         if no packet shall be sent
+	 * @exception RadiusException
+	 *                malformed request packet; if this
+	 *                exception is thrown, no answer will be sent
+	 */
+	public CompletableFuture<RadiusPacket> accessRequestReceivedAsync(AccessRequest accessRequest, InetSocketAddress client) throws RadiusException {
+		return CompletableFuture.completedFuture(accessRequestReceived(accessRequest, client));
+	}
+
 	/**
 	 * Returns the shared secret used to communicate with the client with the
 	 * passed IP address or null if the client is not allowed at this server.
@@ -164,6 +192,29 @@ public abstract class RadiusServer {
 		}
 	}
 
+	/**
+	 * Sets the maximum number of packets being handled or waiting to be
+	 * handled by the executor at the same time. Packets received while
+	 * this many are pending are dropped without an answer.
+	 * Must be called before start().
+	 * 
+	 * @param maxPendingRequests
+	 *            the limit, or 0 for no limit
+	 */
+	public void setMaxPendingRequests(int maxPendingRequests) {
+		this.pendingRequests = (maxPendingRequests > 0) ? new Semaphore(maxPendingRequests) : null;
+	}
+
+	/**
+	 * Returns the number of packets dropped because too many
+	 * requests were pending.
+	 * 
+	 * @return number of dropped packets
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets.get();
+	}
+
 	/**
 	 * Returns the auth port the server will listen on.
 	 * 
@@ -195,15 +246,6 @@ public abstract class RadiusServer {
 	}
 
 
-	/**
-	* Returns a map containing received packets
-	*
-	* @return list of received packets
-	*/
-	public Map<String, Long> getReceivedPackets() {
-		return receivedPackets;
-	}
-
 	/**
 	 * Returns the IP address the server listens on.
 	 * Returns null if listening on the wildcard address.
@@ -251,9 +293,12 @@ public abstract class RadiusServer {
 	 *            socket to listen on
 	 */
 	protected void listen(final DatagramSocket s) {
+		// one receive buffer per listening thread, the received bytes are copied out before the packet is handled
+		final DatagramPacket received = new DatagramPacket(new byte[RadiusPacket.MAX_PACKET_LENGTH], RadiusPacket.MAX_PACKET_LENGTH);
+
 		while (true) {
 			try {
-				final DatagramPacket packetIn = new DatagramPacket(new byte[RadiusPacket.MAX_PACKET_LENGTH], RadiusPacket.MAX_PACKET_LENGTH);
+				received.setLength(RadiusPacket.MAX_PACKET_LENGTH);
 
 				// receive packet
 				try {
@@ -261,7 +306,7 @@ public abstract class RadiusServer {
 						log.trace("about to call socket.receive()");
 					}
 
-					s.receive(packetIn);
+					s.receive(received);
 
 					if (log.isDebugEnabled()) {
 						log.debug("receive buffer size = " + s.getReceiveBufferSize());
@@ -279,17 +324,42 @@ public abstract class RadiusServer {
 					continue;
 				}
 
+				final DatagramPacket packetIn = new DatagramPacket(Arrays.copyOf(received.getData(), received.getLength()), received.getLength(), received.getSocketAddress());
+
 				if (executor == null) {
 					processRequest(s, packetIn);
 				}
+				else if (pendingRequests != null && !pendingRequests.tryAcquire()) {
+					// shed load instead of queueing - the client retransmits if it is still waiting, and an answer
+					// from a long queue would most likely arrive after the client has given up anyway
+					if (droppedPackets.getAndIncrement() % 100 == 0) {
+						log.warn("too many pending requests, dropping packet from " + packetIn.getAddress() + " (" + droppedPackets.get() + " dropped in total)");
+					}
+				}
 				else {
-					executor.submit(new Runnable() {
-						
-						@Override
-						public void run() {
-							processRequest(s, packetIn);
+					try {
+						executor.submit(new Runnable() {
+							
+							@Override
+							public void run() {
+								try {
+									processRequest(s, packetIn);
+								}
+								finally {
+									if (pendingRequests != null) {
+										pendingRequests.release();
+									}
+								}
+							}
+						});
+					}
+					catch (RejectedExecutionException ree) {
+						if (pendingRequests != null) {
+							pendingRequests.release();
 						}
-					});
+
+						log.warn("executor rejected packet from " + packetIn.getAddress());
+					}
 				}
 			}
 			catch (SocketTimeoutException ste) {
@@ -319,14 +389,15 @@ public abstract class RadiusServer {
 			// check client
 			final InetSocketAddress localAddress = (InetSocketAddress) s.getLocalSocketAddress();
 			final InetSocketAddress remoteAddress = new InetSocketAddress(packetIn.getAddress(), packetIn.getPort());
-			final String secret = getSharedSecret(remoteAddress, makeRadiusPacket(packetIn, "1234567890", RadiusPacket.RESERVED));
+			// parse packet, the shared secret is only needed afterwards to decode the password and check the authenticator
+			final RadiusPacket request = makeRadiusPacket(packetIn);
+			final String secret = getSharedSecret(remoteAddress, request);
 			if (secret == null) {
 				log.warn("ignoring packet from unknown client " + remoteAddress + " received on local address " + localAddress);
 				return;
 			}
 
-			// parse packet
-			final RadiusPacket request = makeRadiusPacket(packetIn, secret, RadiusPacket.UNDEFINED);
+			request.decodeEncryptedFields(secret, packetIn.getData(), packetIn.getOffset(), null);
 			log.debug("received packet from " + remoteAddress + " on local address " + localAddress);
 
 			// handle packet
@@ -334,18 +405,15 @@ public abstract class RadiusServer {
 				log.trace("about to call RadiusServer.handlePacket()");
 			}
 
-			final RadiusPacket response = handlePacket(localAddress, remoteAddress, request, secret);
-
-			// send response
-			if (response != null) {
-				log.info("send response: " + response + " to " + remoteAddress.getAddress() + ":" + packetIn.getPort());
-
-				final DatagramPacket packetOut = makeDatagramPacket(response, secret, remoteAddress.getAddress(), packetIn.getPort(), request);
-				s.send(packetOut);
-			}
-			else {
-				log.debug("no response sent");
-			}
+			// send response when it is ready, which may be on another thread
+			handlePacket(localAddress, remoteAddress, request, secret).whenComplete((response, ex) -> {
+				if (ex != null) {
+					log.error("failed to handle Radius packet from " + remoteAddress, ex);
+				}
+				else {
+					sendResponse(s, response, secret, remoteAddress, request);
+				}
+			});
 		}
 		catch (IOException ioe) {
 			// error while reading/writing socket
@@ -357,6 +425,24 @@ public abstract class RadiusServer {
 		}
 	}
 
+	private void sendResponse(final DatagramSocket s, RadiusPacket response, String secret, InetSocketAddress remoteAddress, RadiusPacket request) {
+		if (response == null) {
+			log.debug("no response sent");
+			return;
+		}
+
+		try {
+			log.info("send response: " + response + " to " + remoteAddress.getAddress() + ":" + remoteAddress.getPort());
+
+			final DatagramPacket packetOut = makeDatagramPacket(response, secret, remoteAddress.getAddress(), remoteAddress.getPort(), request);
+			s.send(packetOut);
+		}
+		catch (IOException ioe) {
+			// error while writing socket
+			log.error("communication error", ioe);
+		}
+	}
+
 	/**
 	 * Handles the received Radius packet and constructs a response.
 	 * 
@@ -367,19 +453,19 @@ public abstract class RadiusServer {
 	 * @param request
 	 *            the packet
 	 * @param sharedSecret
-	 * @return response packet or null for no response
+	 * @return future completed with the response packet, or with null for no response
 	 * @throws RadiusException
 	 * @throws IOException
 	 */
-	protected RadiusPacket handlePacket(InetSocketAddress localAddress, InetSocketAddress remoteAddress, RadiusPacket request, String sharedSecret) throws RadiusException, IOException {
-		RadiusPacket response = null;
+	protected CompletableFuture<RadiusPacket> handlePacket(InetSocketAddress localAddress, InetSocketAddress remoteAddress, RadiusPacket request, String sharedSecret) throws RadiusException, IOException {
+		CompletableFuture<RadiusPacket> response = CompletableFuture.completedFuture(null);
 
 		// check for duplicates
 		if (!isPacketDuplicate(request, remoteAddress)) {
 			if (localAddress.getPort() == getAuthPort()) {
 				// handle packets on auth port
 				if (request instanceof AccessRequest) {
-					response = accessRequestReceived((AccessRequest) request, remoteAddress);
+					response = accessRequestReceivedAsync((AccessRequest) request, remoteAddress);
 				}
 				else {
 					log.error("unknown Radius packet type: " + request.getPacketType());
@@ -430,34 +516,30 @@ public abstract class RadiusServer {
 	 *            destination port
 	 * @param request
 	 *            request packet
-	 * @return new datagram packet
+	 * @return new datagram packet, backed by a buffer of the calling thread,
+	 *         so it has to be sent before the thread creates the next one
 	 * @throws IOException
 	 */
 	protected DatagramPacket makeDatagramPacket(RadiusPacket packet, String secret, InetAddress address, int port, RadiusPacket request) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		packet.encodeResponsePacket(bos, secret, request);
-		byte[] data = bos.toByteArray();
+		byte[] data = sendBuffer.get();
+		int length = packet.encodeResponsePacket(secret, request, data);
 
-		return new DatagramPacket(data, data.length, address, port);
+		return new DatagramPacket(data, length, address, port);
 	}
 
 	/**
 	 * Creates a RadiusPacket for a Radius request from a received
-	 * datagram packet.
+	 * datagram packet. The encrypted fields are not decoded yet, see
+	 * RadiusPacket.decodeEncryptedFields().
 	 * 
 	 * @param packet
 	 *            received datagram
 	 * @return RadiusPacket object
 	 * @exception RadiusException
 	 *                malformed packet
-	 * @exception IOException
-	 *                communication error (after getRetryCount()
-	 *                retries)
 	 */
-	protected RadiusPacket makeRadiusPacket(DatagramPacket packet, String sharedSecret, int forceType) throws IOException, RadiusException {
-		ByteArrayInputStream in = new ByteArrayInputStream(packet.getData());
-
-		return RadiusPacket.decodeRequestPacket(in, sharedSecret, forceType);
+	protected RadiusPacket makeRadiusPacket(DatagramPacket packet) throws RadiusException {
+		return RadiusPacket.readRequestPacket(DefaultDictionary.getDefaultDictionary(), packet.getData(), packet.getOffset(), packet.getLength(), RadiusPacket.UNDEFINED);
 	}
 
 	/**
@@ -472,34 +554,10 @@ public abstract class RadiusServer {
 	 * @return true if it is duplicate
 	 */
 	protected boolean isPacketDuplicate(RadiusPacket packet, InetSocketAddress address) {
-		long now = System.currentTimeMillis();
-		long intervalStart = now - getDuplicateInterval();
-
 		String uniqueKey = address.getAddress().getHostAddress()+ 
 			packet.getPacketIdentifier() + 
 			Arrays.toString(packet.getAuthenticator());
 
-		synchronized (receivedPackets) {
-			if (lastClean == 0 || lastClean < now - getDuplicateInterval()) {
-				lastClean = now;
-				for (Iterator<Map.Entry<String, Long>> i = receivedPackets.entrySet().iterator(); i.hasNext(); ) {
-					Long receiveTime = i.next().getValue();
-
-					if (receiveTime < intervalStart) {
-						// packet is older than duplicate interval
-						i.remove();
-					}
-				}
-			}
-
-			Long receiveTime = receivedPackets.get(uniqueKey);
-			if (receiveTime == null) {
-				receivedPackets.put(uniqueKey, System.currentTimeMillis());
-				return false;
-			}
-			else {
-				return !(receiveTime < intervalStart);
-			}
-		}
+		return duplicatePacketFilter.isDuplicate(uniqueKey, System.currentTimeMillis());
 	}
 }
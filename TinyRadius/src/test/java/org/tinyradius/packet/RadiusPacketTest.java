@@ -0,0 +1,143 @@
+package org.tinyradius.packet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.tinyradius.dictionary.DefaultDictionary;
+import org.tinyradius.util.RadiusException;
+
+public class RadiusPacketTest {
+	private static final String SECRET = "testing123";
+
+	// the packets below were encoded by the stream based encoder that was used before packets were encoded in place
+	private static final String OLD_ACCESS_ACCEPT = "022a0042cfe698573acdad77f1f3596753053ae8120957656c636f6d65190b6f733266616b746f72"
+			+ "1a0e0000372a02084f66666963651a0c0000372a0706000003e8";
+	private static final String OLD_ACCESS_REQUEST = "01070042273c94da7f83b8ae363841bfd5e04e5d0107616c696365200576706e0222"
+			+ "1624a4667c5ab7f03dc66356378e24eea50eda5b127653c4ecc1eafb0e1e9fd1";
+	private static final String OLD_ACCOUNTING_REQUEST = "04090027542a7133f1207713795fbddb3f3893100107616c6963652806000000012c0630303031";
+
+	@Test
+	@DisplayName("A response packet is encoded to the same bytes as before")
+	public void encodeResponseLikeOldEncoder() {
+		RadiusPacket response = createAccessAccept();
+
+		assertArrayEquals(HexFormat.of().parseHex(OLD_ACCESS_ACCEPT), response.encodeResponsePacket(SECRET, createAccessRequest()));
+	}
+
+	@Test
+	@DisplayName("Encoding a response into a reused buffer gives the same bytes as encoding into a new array")
+	public void encodeResponseIntoBuffer() {
+		byte[] buffer = new byte[RadiusPacket.MAX_PACKET_LENGTH];
+		Arrays.fill(buffer, (byte) 0x5a);
+
+		int length = createAccessAccept().encodeResponsePacket(SECRET, createAccessRequest(), buffer);
+
+		assertArrayEquals(HexFormat.of().parseHex(OLD_ACCESS_ACCEPT), Arrays.copyOf(buffer, length));
+		assertThrows(RuntimeException.class, () -> createAccessAccept().encodeResponsePacket(SECRET, createAccessRequest(), new byte[20]));
+	}
+
+	@Test
+	@DisplayName("A request packet from the old encoder is decoded, including the password")
+	public void decodeOldRequest() throws RadiusException {
+		byte[] data = HexFormat.of().parseHex(OLD_ACCESS_REQUEST);
+
+		// read at an offset, like a packet in a larger receive buffer
+		byte[] buffer = new byte[data.length + 10];
+		System.arraycopy(data, 0, buffer, 10, data.length);
+
+		RadiusPacket packet = RadiusPacket.readRequestPacket(DefaultDictionary.getDefaultDictionary(), buffer, 10, data.length, RadiusPacket.UNDEFINED);
+		packet.decodeEncryptedFields(SECRET, buffer, 10, null);
+
+		assertTrue(packet instanceof AccessRequest);
+		AccessRequest request = (AccessRequest) packet;
+		assertEquals(7, request.getPacketIdentifier());
+		assertEquals("alice", request.getUserName());
+		assertEquals("correct horse battery staple", request.getUserPassword());
+		assertEquals("vpn", request.getAttributeValue("NAS-Identifier"));
+	}
+
+	@Test
+	@DisplayName("A request packet survives an encode and decode round trip")
+	public void requestRoundTrip() throws RadiusException {
+		AccessRequest original = new AccessRequest("alice", "a password that is longer than sixteen bytes");
+		original.setPacketIdentifier(7);
+		original.addAttribute("NAS-Identifier", "vpn");
+		original.addAttribute("WISPr-Location-Name", "Office");
+
+		byte[] data = original.encodeRequestPacket(SECRET);
+
+		RadiusPacket packet = RadiusPacket.readRequestPacket(DefaultDictionary.getDefaultDictionary(), data, 0, data.length, RadiusPacket.UNDEFINED);
+		packet.decodeEncryptedFields(SECRET, data, 0, null);
+
+		AccessRequest decoded = (AccessRequest) packet;
+		assertArrayEquals(original.getAuthenticator(), decoded.getAuthenticator());
+		assertEquals("alice", decoded.getUserName());
+		assertEquals("a password that is longer than sixteen bytes", decoded.getUserPassword());
+		assertEquals("vpn", decoded.getAttributeValue("NAS-Identifier"));
+		assertEquals("Office", decoded.getAttributeValue("WISPr-Location-Name"));
+	}
+
+	@Test
+	@DisplayName("An accounting request is encoded to the same bytes as before and its authenticator is checked")
+	public void accountingRequestLikeOldEncoder() throws RadiusException {
+		AccountingRequest request = new AccountingRequest("alice", AccountingRequest.ACCT_STATUS_TYPE_START);
+		request.setPacketIdentifier(9);
+		request.addAttribute("Acct-Session-Id", "0001");
+
+		byte[] data = request.encodeRequestPacket(SECRET);
+		assertArrayEquals(HexFormat.of().parseHex(OLD_ACCOUNTING_REQUEST), data);
+
+		RadiusPacket decoded = RadiusPacket.readRequestPacket(DefaultDictionary.getDefaultDictionary(), data, 0, data.length, RadiusPacket.UNDEFINED);
+		decoded.decodeEncryptedFields(SECRET, data, 0, null);
+		assertEquals("0001", decoded.getAttributeValue("Acct-Session-Id"));
+
+		RadiusPacket wrongSecret = RadiusPacket.readRequestPacket(DefaultDictionary.getDefaultDictionary(), data, 0, data.length, RadiusPacket.UNDEFINED);
+		assertThrows(RadiusException.class, () -> wrongSecret.decodeEncryptedFields("wrong", data, 0, null));
+	}
+
+	@Test
+	@DisplayName("A response packet is decoded and its authenticator is checked against the request")
+	public void responseRoundTrip() throws RadiusException {
+		byte[] data = HexFormat.of().parseHex(OLD_ACCESS_ACCEPT);
+
+		RadiusPacket response = RadiusPacket.decodeResponsePacket(data, 0, data.length, SECRET, createAccessRequest());
+
+		assertEquals(RadiusPacket.ACCESS_ACCEPT, response.getPacketType());
+		assertEquals("Welcome", response.getAttributeValue("Reply-Message"));
+		assertEquals("os2faktor", response.getAttributeValue("Class"));
+		assertEquals("Office", response.getAttributeValue("WISPr-Location-Name"));
+		assertEquals("1000", response.getAttributeValue("WISPr-Bandwidth-Max-Up"));
+
+		assertThrows(RadiusException.class, () -> RadiusPacket.decodeResponsePacket(data, 0, data.length, "wrong", createAccessRequest()));
+	}
+
+	private static RadiusPacket createAccessRequest() {
+		RadiusPacket request = new AccessRequest("alice", "pw");
+		request.setPacketIdentifier(42);
+
+		byte[] authenticator = new byte[16];
+		for (int i = 0; i < authenticator.length; i++) {
+			authenticator[i] = (byte) i;
+		}
+		request.setAuthenticator(authenticator);
+
+		return request;
+	}
+
+	private static RadiusPacket createAccessAccept() {
+		RadiusPacket response = new RadiusPacket(RadiusPacket.ACCESS_ACCEPT, 42);
+		response.addAttribute("Reply-Message", "Welcome");
+		response.addAttribute("Class", "os2faktor");
+		response.addAttribute("WISPr-Location-Name", "Office");
+		response.addAttribute("WISPr-Bandwidth-Max-Up", "1000");
+
+		return response;
+	}
+}
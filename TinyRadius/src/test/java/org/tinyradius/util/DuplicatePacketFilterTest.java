@@ -0,0 +1,67 @@
+package org.tinyradius.util;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class DuplicatePacketFilterTest {
+	private static final long INTERVAL = 30000;
+
+	@Test
+	@DisplayName("A packet received again within the duplicate interval is a duplicate")
+	public void duplicateWithinInterval() {
+		DuplicatePacketFilter filter = new DuplicatePacketFilter(INTERVAL);
+
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 1000));
+		assertTrue(filter.isDuplicate("10.0.0.1-1", 2000));
+		assertTrue(filter.isDuplicate("10.0.0.1-1", 1000 + INTERVAL));
+	}
+
+	@Test
+	@DisplayName("Different packets are not duplicates of each other")
+	public void differentKeys() {
+		DuplicatePacketFilter filter = new DuplicatePacketFilter(INTERVAL);
+
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 1000));
+		assertFalse(filter.isDuplicate("10.0.0.1-2", 1000));
+		assertFalse(filter.isDuplicate("10.0.0.2-1", 1000));
+	}
+
+	@Test
+	@DisplayName("A packet is no longer a duplicate once the duplicate interval has passed")
+	public void expiresAfterInterval() {
+		DuplicatePacketFilter filter = new DuplicatePacketFilter(INTERVAL);
+
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 1000));
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 1001 + INTERVAL));
+
+		// the late packet is registered again
+		assertTrue(filter.isDuplicate("10.0.0.1-1", 2000 + INTERVAL));
+	}
+
+	@Test
+	@DisplayName("A packet received just before a generation rotation is still a duplicate after it")
+	public void survivesRotation() {
+		DuplicatePacketFilter filter = new DuplicatePacketFilter(INTERVAL);
+
+		// starts the first generation
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 0));
+		assertFalse(filter.isDuplicate("10.0.0.1-2", INTERVAL - 1000));
+
+		// rotates, the second packet is now in the previous generation
+		assertTrue(filter.isDuplicate("10.0.0.1-2", INTERVAL + 1000));
+		assertFalse(filter.isDuplicate("10.0.0.1-1", INTERVAL + 1000));
+	}
+
+	@Test
+	@DisplayName("Both generations are dropped when no packet arrived for two intervals")
+	public void dropsStaleGenerations() {
+		DuplicatePacketFilter filter = new DuplicatePacketFilter(INTERVAL);
+
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 0));
+		assertFalse(filter.isDuplicate("10.0.0.1-1", 3 * INTERVAL));
+		assertTrue(filter.isDuplicate("10.0.0.1-1", 3 * INTERVAL + 1));
+	}
+}
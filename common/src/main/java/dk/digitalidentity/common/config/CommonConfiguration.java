@@ -6,6 +6,7 @@ import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
 import dk.digitalidentity.common.config.modules.AdConfiguration;
+import dk.digitalidentity.common.config.modules.AuditLogConfiguration;
 import dk.digitalidentity.common.config.modules.CprConfiguration;
 import dk.digitalidentity.common.config.modules.CustomerConfiguration;
 import dk.digitalidentity.common.config.modules.DevConfiguration;
@@ -53,6 +54,7 @@ public class CommonConfiguration {
 	private FullServiceIdPConfiguration fullServiceIdP = new FullServiceIdPConfiguration();
 	private MitIDErhvervConfiguration mitIdErhverv = new MitIDErhvervConfiguration();
 	private EntraMfaConfiguration entraMfa = new EntraMfaConfiguration();
+	private AuditLogConfiguration auditLog = new AuditLogConfiguration();
 
 	@EventListener(ApplicationReadyEvent.class)
 	public void runOnStartup() {
@@ -4,6 +4,9 @@ import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.cookie.StandardCookieSpec;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.io.HttpClientConnectionManager;
+import org.apache.hc.core5.util.Timeout;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
@@ -27,4 +30,28 @@ public class DefaultRestTemplateConfiguration {
 
 		return new RestTemplate(requestFactory);
 	}
+
+	// shared by all lookups against OS2rollekatalog, which happens during login, so connections are pooled and kept alive
+	@Bean(name = "roleCatalogueRestTemplate")
+	public RestTemplate roleCatalogueRestTemplate() {
+		HttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+			.setMaxConnTotal(100)
+			.setMaxConnPerRoute(100)
+			.build();
+
+		CloseableHttpClient client = HttpClients.custom()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(RequestConfig.custom()
+				.setCookieSpec(StandardCookieSpec.RELAXED)
+				.setConnectionRequestTimeout(Timeout.ofSeconds(10))
+				.setResponseTimeout(Timeout.ofSeconds(30))
+				.build())
+			.build();
+
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
+		requestFactory.setConnectTimeout(10 * 1000);
+		requestFactory.setHttpClient(client);
+
+		return new RestTemplate(requestFactory);
+	}
 }
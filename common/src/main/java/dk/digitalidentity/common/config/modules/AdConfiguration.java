@@ -11,4 +11,9 @@ public class AdConfiguration {
 	private String baseUrl;
 	private String apiKey;
 	private String passwordSecret;
+
+	// the password sync queue is processed with a thread per domain, and up to syncMaxParallelPerDomain threads for a domain
+	// with many queued changes (never more than the number of agents connected for that domain)
+	private int syncThreads = 10;
+	private int syncMaxParallelPerDomain = 4;
 }
@@ -0,0 +1,32 @@
+package dk.digitalidentity.common.config.modules;
+
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Component
+@Getter
+@Setter
+public class AuditLogConfiguration {
+
+	// auditlogs are queued in memory and written in batches by a background thread - disable to write them on the calling thread
+	private boolean asyncEnabled = true;
+	private int queueSize = 10000;
+	private int batchSize = 500;
+
+	// maximum time an auditlog waits in the queue for the batch to fill up
+	private long flushIntervalMs = 250;
+
+	// how long a caller waits for room in a full queue, before writing the auditlog itself
+	private long enqueueTimeoutMs = 1000;
+
+	// how long shutdown waits for the queue to be drained
+	private long shutdownTimeoutMs = 30000;
+
+	// the longest expected time from an auditlog being logged until its INSERT is committed (time in the queue, including a backlog, plus
+	// the INSERT itself). Auditlog ids are not handed out in commit order, so readers that resume from the last id they have seen (the
+	// auditlog stream, log watch) only read rows older than this. Auditlogs committed later than this are logged as a warning, as such
+	// a reader may already have moved past them. Must be the same on all ui and idp instances
+	private long maxWriteDelayMs = 60000;
+}
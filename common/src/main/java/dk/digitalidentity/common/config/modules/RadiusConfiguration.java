@@ -16,4 +16,9 @@ public class RadiusConfiguration {
 
 	private int port = 1812;
 	private int mfaPort = 1813;
+
+	// requests handled at the same time (per port), packets arriving when this many are in progress are dropped, and retransmitted by the client.
+	// Each request holds a database connection from the IdP pool (spring.datasource.hikari.maximum-pool-size, 10 by default) while it is
+	// handled, and both ports share that pool with the web logins, so keep 2 x this value well below the pool size
+	private int maxConcurrentRequests = 3;
 }
@@ -18,6 +18,9 @@ public class RoleCatalogueConfiguration {
 	// default enabled - we have some who needs to have this disabled when they are onboarding OS2rollekatalog,
 	// as they have not imported KOMBIT yet
 	private boolean kombitRolesEnabled = true;
+
+	// lookups are cached for a short while, so all claims during a single login share the same lookup
+	private long cacheSeconds = 60;
 	
 	public boolean isEnabled() {
 		return (enabled && StringUtils.hasLength(baseUrl) && StringUtils.hasLength(apiKey));
@@ -38,4 +41,8 @@ public class RoleCatalogueConfiguration {
 	public boolean isKombitRolesEnabled() {
 		return kombitRolesEnabled;
 	}
+
+	public long getCacheSeconds() {
+		return cacheSeconds;
+	}
 }
@@ -24,7 +24,13 @@ public interface AuditLogDao extends JpaRepository<AuditLog, Long> {
 	List<AuditLog> findFirst500ByLocationNull();
 	long countByTtsAfterAndLogAction(LocalDateTime tts, LogAction logAction);
 
-	/* Need to do this, as there is no cascade-delete to auditlog_details table
+	// logins are left out, as they must be handed to the log watch rules when their location is set
+	@Modifying
+	@Query(nativeQuery = true, value = "UPDATE auditlogs SET location = ?2 WHERE ip_address = ?1 AND location IS NULL AND log_action <> 'LOGIN'")
+	int updateLocationByIpAddressExceptLogins(String ipAddress, String location);
+
+	/* Need to do this, as there is no cascade-delete to auditlog_details table. Most details are removed together with
+	 * their auditlog when partitions are dropped, so only look at details old enough to have been deleted row by row
 	 * 
 	 * DELETE dd
 	 * FROM auditlogs_details dd
@@ -32,16 +38,18 @@ public interface AuditLogDao extends JpaRepository<AuditLog, Long> {
 	 *   SELECT d.id
 	 *   FROM auditlogs_details d
 	 *   LEFT JOIN auditlogs a ON d.id = a.auditlogs_details_id
-	 *   WHERE a.id IS NULL
+	 *   WHERE d.tts < ?1 AND a.id IS NULL
 	 *   LIMIT 25000
 	 * ) ss ON ss.id = dd.id
 	 */
 	@Modifying
-	@Query(nativeQuery = true, value = "DELETE dd FROM auditlogs_details dd JOIN (SELECT d.id FROM auditlogs_details d LEFT JOIN auditlogs a ON d.id = a.auditlogs_details_id WHERE a.id IS NULL LIMIT 25000) ss ON ss.id = dd.id")
-	void deleteUnreferencedAuditlogDetails();
+	@Query(nativeQuery = true, value = "DELETE dd FROM auditlogs_details dd JOIN (SELECT d.id FROM auditlogs_details d LEFT JOIN auditlogs a ON d.id = a.auditlogs_details_id WHERE d.tts < ?1 AND a.id IS NULL LIMIT 25000) ss ON ss.id = dd.id")
+	void deleteUnreferencedAuditlogDetails(LocalDateTime before);
+
+	// retention_class values are defined in AuditLogRetention - these only delete the rows left over after expired partitions are dropped
 
 	@Modifying
-	@Query(nativeQuery = true, value = "DELETE FROM auditlogs WHERE tts < ?1 AND log_action IN ('LOGIN', 'LOGOUT', 'LOGOUT_IP_CHANGED', 'AUTHN_REQUEST', 'OIDC_JWT_ID_TOKEN', 'LOGOUT_REQUEST', 'LOGOUT_RESPONSE', 'TOO_MANY_ATTEMPTS', 'WRONG_PASSWORD', 'RIGHT_PASSWORD', 'ACCEPT_MFA', 'REJECT_MFA', 'ERROR_SENT_TO_SP', 'SESSION_EXPIRED', 'REJECTED_UNKNOWN_PERSON', 'DEACTIVATE_BY_PWD') LIMIT 25000")
+	@Query(nativeQuery = true, value = "DELETE FROM auditlogs WHERE retention_class = 1 AND tts < ?1 LIMIT 25000")
 	void deleteLoginsByTtsBefore(LocalDateTime before);
 
 	@Modifying
@@ -49,6 +57,6 @@ public interface AuditLogDao extends JpaRepository<AuditLog, Long> {
 	void deleteByTtsBefore(LocalDateTime before);
 
 	@Modifying
-	@Query(nativeQuery = true, value = "DELETE FROM auditlogs WHERE tts < ?1 AND log_action IN ('TRACE_LOG', 'SESSION_KEY_ISSUED', 'SESSION_KEY_EXCHANGED') LIMIT 25000")
+	@Query(nativeQuery = true, value = "DELETE FROM auditlogs WHERE retention_class = 2 AND tts < ?1 LIMIT 25000")
 	void deleteTraceLogsByTtsBefore(LocalDateTime before);
 }
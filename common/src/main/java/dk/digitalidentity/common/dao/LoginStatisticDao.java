@@ -0,0 +1,19 @@
+package dk.digitalidentity.common.dao;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import dk.digitalidentity.common.dao.model.LoginStatistic;
+import dk.digitalidentity.common.dao.model.enums.LogAction;
+
+public interface LoginStatisticDao extends JpaRepository<LoginStatistic, Long> {
+	List<LoginStatistic> findByTtsGreaterThanEqualAndTtsLessThanAndLogAction(LocalDateTime from, LocalDateTime to, LogAction logAction);
+
+	@Modifying
+	@Query(nativeQuery = true, value = "DELETE FROM login_statistics WHERE tts < ?1")
+	void deleteByTtsBefore(LocalDateTime before);
+}
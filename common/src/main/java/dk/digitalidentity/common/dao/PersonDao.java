@@ -1,6 +1,7 @@
 package dk.digitalidentity.common.dao;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -22,6 +23,7 @@ public interface PersonDao extends JpaRepository<Person, Long> {
 	List<Person> findByNemIdPid(String pid);
 	List<Person> findByAdminTrueOrServiceProviderAdminTrueOrRegistrantTrueOrSupporterNotNullOrUserAdminTrueOrKodeviserAdminTrueOrInstitutionStudentPasswordAdminTrue();
 	List<Person> findBySamaccountName(String samAccountName);
+	List<Person> findBySamaccountNameIn(Collection<String> samAccountNames);
 	List<Person> findBySamaccountNameAndDomain(String samAccountName, Domain domain);
 	List<Person> findBySamaccountNameAndDomainIn(String samAccountName, List<Domain> domains);
 	List<Person> findByDomain(Domain domain);
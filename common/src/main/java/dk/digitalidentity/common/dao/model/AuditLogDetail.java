@@ -59,4 +59,13 @@ public class AuditLogDetail {
 
 		return detailType;
 	}
+
+	// the stored values, without the transparent decompression above - used when writing the row directly with JDBC
+	public DetailType getStoredDetailType() {
+		return detailType;
+	}
+
+	public String getStoredDetailContent() {
+		return detailContent;
+	}
 }
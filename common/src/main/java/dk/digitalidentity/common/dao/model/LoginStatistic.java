@@ -0,0 +1,39 @@
+package dk.digitalidentity.common.dao.model;
+
+import java.time.LocalDateTime;
+
+import dk.digitalidentity.common.dao.model.enums.LogAction;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+// number of login-related auditlogs per minute, maintained by the AuditLogWriter so statistics do not have to count auditlogs
+@Entity
+@Table(name = "login_statistics")
+@Setter
+@Getter
+public class LoginStatistic {
+
+	@Id
+	@Column
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long id;
+
+	// start of the minute
+	@Column
+	private LocalDateTime tts;
+
+	@Column
+	@Enumerated(EnumType.STRING)
+	private LogAction logAction;
+
+	@Column
+	private long loginCount;
+}
@@ -0,0 +1,65 @@
+package dk.digitalidentity.common.dao.model.enums;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.util.EnumSet;
+import java.util.Set;
+
+import lombok.Getter;
+
+/**
+ * The retention rules for auditlogs. The value is stored on each auditlog (and its details) as retention_class,
+ * and the tables are partitioned on (retention_class, tts), so expired data can be removed by dropping whole partitions.
+ *
+ * The granularity is the size of each partition - login and trace logs are high volume and have short retention, so
+ * they get a partition per day, while everything else is kept for 13 months and gets a partition per month.
+ */
+@Getter
+public enum AuditLogRetention {
+	GENERAL(0, Period.ofMonths(13), Period.ofMonths(1)),
+	LOGIN(1, Period.ofMonths(3), Period.ofDays(1)),
+	TRACE(2, Period.ofDays(14), Period.ofDays(1));
+
+	private static final Set<LogAction> LOGIN_ACTIONS = EnumSet.of(LogAction.LOGIN, LogAction.LOGOUT, LogAction.LOGOUT_IP_CHANGED, LogAction.AUTHN_REQUEST,
+			LogAction.OIDC_JWT_ID_TOKEN, LogAction.LOGOUT_REQUEST, LogAction.LOGOUT_RESPONSE, LogAction.TOO_MANY_ATTEMPTS, LogAction.WRONG_PASSWORD,
+			LogAction.RIGHT_PASSWORD, LogAction.ACCEPT_MFA, LogAction.REJECT_MFA, LogAction.ERROR_SENT_TO_SP, LogAction.SESSION_EXPIRED,
+			LogAction.REJECTED_UNKNOWN_PERSON, LogAction.DEACTIVATE_BY_PWD);
+
+	private static final Set<LogAction> TRACE_ACTIONS = EnumSet.of(LogAction.TRACE_LOG, LogAction.SESSION_KEY_ISSUED, LogAction.SESSION_KEY_EXCHANGED);
+
+	private final int retentionClass;
+	private final Period retention;
+	private final Period granularity;
+
+	private AuditLogRetention(int retentionClass, Period retention, Period granularity) {
+		this.retentionClass = retentionClass;
+		this.retention = retention;
+		this.granularity = granularity;
+	}
+
+	public static AuditLogRetention of(LogAction logAction) {
+		if (LOGIN_ACTIONS.contains(logAction)) {
+			return LOGIN;
+		}
+		else if (TRACE_ACTIONS.contains(logAction)) {
+			return TRACE;
+		}
+
+		return GENERAL;
+	}
+
+	// auditlogs with a tts before this are expired
+	public LocalDateTime getCutoff(LocalDateTime now) {
+		return now.minus(retention);
+	}
+
+	// the first partition boundary after the given day, aligned to the granularity
+	public LocalDate nextBoundary(LocalDate day) {
+		if (granularity.getMonths() > 0) {
+			return day.withDayOfMonth(1).plus(granularity);
+		}
+
+		return day.plus(granularity);
+	}
+}
@@ -0,0 +1,391 @@
+package dk.digitalidentity.common.log;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import dk.digitalidentity.common.config.CommonConfiguration;
+import dk.digitalidentity.common.config.modules.AuditLogConfiguration;
+import dk.digitalidentity.common.dao.model.AuditLog;
+import dk.digitalidentity.common.dao.model.AuditLogDetail;
+import dk.digitalidentity.common.dao.model.enums.AuditLogRetention;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes auditlogs to the database in batches from a single background thread, so request threads do not
+ * pay for the INSERTs. Auditlogs are written in the order they are queued, so the auditlogs for a single
+ * correlationId keep their order. When the queue is full, the caller waits a short while, and then writes
+ * the auditlog itself rather than dropping it. On shutdown the queue is drained before the application stops.
+ */
+@Slf4j
+@Component
+public class AuditLogWriter {
+	private static final String INSERT_DETAIL = "INSERT INTO auditlogs_details (tts, retention_class, detail_type, detail_content, detail_supplement) VALUES (?, ?, ?, ?, ?)";
+	// the count is bound twice instead of using VALUES(login_count), which is deprecated in MySQL, while the row alias syntax that replaces it is not supported by MariaDB
+	private static final String UPSERT_LOGIN_STATISTIC = "INSERT INTO login_statistics (tts, log_action, login_count) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE login_count = login_count + ?";
+	private static final String INSERT_AUDITLOG = "INSERT INTO auditlogs (tts, ip_address, location, correlation_id, person_id, person_name, person_domain, cpr, performer_id, performer_name, log_action, message, auditlogs_details_id, retention_class) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	@Qualifier("defaultTemplate")
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private CommonConfiguration commonConfiguration;
+
+	private TransactionTemplate transactionTemplate;
+	private BlockingQueue<PendingAuditLog> queue;
+	private Thread writerThread;
+	private volatile boolean running;
+
+	@PostConstruct
+	public void init() {
+		// always a separate transaction, so a failed auditlog never marks the caller's transaction as rollback-only
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		AuditLogConfiguration config = commonConfiguration.getAuditLog();
+		if (!config.isAsyncEnabled()) {
+			log.info("Asynchronous auditlog writer disabled, auditlogs are written on the calling thread");
+			return;
+		}
+
+		queue = new LinkedBlockingQueue<>(config.getQueueSize());
+		running = true;
+
+		writerThread = new Thread(this::run, "auditlog-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (writerThread == null) {
+			return;
+		}
+
+		// anything logged from here on is written on the calling thread
+		running = false;
+
+		try {
+			writerThread.join(commonConfiguration.getAuditLog().getShutdownTimeoutMs());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		// if the writer did not finish in time, write whatever is left ourselves
+		List<PendingAuditLog> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty()) {
+			log.warn("Auditlog writer did not drain the queue in time, writing " + remaining.size() + " remaining auditlogs on shutdown");
+			write(remaining);
+		}
+	}
+
+	public void enqueue(AuditLog auditLog) {
+		enqueue(Collections.singletonList(auditLog));
+	}
+
+	public void enqueue(List<AuditLog> auditLogs) {
+		if (auditLogs.isEmpty()) {
+			return;
+		}
+
+		// copy the values now, the entities (and their lazy relations) should not be touched from the writer thread
+		List<PendingAuditLog> pending = new ArrayList<>(auditLogs.size());
+		for (AuditLog auditLog : auditLogs) {
+			pending.add(new PendingAuditLog(auditLog));
+		}
+
+		if (!running) {
+			write(pending);
+			return;
+		}
+
+		long timeout = commonConfiguration.getAuditLog().getEnqueueTimeoutMs();
+		for (PendingAuditLog pendingAuditLog : pending) {
+			boolean queued = false;
+
+			try {
+				queued = queue.offer(pendingAuditLog, timeout, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (!queued) {
+				log.warn("Auditlog queue is full, writing auditlog on the calling thread");
+				write(Collections.singletonList(pendingAuditLog));
+			}
+		}
+	}
+
+	private void run() {
+		AuditLogConfiguration config = commonConfiguration.getAuditLog();
+		List<PendingAuditLog> batch = new ArrayList<>(config.getBatchSize());
+
+		// keep going until we are stopped AND the queue is empty, so an orderly shutdown does not lose anything
+		while (running || !queue.isEmpty()) {
+			try {
+				PendingAuditLog first = queue.poll(config.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				batch.add(first);
+
+				// give the batch a chance to fill up, but never keep the first auditlog waiting longer than the flush interval
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMs());
+				while (batch.size() < config.getBatchSize()) {
+					queue.drainTo(batch, config.getBatchSize() - batch.size());
+					if (batch.size() >= config.getBatchSize() || !running) {
+						break;
+					}
+
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+
+					PendingAuditLog next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+
+					batch.add(next);
+				}
+
+				write(batch);
+			}
+			catch (InterruptedException ex) {
+				log.warn("Auditlog writer interrupted");
+				write(batch);
+			}
+			catch (Exception ex) {
+				log.error("Auditlog writer failed", ex);
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<PendingAuditLog> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		try {
+			insert(batch);
+		}
+		catch (Exception ex) {
+			if (batch.size() == 1) {
+				log.error("Failed to write auditlog: " + batch.get(0).logAction() + " / " + batch.get(0).correlationId(), ex);
+				return;
+			}
+
+			// a single bad row fails the whole batch, so retry one by one to only lose the bad row(s)
+			log.warn("Failed to write batch of " + batch.size() + " auditlogs, retrying one at a time", ex);
+
+			for (PendingAuditLog pendingAuditLog : batch) {
+				write(Collections.singletonList(pendingAuditLog));
+			}
+		}
+	}
+
+	private void insert(List<PendingAuditLog> batch) {
+		transactionTemplate.executeWithoutResult(status -> {
+			Long[] detailIds = insertDetails(batch);
+
+			jdbcTemplate.batchUpdate(INSERT_AUDITLOG, new BatchPreparedStatementSetter() {
+
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					PendingAuditLog auditLog = batch.get(i);
+
+					ps.setTimestamp(1, Timestamp.valueOf(auditLog.tts()));
+					ps.setString(2, auditLog.ipAddress());
+					ps.setString(3, auditLog.location());
+					ps.setString(4, auditLog.correlationId());
+					setLong(ps, 5, auditLog.personId());
+					ps.setString(6, auditLog.personName());
+					ps.setString(7, auditLog.personDomain());
+					ps.setString(8, auditLog.cpr());
+					setLong(ps, 9, auditLog.performerId());
+					ps.setString(10, auditLog.performerName());
+					ps.setString(11, auditLog.logAction());
+					ps.setString(12, auditLog.message());
+					setLong(ps, 13, detailIds[i]);
+					ps.setInt(14, auditLog.retentionClass());
+				}
+
+				@Override
+				public int getBatchSize() {
+					return batch.size();
+				}
+			});
+		});
+
+		warnIfLate(batch);
+		updateLoginStatistics(batch);
+	}
+
+	private void warnIfLate(List<PendingAuditLog> batch) {
+		LocalDateTime oldest = batch.stream().map(PendingAuditLog::tts).min(Comparator.naturalOrder()).orElse(null);
+		long maxWriteDelayMs = commonConfiguration.getAuditLog().getMaxWriteDelayMs();
+
+		if (oldest != null && oldest.isBefore(LocalDateTime.now().minus(maxWriteDelayMs, ChronoUnit.MILLIS))) {
+			log.warn("Committed " + batch.size() + " auditlogs more than " + maxWriteDelayMs + " ms after they were logged (oldest " + oldest + "), readers of the auditlog stream may have skipped them");
+		}
+	}
+
+	// counted per batch in a short transaction of its own, after the auditlogs are committed. The current minute is updated by every
+	// batch on every node, so keeping its row lock out of the (much longer) auditlog transaction keeps the writers from queueing up behind
+	// each other, and the rows are always updated in the same order, so two writers cannot deadlock on them
+	private void updateLoginStatistics(List<PendingAuditLog> batch) {
+		Map<LoginStatisticKey, Long> counts = new TreeMap<>(LoginStatisticKey.ORDER);
+
+		for (PendingAuditLog auditLog : batch) {
+			if (auditLog.retentionClass() == AuditLogRetention.LOGIN.getRetentionClass()) {
+				counts.merge(new LoginStatisticKey(auditLog.tts().truncatedTo(ChronoUnit.MINUTES), auditLog.logAction()), 1L, Long::sum);
+			}
+		}
+
+		if (counts.isEmpty()) {
+			return;
+		}
+
+		List<Object[]> args = new ArrayList<>(counts.size());
+		for (Map.Entry<LoginStatisticKey, Long> entry : counts.entrySet()) {
+			args.add(new Object[] { Timestamp.valueOf(entry.getKey().tts()), entry.getKey().logAction(), entry.getValue(), entry.getValue() });
+		}
+
+		// the auditlogs are already committed, so a failure here must not make write() retry (and duplicate) them
+		try {
+			transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(UPSERT_LOGIN_STATISTIC, args));
+		}
+		catch (Exception ex) {
+			log.error("Failed to update login statistics for " + batch.size() + " auditlogs", ex);
+		}
+	}
+
+	private Long[] insertDetails(List<PendingAuditLog> batch) {
+		Long[] detailIds = new Long[batch.size()];
+
+		List<Integer> indexes = new ArrayList<>();
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.get(i).hasDetails()) {
+				indexes.add(i);
+			}
+		}
+
+		if (indexes.isEmpty()) {
+			return detailIds;
+		}
+
+		GeneratedKeyHolder keyHolder = new GeneratedKeyHolder();
+		jdbcTemplate.batchUpdate(con -> con.prepareStatement(INSERT_DETAIL, Statement.RETURN_GENERATED_KEYS), new BatchPreparedStatementSetter() {
+
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				PendingAuditLog auditLog = batch.get(indexes.get(i));
+
+				// same tts and retention_class as the auditlog, so the details end up in the partition with the same name
+				ps.setTimestamp(1, Timestamp.valueOf(auditLog.tts()));
+				ps.setInt(2, auditLog.retentionClass());
+				ps.setString(3, auditLog.detailType());
+				ps.setString(4, auditLog.detailContent());
+				ps.setString(5, auditLog.detailSupplement());
+			}
+
+			@Override
+			public int getBatchSize() {
+				return indexes.size();
+			}
+		}, keyHolder);
+
+		List<Map<String, Object>> keys = keyHolder.getKeyList();
+		if (keys.size() != indexes.size()) {
+			throw new IllegalStateException("Expected " + indexes.size() + " generated keys for auditlogs_details, got " + keys.size());
+		}
+
+		for (int i = 0; i < indexes.size(); i++) {
+			detailIds[indexes.get(i)] = ((Number) keys.get(i).values().iterator().next()).longValue();
+		}
+
+		return detailIds;
+	}
+
+	private static void setLong(PreparedStatement ps, int index, Long value) throws SQLException {
+		if (value != null) {
+			ps.setLong(index, value);
+		}
+		else {
+			ps.setNull(index, Types.BIGINT);
+		}
+	}
+
+	private record LoginStatisticKey(LocalDateTime tts, String logAction) {
+		static final Comparator<LoginStatisticKey> ORDER = Comparator.comparing(LoginStatisticKey::tts).thenComparing(LoginStatisticKey::logAction, Comparator.nullsFirst(Comparator.naturalOrder()));
+	}
+
+	private record PendingAuditLog(LocalDateTime tts, String ipAddress, String location, String correlationId, Long personId, String personName, String personDomain,
+			String cpr, Long performerId, String performerName, String logAction, int retentionClass, String message, boolean hasDetails, String detailType, String detailContent, String detailSupplement) {
+
+		PendingAuditLog(AuditLog auditLog) {
+			this(auditLog.getTts() != null ? auditLog.getTts() : LocalDateTime.now(),
+				auditLog.getIpAddress(),
+				auditLog.getLocation(),
+				auditLog.getCorrelationId(),
+				auditLog.getPerson() != null ? auditLog.getPerson().getId() : null,
+				auditLog.getPersonName(),
+				auditLog.getPersonDomain(),
+				auditLog.getCpr(),
+				auditLog.getPerformerId(),
+				auditLog.getPerformerName(),
+				auditLog.getLogAction() != null ? auditLog.getLogAction().name() : null,
+				AuditLogRetention.of(auditLog.getLogAction()).getRetentionClass(),
+				auditLog.getMessage(),
+				auditLog.getDetails() != null,
+				detailType(auditLog.getDetails()),
+				auditLog.getDetails() != null ? auditLog.getDetails().getStoredDetailContent() : null,
+				auditLog.getDetails() != null ? auditLog.getDetails().getDetailSupplement() : null);
+		}
+
+		private static String detailType(AuditLogDetail detail) {
+			if (detail == null || detail.getStoredDetailType() == null) {
+				return null;
+			}
+
+			return detail.getStoredDetailType().name();
+		}
+	}
+}
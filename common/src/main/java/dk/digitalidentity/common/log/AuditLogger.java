@@ -1,11 +1,12 @@
 package dk.digitalidentity.common.log;
 
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.UUID;
 
@@ -14,17 +15,20 @@ import org.springframework.context.MessageSource;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 import dk.digitalidentity.common.config.CommonConfiguration;
 import dk.digitalidentity.common.config.Constants;
 import dk.digitalidentity.common.dao.AuditLogDao;
+import dk.digitalidentity.common.dao.LoginStatisticDao;
 import dk.digitalidentity.common.dao.model.AuditLog;
 import dk.digitalidentity.common.dao.model.AuditLogDetail;
 import dk.digitalidentity.common.dao.model.Domain;
@@ -35,6 +39,7 @@ import dk.digitalidentity.common.dao.model.SessionSetting;
 import dk.digitalidentity.common.dao.model.TUTermsAndConditions;
 import dk.digitalidentity.common.dao.model.TemporaryClientSessionKey;
 import dk.digitalidentity.common.dao.model.TermsAndConditions;
+import dk.digitalidentity.common.dao.model.enums.AuditLogRetention;
 import dk.digitalidentity.common.dao.model.enums.DetailType;
 import dk.digitalidentity.common.dao.model.enums.ForceMFARequired;
 import dk.digitalidentity.common.dao.model.enums.LogAction;
@@ -55,9 +60,30 @@ import lombok.extern.slf4j.Slf4j;
 @Component
 @Slf4j
 public class AuditLogger {
+	private static final String CORRELATION_ID_CACHE = AuditLogger.class.getName() + ".CORRELATION_ID";
+
+	// ObjectMapper and ObjectWriter are thread-safe once configured, so there is no need to create them for every auditlog
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+	private static final ObjectWriter JSON_WRITER = OBJECT_MAPPER.writerWithDefaultPrettyPrinter();
+
+	// MessageDigest is not thread-safe, but digest() resets it, so each thread can keep reusing its own instance
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	});
 
 	@Autowired
 	private AuditLogDao auditLogDao;
+
+	@Autowired
+	private AuditLogWriter auditLogWriter;
+
+	@Autowired
+	private LoginStatisticDao loginStatisticDao;
 	
 	@Autowired
 	private LogWatchSettingService logWatchSettingService;
@@ -87,10 +113,7 @@ public class AuditLogger {
 
 		detail.setDetailType(DetailType.JSON);
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			auditLog.getDetails().setDetailContent(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(errorDetail));
+			auditLog.getDetails().setDetailContent(JSON_WRITER.writeValueAsString(errorDetail));
 		}
 		catch (JsonProcessingException e) {
 			log.error("Could not serialize ErrorDetail");
@@ -282,7 +305,7 @@ public class AuditLogger {
 			logs.add(auditLog);
 		}
 
-		auditLogDao.saveAll(logs);
+		auditLogWriter.enqueue(logs);
 	}
 	
 	public void addedToDataset(Person person) {
@@ -378,7 +401,7 @@ public class AuditLogger {
 			}
 		}
 
-		auditLogDao.saveAll(logs);
+		auditLogWriter.enqueue(logs);
 	}
 
 	public void loginStudentPasswordChange(String parentCpr) {
@@ -632,10 +655,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(details);
+			String json = JSON_WRITER.writeValueAsString(details);
 			auditLog.getDetails().setDetailContent(json);
 		}
 		catch (JsonProcessingException ex) {
@@ -654,10 +674,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(details);
+			String json = JSON_WRITER.writeValueAsString(details);
 			auditLog.getDetails().setDetailContent(json);
 		}
 		catch (JsonProcessingException ex) {
@@ -676,10 +693,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(details);
+			String json = JSON_WRITER.writeValueAsString(details);
 			auditLog.getDetails().setDetailContent(json);
 		}
 		catch (JsonProcessingException ex) {
@@ -698,10 +712,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(details);
+			String json = JSON_WRITER.writeValueAsString(details);
 			auditLog.getDetails().setDetailContent(json);
 		}
 		catch (JsonProcessingException ex) {
@@ -722,10 +733,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(details);
+			String json = JSON_WRITER.writeValueAsString(details);
 			auditLog.getDetails().setDetailContent(json);
 		}
 		catch (JsonProcessingException ex) {
@@ -799,10 +807,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			auditLog.getDetails().setDetailContent(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(passwordSettings));
+			auditLog.getDetails().setDetailContent(JSON_WRITER.writeValueAsString(passwordSettings));
 		}
 		catch (JsonProcessingException e) {
 			log.error("Could not serialize PasswordSettings", e);
@@ -842,10 +847,7 @@ public class AuditLogger {
 		auditLog.getDetails().setDetailType(DetailType.JSON);
 
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-
-			auditLog.getDetails().setDetailContent(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(sessionSettings));
+			auditLog.getDetails().setDetailContent(JSON_WRITER.writeValueAsString(sessionSettings));
 		} catch (JsonProcessingException e) {
 			log.error("Could not serialize SessionSettings");
 		}
@@ -1037,11 +1039,9 @@ public class AuditLogger {
 		auditLog.setLogAction(LogAction.OIDC_JWT_ID_TOKEN);
 		auditLog.setMessage("OpenID Connect token udstedt");
 
-		ObjectMapper objectMapper = new ObjectMapper();
 		try {
-			objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-			JsonNode jsonNode = objectMapper.readTree(idToken);
-			idToken = objectMapper.writeValueAsString(jsonNode);
+			JsonNode jsonNode = OBJECT_MAPPER.readTree(idToken);
+			idToken = JSON_WRITER.writeValueAsString(jsonNode);
 		}
 		catch (Exception ignored) {
 			;
@@ -1363,37 +1363,29 @@ public class AuditLogger {
 			}
 		}
 
-		auditLogDao.save(auditLog);
+		auditLogWriter.enqueue(auditLog);
 	}
 
 	private String getCorrelationId() {
 		try {
-			String sessionID = RequestContextHolder.currentRequestAttributes().getSessionId();
-			
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] encodedHash = digest.digest(sessionID.getBytes(Charset.forName("UTF-8")));
-
-			return bytesToHex(encodedHash);
-		}
-		catch (Exception ex) {
-			return "SYSTEM-" + UUID.randomUUID().toString();
-		}
-	}
+			RequestAttributes requestAttributes = RequestContextHolder.currentRequestAttributes();
+			String sessionID = requestAttributes.getSessionId();
 
-	private static String bytesToHex(byte[] hash) {
-		StringBuilder hexString = new StringBuilder(2 * hash.length);
+			// the hash is computed once per request, and recomputed if the session id changes during the request (e.g. on login)
+			if (requestAttributes.getAttribute(CORRELATION_ID_CACHE, RequestAttributes.SCOPE_REQUEST) instanceof CorrelationId cached && cached.sessionId().equals(sessionID)) {
+				return cached.correlationId();
+			}
 
-		for (int i = 0; i < hash.length; i++) {
-			String hex = Integer.toHexString(0xff & hash[i]);
+			MessageDigest digest = SHA256.get();
+			String correlationId = HexFormat.of().formatHex(digest.digest(sessionID.getBytes(StandardCharsets.UTF_8)));
 
-			if (hex.length() == 1) {
-				hexString.append('0');
-			}
+			requestAttributes.setAttribute(CORRELATION_ID_CACHE, new CorrelationId(sessionID, correlationId), RequestAttributes.SCOPE_REQUEST);
 
-			hexString.append(hex);
+			return correlationId;
+		}
+		catch (Exception ex) {
+			return "SYSTEM-" + UUID.randomUUID().toString();
 		}
-
-		return hexString.toString();
 	}
 
 	private static String getIpAddress() {
@@ -1421,30 +1413,34 @@ public class AuditLogger {
 
 	@Transactional(rollbackFor = Exception.class)
 	public void cleanupLoginLogs() {
-		LocalDateTime now = LocalDateTime.now();
-		LocalDateTime tts = now.plusMonths(-3);
+		LocalDateTime tts = AuditLogRetention.LOGIN.getCutoff(LocalDateTime.now());
 	
 		auditLogDao.deleteLoginsByTtsBefore(tts);
+		loginStatisticDao.deleteByTtsBefore(tts);
 	}
 
 	@Transactional(rollbackFor = Exception.class)
 	public void cleanupLogs() {
-		LocalDateTime now = LocalDateTime.now();
-		LocalDateTime tts = now.plusMonths(-13);
+		LocalDateTime tts = AuditLogRetention.GENERAL.getCutoff(LocalDateTime.now());
 	
 		auditLogDao.deleteByTtsBefore(tts);
 	}
 
 	@Transactional(rollbackFor = Exception.class)
 	public void cleanupTraceLogs() {
-		LocalDateTime now = LocalDateTime.now();
-		LocalDateTime tts = now.minusDays(14);
+		LocalDateTime tts = AuditLogRetention.TRACE.getCutoff(LocalDateTime.now());
 
 		auditLogDao.deleteTraceLogsByTtsBefore(tts);
 	}
 	
 	@Transactional(rollbackFor = Exception.class)
 	public void deleteUnreferencedAuditlogDetails() {
-		auditLogDao.deleteUnreferencedAuditlogDetails();
+		// every auditlog is kept at least as long as the shortest retention (trace), and a detail has the same tts as its auditlog, so only
+		// details older than that can be unreferenced - if a retention shorter than trace is ever added, this must use that one instead
+		LocalDateTime tts = AuditLogRetention.TRACE.getCutoff(LocalDateTime.now());
+
+		auditLogDao.deleteUnreferencedAuditlogDetails(tts);
 	}
+
+	private record CorrelationId(String sessionId, String correlationId) { }
 }
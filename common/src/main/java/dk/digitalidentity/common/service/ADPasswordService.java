@@ -4,10 +4,15 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.crypto.BadPaddingException;
@@ -22,8 +27,11 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -38,6 +46,8 @@ import dk.digitalidentity.common.service.model.ADPasswordRequest;
 import dk.digitalidentity.common.service.model.ADPasswordResponse;
 import dk.digitalidentity.common.service.model.ADPasswordResponse.ADPasswordStatus;
 import dk.digitalidentity.common.service.model.UnlockADAccountRequest;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 @EnableScheduling
@@ -45,8 +55,11 @@ import lombok.extern.slf4j.Slf4j;
 @Service
 public class ADPasswordService {
 	private RestTemplate restTemplate = new RestTemplate();
-	private Map<String, Integer> flaggedWebsocketDomains = new HashMap<>();
-	private Map<String, Integer> websocketMaxConnections = new HashMap<>();
+	private Map<String, Integer> flaggedWebsocketDomains = new ConcurrentHashMap<>();
+	private Map<String, Integer> websocketMaxConnections = new ConcurrentHashMap<>();
+	private Set<String> domainsInProgress = ConcurrentHashMap.newKeySet();
+	private ThreadPoolTaskExecutor syncExecutor;
+	private TransactionTemplate transactionTemplate;
 
 	@Autowired
 	private CommonConfiguration configuration;
@@ -62,11 +75,32 @@ public class ADPasswordService {
 	
 	@Autowired
 	private PersonService personService;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@PostConstruct
+	public void init() {
+		transactionTemplate = new TransactionTemplate(transactionManager);
+
+		syncExecutor = new ThreadPoolTaskExecutor();
+		syncExecutor.setCorePoolSize(configuration.getAd().getSyncThreads());
+		syncExecutor.setMaxPoolSize(configuration.getAd().getSyncThreads());
+		syncExecutor.setThreadNamePrefix("ad-password-sync-");
+		syncExecutor.setWaitForTasksToCompleteOnShutdown(true);
+		syncExecutor.setAwaitTerminationSeconds(30);
+		syncExecutor.initialize();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		syncExecutor.shutdown();
+	}
 	
 	// clear max values at 02:00 every night
 	@Scheduled(cron = "0 2 * * * *")
 	public void resetCount() {
-		websocketMaxConnections = new HashMap<>();
+		websocketMaxConnections.clear();
 	}
 
 	public boolean monitorConnection(String domain) {
@@ -110,13 +144,8 @@ public class ADPasswordService {
 	
 	public Pair<Integer, Integer> getWebsocketSessionCountPair(String domain) {
 		Integer current = getWebsocketSessionCount(domain);
-		Integer currentMax = websocketMaxConnections.get(domain);
+		Integer currentMax = websocketMaxConnections.merge(domain, current, Math::max);
 
-		if (currentMax == null || current > currentMax) {
-			websocketMaxConnections.put(domain, current);
-			currentMax = current;
-		}
-		
 		return Pair.of(current, currentMax);
 	}
 
@@ -199,15 +228,62 @@ public class ADPasswordService {
 		}
 	}
 
-	@Transactional(rollbackFor = Exception.class)
+	/**
+	 * Replicates the queued password changes. The changes are grouped by domain, and each domain is processed by its own thread(s),
+	 * each change in its own transaction, so a slow or disconnected agent only delays the changes for its own domain. A domain that
+	 * is still being processed from an earlier run is skipped, its changes are picked up again on the next run after it completes.
+	 */
 	public void syncPasswordsToAD() {
 
+		// the changes are grouped and validated in a transaction, as that navigates lazy associations (e.g. the parent domain), but the
+		// calls to the websocket service and the AD agents are made outside of it, so the connection is not held while waiting for them
+		Map<String, List<Pair<Person, PasswordChangeQueue>>> changesByDomain = transactionTemplate.execute(status -> groupChanges());
+		if (changesByDomain == null) {
+			return;
+		}
+
+		for (Map.Entry<String, List<Pair<Person, PasswordChangeQueue>>> entry : changesByDomain.entrySet()) {
+			String domainName = entry.getKey();
+
+			// partition the changes by account, so changes for the same account are replicated in order, by the same thread
+			List<List<Pair<Person, PasswordChangeQueue>>> lanes = new ArrayList<>();
+			int laneCount = getLaneCount(domainName, entry.getValue().size());
+			for (int i = 0; i < laneCount; i++) {
+				lanes.add(new ArrayList<>());
+			}
+
+			for (Pair<Person, PasswordChangeQueue> pair : entry.getValue()) {
+				lanes.get(Math.floorMod(pair.getSecond().getSamaccountName().toLowerCase().hashCode(), laneCount)).add(pair);
+			}
+
+			lanes.removeIf(List::isEmpty);
+
+			domainsInProgress.add(domainName);
+
+			CompletableFuture<?>[] futures = lanes.stream().map(lane -> CompletableFuture.runAsync(() -> replicate(lane), syncExecutor)).toArray(CompletableFuture[]::new);
+			CompletableFuture.allOf(futures).whenComplete((result, ex) -> {
+				domainsInProgress.remove(domainName);
+
+				if (ex != null) {
+					log.error("Password replication failed for domain " + domainName, ex);
+				}
+			});
+		}
+	}
+
+	private Map<String, List<Pair<Person, PasswordChangeQueue>>> groupChanges() {
+		Map<String, List<Pair<Person, PasswordChangeQueue>>> result = new HashMap<>();
+
 		// Load all settings once to minimize calls to the database
 		List<PasswordSetting> allSettings = passwordSettingService.getAllSettings();
 		Map<Domain, PasswordSetting> passwordSettingMap = allSettings.stream().collect(Collectors.toMap(PasswordSetting::getDomain, passwordSetting -> passwordSetting));
 
+		Map<String, Domain> domains = new HashMap<>();
+		Map<String, Domain> replicationDomains = new HashMap<>();
+		Map<String, List<PasswordChangeQueue>> changesByDomain = new HashMap<>();
+
 		for (PasswordChangeQueue change : passwordChangeQueueService.getUnsynchronized()) {
-			Domain domain = domainService.getByName(change.getDomain());
+			Domain domain = domains.computeIfAbsent(change.getDomain(), domainService::getByName);
 			if (domain == null) {
 				log.error("Unrecognized domain, skipping. changeId: " + change.getId());
 				change.setMessage("Unknown domain");
@@ -239,23 +315,93 @@ public class ADPasswordService {
 				continue;
 			}
 
-			// make sure we have a pointer to the right person
-			final Domain fDomain = domain;
-			List<Person> persons = personService.getBySamaccountName(change.getSamaccountName());
-			persons = persons.stream().filter(p -> Objects.equals(p.getTopLevelDomain().getId(), fDomain.getId())).collect(Collectors.toList());
-
-			if (persons.size() == 0) {
-				log.error("Person did not exist in database for userId=" + change.getSamaccountName());
-				change.setMessage("Missing person in database");
-				change.setStatus(ReplicationStatus.FINAL_ERROR);
-				passwordChangeQueueService.save(change, false);
+			if (domainsInProgress.contains(domain.getName())) {
 				continue;
 			}
 
-			attemptPasswordReplication(persons.get(0), change);
+			replicationDomains.put(domain.getName(), domain);
+			changesByDomain.computeIfAbsent(domain.getName(), d -> new ArrayList<>()).add(change);
+		}
 
-			passwordChangeQueueService.save(change, ReplicationStatus.SYNCHRONIZED.equals(change.getStatus()));
+		if (changesByDomain.isEmpty()) {
+			return result;
 		}
+
+		// make sure we have a pointer to the right person - looked up for all changes at once (samaccountName is case insensitive in the database)
+		Set<String> samaccountNames = changesByDomain.values().stream().flatMap(List::stream).map(PasswordChangeQueue::getSamaccountName).collect(Collectors.toSet());
+		Map<String, List<Person>> personsBySamaccountName = new HashMap<>();
+		List<String> samaccountNameList = new ArrayList<>(samaccountNames);
+		for (int i = 0; i < samaccountNameList.size(); i += 500) {
+			for (Person person : personService.getBySamaccountNames(samaccountNameList.subList(i, Math.min(i + 500, samaccountNameList.size())))) {
+				personsBySamaccountName.computeIfAbsent(person.getSamaccountName().toLowerCase(), s -> new ArrayList<>()).add(person);
+			}
+		}
+
+		for (Map.Entry<String, List<PasswordChangeQueue>> entry : changesByDomain.entrySet()) {
+			String domainName = entry.getKey();
+			Domain domain = replicationDomains.get(domainName);
+
+			List<Pair<Person, PasswordChangeQueue>> changes = new ArrayList<>();
+
+			entry.getValue().sort(Comparator.comparing(PasswordChangeQueue::getId));
+			for (PasswordChangeQueue change : entry.getValue()) {
+				Person person = personsBySamaccountName.getOrDefault(change.getSamaccountName().toLowerCase(), List.of()).stream()
+						.filter(p -> Objects.equals(p.getTopLevelDomain().getId(), domain.getId()))
+						.findFirst()
+						.orElse(null);
+
+				if (person == null) {
+					log.error("Person did not exist in database for userId=" + change.getSamaccountName());
+					change.setMessage("Missing person in database");
+					change.setStatus(ReplicationStatus.FINAL_ERROR);
+					passwordChangeQueueService.save(change, false);
+					continue;
+				}
+
+				changes.add(Pair.of(person, change));
+			}
+
+			if (!changes.isEmpty()) {
+				result.put(domainName, changes);
+			}
+		}
+
+		return result;
+	}
+
+	private void replicate(List<Pair<Person, PasswordChangeQueue>> lane) {
+		for (Pair<Person, PasswordChangeQueue> pair : lane) {
+			try {
+				transactionTemplate.executeWithoutResult(status -> {
+
+					// reload the change, it might have been replaced by a newer change for the same account since it was read
+					PasswordChangeQueue change = passwordChangeQueueService.getById(pair.getSecond().getId());
+					if (change == null || ReplicationStatus.SYNCHRONIZED.equals(change.getStatus()) || ReplicationStatus.FINAL_ERROR.equals(change.getStatus())) {
+						return;
+					}
+
+					attemptPasswordReplication(pair.getFirst(), change);
+
+					passwordChangeQueueService.save(change, ReplicationStatus.SYNCHRONIZED.equals(change.getStatus()));
+				});
+			}
+			catch (Exception ex) {
+				log.error("Failed to replicate password change (ID: " + pair.getSecond().getId() + ")", ex);
+			}
+		}
+	}
+
+	// a domain with a single change gets a single thread, otherwise one per connected agent, up to the configured limit
+	private int getLaneCount(String domain, int changes) {
+		int maxParallel = Math.min(changes, configuration.getAd().getSyncMaxParallelPerDomain());
+		if (maxParallel <= 1) {
+			return 1;
+		}
+
+		int sessions = getWebsocketSessionCount(domain);
+		websocketMaxConnections.merge(domain, sessions, Math::max);
+
+		return Math.max(1, Math.min(maxParallel, sessions));
 	}
 
 	public ADPasswordResponse.ADPasswordStatus attemptPasswordReplication(Person person, PasswordChangeQueue change) {
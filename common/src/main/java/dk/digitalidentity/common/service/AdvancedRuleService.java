@@ -6,6 +6,10 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
@@ -16,69 +20,64 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 @Service
 public class AdvancedRuleService {
+	private static final int MAX_COMPILED_RULES = 10000;
+	private final ConcurrentHashMap<String, RuleNode> compiledRules = new ConcurrentHashMap<>();
 
 	public String lookupField(Person person, String personField) {
-		String attribute = null;
-		
+		return fieldAccessor(personField).apply(person);
+	}
+
+	// resolves the field once, so compiled rules do not have to match the field name on every evaluation
+	private Function<Person, String> fieldAccessor(String personField) {
         switch (personField) {
             case "userId":
             case "sAMAccountName": // TODO: this is deprecated, but we are keeping it to support existing SPs setup with this value until they are migrated
-                attribute = PersonService.getUsername(person);
-                break;
+                return PersonService::getUsername;
             case "uuid":
-                attribute = person.getUuid();
-                break;
+                return Person::getUuid;
             case "cpr":
-                attribute = person.getCpr();
-                break;
+                return Person::getCpr;
             case "name":
-            	attribute = person.getName();
-            	break;
+            	return Person::getName;
             case "alias":
-            	attribute = person.getNameAlias();
-            	break;
+            	return Person::getNameAlias;
             case "email":
-            	attribute = person.getEmail();
-            	break;
+            	return Person::getEmail;
             case "firstname":
-            	try {
-            		int idx = person.getName().lastIndexOf(' ');
-            		
-            		if (idx > 0) {
-            			attribute = person.getName().substring(0, idx);
-            		}
-            		else {
-            			attribute = person.getName();
-            		}
-            	}
-            	catch (Exception ex) {
-            		log.error("Failed to parse name on " + person.getId(), ex);
-            		attribute = person.getName();
-            	}
-            	break;
+            	return person -> {
+	            	try {
+	            		int idx = person.getName().lastIndexOf(' ');
+	            		
+	            		if (idx > 0) {
+	            			return person.getName().substring(0, idx);
+	            		}
+	
+	            		return person.getName();
+	            	}
+	            	catch (Exception ex) {
+	            		log.error("Failed to parse name on " + person.getId(), ex);
+	            		return person.getName();
+	            	}
+            	};
             case "lastname":
-            	try {
-            		int idx = person.getName().lastIndexOf(' ');
-            		
-            		if (idx > 0) {
-            			attribute = person.getName().substring(idx + 1);
-            		}
-            		else {
-            			attribute = person.getName();
-            		}
-            	}
-            	catch (Exception ex) {
-            		log.error("Failed to parse name on " + person.getId(), ex);
-            		attribute = person.getName();
-            	}
-            	break;
+            	return person -> {
+	            	try {
+	            		int idx = person.getName().lastIndexOf(' ');
+	            		
+	            		if (idx > 0) {
+	            			return person.getName().substring(idx + 1);
+	            		}
+	
+	            		return person.getName();
+	            	}
+	            	catch (Exception ex) {
+	            		log.error("Failed to parse name on " + person.getId(), ex);
+	            		return person.getName();
+	            	}
+            	};
             default:
-                if (person.getAttributes() != null) {
-                    attribute = person.getAttributes().get(personField);
-                }
+                return person -> (person.getAttributes() != null) ? person.getAttributes().get(personField) : null;
         }
-        
-        return attribute;
 	}
 	
 	/*
@@ -114,49 +113,120 @@ public class AdvancedRuleService {
 	 */
 	
 	public String evaluateRule(String rule, Person person) throws EvaluationException {
+		return compile(rule).evaluate(person);
+	}
+
+	// called when the configured rules might have changed, so we do not keep compiled versions of rules no longer in use
+	public void clearCompiledRules() {
+		compiledRules.clear();
+	}
+
+	private RuleNode compile(String rule) {
+		RuleNode node = compiledRules.get(rule);
+
+		if (node == null) {
+			// rules tested from the UI also end up here, so make sure the cache cannot grow without bounds
+			if (compiledRules.size() >= MAX_COMPILED_RULES) {
+				compiledRules.clear();
+			}
+
+			node = compileRule(rule);
+			compiledRules.put(rule, node);
+		}
+
+		return node;
+	}
+
+	/*
+	 * Compiles the rule into a tree of nodes that can be evaluated against any person. Syntax errors do not fail the
+	 * compilation, instead they are compiled into a node that throws the error when evaluated, so errors are reported
+	 * in the exact same order (and with the same messages) as when the rule was interpreted directly.
+	 */
+	private RuleNode compileRule(String rule) {
 		
 		// trim before evaluating
 		rule = rule.trim();
-		
-		CommandAndArgument commandAndArgument = extractCommandAndArgument(rule);
-		
+
+		CommandAndArgument commandAndArgument;
+		try {
+			commandAndArgument = extractCommandAndArgument(rule);
+		}
+		catch (EvaluationException ex) {
+			return new ErrorNode(ex.getMessage());
+		}
+
 		switch (commandAndArgument.command) {
 			case "VALUE":
-				return evaluateValue(commandAndArgument.argument, person);
+				return compileValue(commandAndArgument.argument);
 			case "UPPER":
-				return evaluateUpper(commandAndArgument.argument, person);
+				return new UpperNode(compileRule(commandAndArgument.argument.trim()));
 			case "LOWER":
-				return evaluateLower(commandAndArgument.argument, person);
+				return new LowerNode(compileRule(commandAndArgument.argument.trim()));
 			case "JOIN":
-				return evaluateJoin(commandAndArgument.argument, person);
+				return compileJoin(commandAndArgument.argument);
 			case "REGEX_REPLACE":
-				return evaluateRegex(commandAndArgument.argument, person);
+				return compileRegex(commandAndArgument.argument);
 			case "BASE64":
-				return evaluateBase64(commandAndArgument.argument, person);
+				return new Base64Node(compileRule(commandAndArgument.argument.trim()));
 			case "BINARY_UUID":
-				return evaluateBinaryUuid(commandAndArgument.argument, person);
+				return new BinaryUuidNode(compileRule(commandAndArgument.argument.trim()));
 			default:
 				log.error("Should not get here, it should have been handled in extractCommandAndArgument: " + commandAndArgument.command);
-				throw new EvaluationException("Syntaksfejl: Ukendt operation '" + commandAndArgument.command + "'");
+				return new ErrorNode("Syntaksfejl: Ukendt operation '" + commandAndArgument.command + "'");
 		}
 	}
 	
-	private String evaluateRegex(String argument, Person person) throws EvaluationException {
+	private RuleNode compileRegex(String argument) {
 		List<String> tokens = tokenize(argument);
 		if (tokens.size() != 3) {
-			throw new EvaluationException("REGEX_REPLACE tager 3 parametre");
+			return new ErrorNode("REGEX_REPLACE tager 3 parametre");
 		}
 		
-		String source = evaluateRule(tokens.get(0), person);
-		String replacement = evaluateJoin(tokens.get(2), person);
+		RuleNode source = compileRule(tokens.get(0));
+		RuleNode replacement = compileJoin(tokens.get(2));
 		String regEx = tokens.get(1).trim().replace("'", "").trim();
 
-		return source.replaceAll(regEx, replacement);
+		try {
+			return new RegexNode(source, Pattern.compile(regEx), null, replacement);
+		}
+		catch (PatternSyntaxException ex) {
+			return new RegexNode(source, null, ex, replacement);
+		}
 	}
-	
-	private String evaluateBinaryUuid(String argument, Person person) throws EvaluationException {
-		String value = evaluateRule(argument.trim(), person);
 
+	private RuleNode compileJoin(String argument) {
+		List<RuleNode> nodes = new ArrayList<>();
+
+		List<String> tokens = tokenize(argument);
+		for (String token : tokens) {
+			token = token.trim();
+			if (!StringUtils.hasLength(token)) {
+				continue;
+			}
+			
+			nodes.add(compileRule(token));
+		}
+
+		return new JoinNode(nodes);
+	}
+
+	private RuleNode compileValue(String argument) {
+		if (argument.startsWith("'")) {
+			int stop = argument.lastIndexOf("'");
+			if (stop < 1) {
+				return new ErrorNode("Syntaksfejl: Input til VALUE skal indeholde både en start og stop ' karakter for faste værdier");
+			}
+			
+			return new LiteralNode(argument.substring(1, stop));
+		}
+		else if (argument.startsWith("user.")) {
+			return new FieldNode(fieldAccessor(argument.substring(5)));
+		}
+		
+		return new ErrorNode("Syntaksfejl: Input til VALUE ikke lovligt '" + argument + "'");
+	}
+
+	private static String binaryUuid(String value) throws EvaluationException {
 		if (!StringUtils.hasLength(value)) {
 			return value;
 		}
@@ -172,7 +242,7 @@ public class AdvancedRuleService {
 		return base64EncodeUuid(uuid);
 	}
 
-	private String base64EncodeUuid(String uuidStr) {
+	private static String base64EncodeUuid(String uuidStr) {
 		UUID uuid = UUID.fromString(uuidStr);
 		ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
 		bb.putLong(uuid.getMostSignificantBits());
@@ -194,32 +264,6 @@ public class AdvancedRuleService {
 		return Base64.getEncoder().encodeToString(guidBytes);
 	}
 
-	private String evaluateBase64(String argument, Person person) throws EvaluationException {
-		String value = evaluateRule(argument.trim(), person);
-
-		if (!StringUtils.hasLength(value)) {
-			return value;
-		}
-
-		return Base64.getEncoder().encodeToString(value.getBytes());
-	}
-
-	private String evaluateJoin(String argument, Person person) throws EvaluationException {
-		StringBuilder builder = new StringBuilder();
-		
-		List<String> tokens = tokenize(argument);
-		for (String token : tokens) {
-			token = token.trim();
-			if (!StringUtils.hasLength(token)) {
-				continue;
-			}
-			
-			builder.append(evaluateRule(token, person));
-		}
-
-		return builder.toString();
-	}
-
 	private List<String> tokenize(String argument) {
 		List<String> result = new ArrayList<>();
 		
@@ -260,41 +304,6 @@ public class AdvancedRuleService {
 		return result;
 	}
 
-	private String evaluateLower(String argument, Person person) throws EvaluationException {
-		String value = evaluateRule(argument.trim(), person);
-		
-		return value.toLowerCase();
-	}
-
-	private String evaluateUpper(String argument, Person person) throws EvaluationException {
-		String value = evaluateRule(argument.trim(), person);
-		
-		return value.toUpperCase();
-	}
-
-	private String evaluateValue(String argument, Person person) throws EvaluationException {
-		if (argument.startsWith("'")) {
-			int stop = argument.lastIndexOf("'");
-			if (stop < 1) {
-				throw new EvaluationException("Syntaksfejl: Input til VALUE skal indeholde både en start og stop ' karakter for faste værdier");
-			}
-			
-			return argument.substring(1, stop);
-		}
-		else if (argument.startsWith("user.")) {
-			argument = argument.substring(5);
-
-			String value = lookupField(person, argument);
-			if (value == null) {
-				return "";
-			}
-
-			return value;
-		}
-		
-		throw new EvaluationException("Syntaksfejl: Input til VALUE ikke lovligt '" + argument + "'");
-	}
-
 	private CommandAndArgument extractCommandAndArgument(String rule) throws EvaluationException {
 		try {
 			int first = rule.indexOf("(");
@@ -354,4 +363,102 @@ public class AdvancedRuleService {
 		String command;
 		String argument;
 	}
+
+	private interface RuleNode {
+		String evaluate(Person person) throws EvaluationException;
+	}
+
+	private record ErrorNode(String message) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			throw new EvaluationException(message);
+		}
+	}
+
+	private record LiteralNode(String value) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) {
+			return value;
+		}
+	}
+
+	private record FieldNode(Function<Person, String> accessor) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) {
+			String value = accessor.apply(person);
+
+			return (value != null) ? value : "";
+		}
+	}
+
+	private record UpperNode(RuleNode argument) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			return argument.evaluate(person).toUpperCase();
+		}
+	}
+
+	private record LowerNode(RuleNode argument) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			return argument.evaluate(person).toLowerCase();
+		}
+	}
+
+	private record JoinNode(List<RuleNode> arguments) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			StringBuilder builder = new StringBuilder();
+
+			for (RuleNode argument : arguments) {
+				builder.append(argument.evaluate(person));
+			}
+
+			return builder.toString();
+		}
+	}
+
+	private record RegexNode(RuleNode source, Pattern pattern, PatternSyntaxException patternError, RuleNode replacement) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			String sourceValue = source.evaluate(person);
+			String replacementValue = replacement.evaluate(person);
+
+			// an invalid regular expression fails when used, same as it did before rules were compiled
+			if (patternError != null) {
+				throw new PatternSyntaxException(patternError.getDescription(), patternError.getPattern(), patternError.getIndex());
+			}
+
+			return pattern.matcher(sourceValue).replaceAll(replacementValue);
+		}
+	}
+
+	private record Base64Node(RuleNode argument) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			String value = argument.evaluate(person);
+
+			if (!StringUtils.hasLength(value)) {
+				return value;
+			}
+
+			return Base64.getEncoder().encodeToString(value.getBytes());
+		}
+	}
+
+	private record BinaryUuidNode(RuleNode argument) implements RuleNode {
+
+		@Override
+		public String evaluate(Person person) throws EvaluationException {
+			return binaryUuid(argument.evaluate(person));
+		}
+	}
 }
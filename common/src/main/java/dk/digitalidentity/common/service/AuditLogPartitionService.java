@@ -0,0 +1,148 @@
+package dk.digitalidentity.common.service;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import dk.digitalidentity.common.dao.model.enums.AuditLogRetention;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Maintains the partitions on auditlogs and auditlogs_details. Both tables are partitioned by RANGE COLUMNS(retention_class, tts),
+ * with one partition per day/month (see AuditLogRetention) named after its (exclusive) upper bound, e.g. p1_20240131, and a tail
+ * partition per retention class (p1_max) that catches anything not covered by a dated partition.
+ *
+ * Expired partitions are dropped, which is a metadata operation instead of deleting millions of rows one by one, and partitions
+ * for the coming days are split off the tail partition while it is still empty, so that split is cheap as well. The first dated
+ * partition of each retention class is created by the V1_161 migration, which places all historic rows in it, so this job never
+ * moves historic rows.
+ */
+@Slf4j
+@Service
+public class AuditLogPartitionService {
+	private static final String[] TABLES = { "auditlogs", "auditlogs_details" };
+	private static final DateTimeFormatter PARTITION_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+	private static final int FUTURE_DAYS = 7;
+
+	@Qualifier("defaultTemplate")
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	public void maintainPartitions() {
+		LocalDateTime now = LocalDateTime.now();
+
+		for (String table : TABLES) {
+			List<String> partitions = jdbcTemplate.queryForList("SELECT PARTITION_NAME FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL", String.class, table);
+			if (partitions.isEmpty()) {
+				log.warn("Table " + table + " is not partitioned, skipping partition maintenance");
+				continue;
+			}
+
+			for (AuditLogRetention retention : AuditLogRetention.values()) {
+				try {
+					TreeSet<LocalDate> bounds = getBounds(partitions, retention);
+
+					dropExpiredPartitions(table, retention, bounds, now);
+					createFuturePartitions(table, retention, bounds, now.toLocalDate());
+				}
+				catch (Exception ex) {
+					log.error("Partition maintenance failed for " + table + " / " + retention, ex);
+				}
+			}
+		}
+	}
+
+	private void dropExpiredPartitions(String table, AuditLogRetention retention, TreeSet<LocalDate> bounds, LocalDateTime now) {
+		LocalDateTime cutoff = retention.getCutoff(now);
+
+		// a partition only contains rows before its bound, so it can be dropped once the bound itself has expired
+		List<LocalDate> expired = new ArrayList<>();
+		for (LocalDate bound : bounds) {
+			if (!bound.atStartOfDay().isAfter(cutoff)) {
+				expired.add(bound);
+			}
+		}
+
+		if (expired.isEmpty()) {
+			return;
+		}
+
+		String names = expired.stream().map(bound -> partitionName(retention, bound)).collect(Collectors.joining(", "));
+		log.info("Dropping expired partitions on " + table + ": " + names);
+
+		jdbcTemplate.execute("ALTER TABLE " + table + " DROP PARTITION " + names);
+		bounds.removeAll(expired);
+	}
+
+	private void createFuturePartitions(String table, AuditLogRetention retention, TreeSet<LocalDate> bounds, LocalDate today) {
+		// without a dated partition the split would copy every row in the tail partition into the new partitions, which is not
+		// something to do in a nightly job - the migration creates the first dated partition, so this only happens if it was removed
+		if (bounds.isEmpty()) {
+			log.error("No dated partitions on " + table + " for " + retention + ", the tail partition must be reorganized manually");
+			return;
+		}
+
+		LocalDate horizon = today.plusDays(FUTURE_DAYS);
+		LocalDate newest = bounds.last();
+
+		List<LocalDate> newBounds = new ArrayList<>();
+		while (!newest.isAfter(horizon)) {
+			newest = retention.nextBoundary(newest);
+			newBounds.add(newest);
+		}
+
+		if (newBounds.isEmpty()) {
+			return;
+		}
+
+		StringBuilder sql = new StringBuilder("ALTER TABLE " + table + " REORGANIZE PARTITION " + tailName(retention) + " INTO (");
+		for (LocalDate bound : newBounds) {
+			sql.append("PARTITION ").append(partitionName(retention, bound))
+			   .append(" VALUES LESS THAN (").append(retention.getRetentionClass()).append(", '").append(bound).append("'), ");
+		}
+		sql.append("PARTITION ").append(tailName(retention)).append(" VALUES LESS THAN (").append(retention.getRetentionClass()).append(", MAXVALUE))");
+
+		log.info("Creating " + newBounds.size() + " partitions on " + table + " for " + retention + " up to " + newest);
+
+		jdbcTemplate.execute(sql.toString());
+		bounds.addAll(newBounds);
+	}
+
+	private static TreeSet<LocalDate> getBounds(List<String> partitions, AuditLogRetention retention) {
+		String prefix = "p" + retention.getRetentionClass() + "_";
+
+		TreeSet<LocalDate> bounds = new TreeSet<>();
+		for (String partition : partitions) {
+			if (!partition.startsWith(prefix) || partition.equals(tailName(retention))) {
+				continue;
+			}
+
+			try {
+				bounds.add(LocalDate.parse(partition.substring(prefix.length()), PARTITION_NAME_FORMAT));
+			}
+			catch (DateTimeParseException ex) {
+				log.warn("Ignoring unknown auditlog partition: " + partition);
+			}
+		}
+
+		return bounds;
+	}
+
+	private static String partitionName(AuditLogRetention retention, LocalDate bound) {
+		return "p" + retention.getRetentionClass() + "_" + PARTITION_NAME_FORMAT.format(bound);
+	}
+
+	private static String tailName(AuditLogRetention retention) {
+		return "p" + retention.getRetentionClass() + "_max";
+	}
+}
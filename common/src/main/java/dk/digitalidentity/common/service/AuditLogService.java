@@ -93,6 +93,10 @@ public class AuditLogService {
 		return auditLogDao.findFirst500ByLocationNull();
 	}
 	
+	public int setLocationByIpAddressExceptLogins(String ipAddress, String location) {
+		return auditLogDao.updateLocationByIpAddressExceptLogins(ipAddress, location);
+	}
+
 	public void saveAll(List<AuditLog> logs) {
 		auditLogDao.saveAll(logs);
 	}
@@ -132,7 +136,7 @@ public class AuditLogService {
 				parameters, Integer.class);
 	}
 
-	public List<AuditLogDTO> findAllJDBC(Pageable page, LocalDateTime from, LocalDateTime to, ReportType type) {
+	public List<AuditLogDTO> findAllJDBC(AuditLogDTO after, int limit, LocalDateTime from, LocalDateTime to, ReportType type) {
 		List<String> list = new ArrayList<>();
 		for (LogAction logAction : LogAction.values()) {
 			for (ReportType reportType : logAction.getReportTypes()) {
@@ -147,28 +151,16 @@ public class AuditLogService {
 		parameters.addValue("from", Timestamp.valueOf(from), Types.TIMESTAMP);
 		parameters.addValue("to", Timestamp.valueOf(to), Types.TIMESTAMP);
 		parameters.addValue("type", list);
-		parameters.addValue("limit", page.getPageSize());
-		parameters.addValue("offset", page.getOffset());
-				
-		List<AuditLogDTO> auditLogs = namedParameterJdbcTemplate.query(
-				"SELECT a.correlation_id, a.cpr, a.ip_address, a.log_action, a.message, a.performer_name, a.person_name, a.tts, p.samaccount_name FROM auditlogs a LEFT JOIN persons p on p.id = a.person_id WHERE (a.tts BETWEEN :from AND :to) AND (a.log_action IN (:type)) LIMIT :limit OFFSET :offset",
-				parameters, (rs, rowNum) -> mapAuditLogResult(rs));
-		
-		return auditLogs;
+
+		return findPageJDBC(" AND (a.log_action IN (:type))", parameters, after, limit);
 	}
 	
-	public List<AuditLogDTO> findAllJDBC(Pageable page, LocalDateTime from, LocalDateTime to) {
+	public List<AuditLogDTO> findAllJDBC(AuditLogDTO after, int limit, LocalDateTime from, LocalDateTime to) {
 		MapSqlParameterSource parameters = new MapSqlParameterSource();
 		parameters.addValue("from", Timestamp.valueOf(from), Types.TIMESTAMP);
 		parameters.addValue("to", Timestamp.valueOf(to), Types.TIMESTAMP);
-		parameters.addValue("limit", page.getPageSize());
-		parameters.addValue("offset", page.getOffset());
-				
-		List<AuditLogDTO> auditLogs = namedParameterJdbcTemplate.query(
-				"SELECT a.correlation_id, a.cpr, a.ip_address, a.log_action, a.message, a.performer_name, a.person_name, a.tts, p.samaccount_name FROM auditlogs a LEFT JOIN persons p on p.id = a.person_id WHERE (a.tts BETWEEN :from AND :to) LIMIT :limit OFFSET :offset",
-				parameters, (rs, rowNum) -> mapAuditLogResult(rs));
 
-		return auditLogs;
+		return findPageJDBC("", parameters, after, limit);
 	}
 
 	public int countAuditLogsByMonth(LocalDateTime from, LocalDateTime to, LogAction logActionFilter, String messageFilter) {
@@ -191,12 +183,10 @@ public class AuditLogService {
 		return namedParameterJdbcTemplate.queryForObject("SELECT count(*) FROM auditlogs a WHERE (a.tts BETWEEN :from AND :to) " + whereAuditLog + whereMessage, parameters, Integer.class);
 	}
 
-	public List<AuditLogDTO> findAllJDBC(Pageable page, LocalDateTime from, LocalDateTime to, LogAction logActionFilter, String messageFilter) {
+	public List<AuditLogDTO> findAllJDBC(AuditLogDTO after, int limit, LocalDateTime from, LocalDateTime to, LogAction logActionFilter, String messageFilter) {
 		MapSqlParameterSource parameters = new MapSqlParameterSource();
 		parameters.addValue("from", Timestamp.valueOf(from), Types.TIMESTAMP);
 		parameters.addValue("to", Timestamp.valueOf(to), Types.TIMESTAMP);
-		parameters.addValue("limit", page.getPageSize());
-		parameters.addValue("offset", page.getOffset());
 
 		String whereMessage = "";
 		if (StringUtils.hasLength(messageFilter)) {
@@ -210,10 +200,27 @@ public class AuditLogService {
 			whereAuditLog  = " AND (a.log_action = :logAction) ";
 		}
 
-		String sql = "SELECT a.correlation_id, a.cpr, a.ip_address, a.log_action, a.message, a.performer_name, a.person_name, a.tts, p.samaccount_name FROM auditlogs a LEFT JOIN persons p on p.id = a.person_id WHERE (a.tts BETWEEN :from AND :to) " + whereAuditLog + whereMessage + " LIMIT :limit OFFSET :offset";
-		List<AuditLogDTO> auditLogs = namedParameterJdbcTemplate.query(sql, parameters, (rs, rowNum) -> mapAuditLogResult(rs));
-		
-		return auditLogs;
+		return findPageJDBC(whereAuditLog + whereMessage, parameters, after, limit);
+	}
+
+	/**
+	 * Reads the next page of auditlogs in (tts, id) order, starting right after the given auditlog (or from the beginning if null).
+	 * Seeking past the last row of the previous page keeps the cost of each page constant, where OFFSET would re-read and discard
+	 * all the previous pages, making a full export quadratic in the number of rows.
+	 */
+	private List<AuditLogDTO> findPageJDBC(String where, MapSqlParameterSource parameters, AuditLogDTO after, int limit) {
+		String whereAfter = "";
+		if (after != null) {
+			parameters.addValue("afterTts", Timestamp.valueOf(after.getTts()), Types.TIMESTAMP);
+			parameters.addValue("afterId", after.getId());
+			whereAfter = " AND (a.tts > :afterTts OR (a.tts = :afterTts AND a.id > :afterId)) ";
+		}
+
+		parameters.addValue("limit", limit);
+
+		String sql = "SELECT a.id, a.correlation_id, a.cpr, a.ip_address, a.log_action, a.message, a.performer_name, a.person_name, a.tts, p.samaccount_name FROM auditlogs a LEFT JOIN persons p on p.id = a.person_id WHERE (a.tts BETWEEN :from AND :to) " + where + whereAfter + " ORDER BY a.tts, a.id LIMIT :limit";
+
+		return namedParameterJdbcTemplate.query(sql, parameters, (rs, rowNum) -> mapAuditLogResult(rs));
 	}
 
 	private AuditLogDTO mapAuditLogResult(ResultSet rs) {
@@ -227,7 +234,8 @@ public class AuditLogService {
 					rs.getString("cpr"),
 					rs.getString("person_name"),
 					rs.getString("performer_name"),
-					rs.getString("samaccount_name"));
+					rs.getString("samaccount_name"),
+					rs.getLong("id"));
 		}
 		catch (SQLException ex) {
 			log.warn("Error occured while trying to read AuditLog from DB", ex);
@@ -64,6 +64,10 @@ public class PasswordChangeQueueService {
 		passwordChangeQueueDao.delete(passwordChangeQueue);
 	}
 
+	public PasswordChangeQueue getById(long id) {
+		return passwordChangeQueueDao.findById(id).orElse(null);
+	}
+
 	public List<PasswordChangeQueue> getAll() {
 		return passwordChangeQueueDao.findAll();
 	}
@@ -9,6 +9,7 @@ import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -183,6 +184,11 @@ public class PersonService {
 		return personDao.findByAttributeValue("upn", username);
 	}
 
+	@Transactional
+	public List<Person> getBySamaccountNames(Collection<String> samAccountNames) {
+		return personDao.findBySamaccountNameIn(samAccountNames);
+	}
+
 	@Transactional
 	public List<Person> getBySamaccountNameFullyLoaded(String samAccountName) {
 		List<Person> bySamaccountName = personDao.findBySamaccountName(samAccountName);
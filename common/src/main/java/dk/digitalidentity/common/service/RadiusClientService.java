@@ -27,6 +27,16 @@ public class RadiusClientService {
 		return all;
 	}
 
+	@Transactional
+	public RadiusClient getByIdFullyLoaded(long id) {
+		RadiusClient radiusClient = radiusClientDao.findById(id);
+		if (radiusClient != null) {
+			radiusClient.loadFully();
+		}
+
+		return radiusClient;
+	}
+
 	public RadiusClient save(RadiusClient radiusClient) {
 		return radiusClientDao.save(radiusClient);
 	}
@@ -2,14 +2,18 @@ package dk.digitalidentity.common.service;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.HttpStatusCodeException;
@@ -26,10 +30,15 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 @Service
 public class RoleCatalogueService {
+	private final ConcurrentHashMap<String, CachedLookup> lookups = new ConcurrentHashMap<>();
 
 	@Autowired
 	private CommonConfiguration configuration;
 
+	@Qualifier("roleCatalogueRestTemplate")
+	@Autowired
+	private RestTemplate restTemplate;
+
 	public String getNemLoginOIOBPP(Person person) {
 		if (!configuration.getRoleCatalogue().isEnabled()) {
 			log.error("RoleCatalogue not enabled - oiobpp is null");
@@ -37,8 +46,6 @@ public class RoleCatalogueService {
 		}
 
 		try {
-			RestTemplate restTemplate = new RestTemplate();
-	
 			String roleCatalogueUrl = configuration.getRoleCatalogue().getBaseUrl();
 			if (StringUtils.hasLength(person.getSamaccountName())) {
 				roleCatalogueUrl += "api/user/" + person.getSamaccountName() + "/nemloginRoles";
@@ -47,13 +54,9 @@ public class RoleCatalogueService {
 				roleCatalogueUrl += "api/user/" + person.getUuid() + "/nemloginRoles";
 			}
 	
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
-	
-			HttpEntity<OIOBPP> request = new HttpEntity<>(headers);
 			UriComponentsBuilder urlParamBuilder = UriComponentsBuilder.fromHttpUrl(roleCatalogueUrl);
 	
-			ResponseEntity<OIOBPP> response = restTemplate.exchange(urlParamBuilder.toUriString(), HttpMethod.GET, request, new ParameterizedTypeReference<>() {});
+			ResponseEntity<OIOBPP> response = get(urlParamBuilder.toUriString(), OIOBPP.class);
 
 			OIOBPP oiobpp = response.getBody();
 	
@@ -80,8 +83,6 @@ public class RoleCatalogueService {
 		}
 
 		try {
-			RestTemplate restTemplate = new RestTemplate();
-	
 			String roleCatalogueUrl = configuration.getRoleCatalogue().getBaseUrl();
 			if (StringUtils.hasLength(person.getSamaccountName())) {
 				roleCatalogueUrl += "api/user/" + person.getSamaccountName() + "/roles";
@@ -90,13 +91,9 @@ public class RoleCatalogueService {
 				roleCatalogueUrl += "api/user/" + person.getUuid() + "/roles";
 			}
 	
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
-	
-			HttpEntity<OIOBPP> request = new HttpEntity<>(headers);
 			UriComponentsBuilder urlParamBuilder = UriComponentsBuilder.fromHttpUrl(roleCatalogueUrl).queryParam("system", system);
 	
-			ResponseEntity<OIOBPP> response = restTemplate.exchange(urlParamBuilder.toUriString(), HttpMethod.GET, request, new ParameterizedTypeReference<>() {});
+			ResponseEntity<OIOBPP> response = get(urlParamBuilder.toUriString(), OIOBPP.class);
 
 			OIOBPP oiobpp = response.getBody();
 	
@@ -123,11 +120,12 @@ public class RoleCatalogueService {
 		}
 
 		RoleCatalogueRolesResponse response = lookupRoles(person, itSystem);
-		if (response == null) {
+		if (response == null || response.getSystemRoles() == null) {
 			return new ArrayList<>();
 		}
-		
-		return response.getSystemRoles();
+
+		// the response is cached and shared with other callers, so hand out a copy
+		return new ArrayList<>(response.getSystemRoles());
 	}
 	
 	public List<String> getUserRoles(Person person, String itSystem) {
@@ -137,11 +135,12 @@ public class RoleCatalogueService {
 		}
 
 		RoleCatalogueRolesResponse response = lookupRoles(person, itSystem);
-		if (response == null) {
+		if (response == null || response.getUserRoles() == null) {
 			return new ArrayList<>();
 		}
-		
-		return response.getUserRoles();
+
+		// the response is cached and shared with other callers, so hand out a copy
+		return new ArrayList<>(response.getUserRoles());
 	}
 	
 	public String getSystemRolesAsOIOBPP(Person person, String itSystem) {
@@ -165,17 +164,10 @@ public class RoleCatalogueService {
 		}
 
 		try {
-			RestTemplate restTemplate = new RestTemplate();
-	
 			String roleCatalogueUrl = configuration.getRoleCatalogue().getBaseUrl();
 			roleCatalogueUrl += "api/user/" + person.getSamaccountName() + "/hasUserRole/" + userRoleId;
 	
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
-	
-			HttpEntity<String> request = new HttpEntity<>(headers);
-	
-			ResponseEntity<String> response = restTemplate.exchange(roleCatalogueUrl, HttpMethod.GET, request, new ParameterizedTypeReference<>() {});
+			ResponseEntity<String> response = get(roleCatalogueUrl, String.class);
 			if (response.getStatusCode().value() == 404) {
 				return false;
 			}
@@ -207,17 +199,10 @@ public class RoleCatalogueService {
 		}
 
 		try {
-			RestTemplate restTemplate = new RestTemplate();
-	
 			String roleCatalogueUrl = configuration.getRoleCatalogue().getBaseUrl();
 			roleCatalogueUrl += "api/user/" + person.getSamaccountName() + "/hasSystemRole/" + systemRoleId;
 	
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
-	
-			HttpEntity<String> request = new HttpEntity<>(headers);
-	
-			ResponseEntity<String> response = restTemplate.exchange(roleCatalogueUrl, HttpMethod.GET, request, new ParameterizedTypeReference<>() {});
+			ResponseEntity<String> response = get(roleCatalogueUrl, String.class);
 			if (response.getStatusCode().value() == 404) {
 				return false;
 			}
@@ -244,8 +229,6 @@ public class RoleCatalogueService {
 	
 	private RoleCatalogueOIOBPPResponse lookupRolesAsOIOBPP(Person person, String itSystem) {
 		try {
-			RestTemplate restTemplate = new RestTemplate();
-	
 			String roleCatalogueUrl = configuration.getRoleCatalogue().getBaseUrl();
 			if (StringUtils.hasLength(person.getSamaccountName())) {
 				roleCatalogueUrl += "api/user/" + person.getSamaccountName() + "/roles";
@@ -254,13 +237,9 @@ public class RoleCatalogueService {
 				roleCatalogueUrl += "api/user/" + person.getUuid() + "/roles";
 			}
 	
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
-	
-			HttpEntity<String> request = new HttpEntity<>(headers);
 			UriComponentsBuilder urlParamBuilder = UriComponentsBuilder.fromHttpUrl(roleCatalogueUrl).queryParam("system", itSystem);
 	
-			ResponseEntity<RoleCatalogueOIOBPPResponse> response = restTemplate.exchange(urlParamBuilder.toUriString(), HttpMethod.GET, request, new ParameterizedTypeReference<>() {});
+			ResponseEntity<RoleCatalogueOIOBPPResponse> response = get(urlParamBuilder.toUriString(), RoleCatalogueOIOBPPResponse.class);
 	
 			return response.getBody();
 		}
@@ -280,8 +259,6 @@ public class RoleCatalogueService {
 
 	private RoleCatalogueRolesResponse lookupRoles(Person person, String itSystem) {
 		try {
-			RestTemplate restTemplate = new RestTemplate();
-	
 			String roleCatalogueUrl = configuration.getRoleCatalogue().getBaseUrl();
 			if (StringUtils.hasLength(person.getSamaccountName())) {
 				roleCatalogueUrl += "api/user/" + person.getSamaccountName() + "/rolesAsList";
@@ -290,13 +267,9 @@ public class RoleCatalogueService {
 				roleCatalogueUrl += "api/user/" + person.getUuid() + "/rolesAsList";
 			}
 	
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
-	
-			HttpEntity<String> request = new HttpEntity<>(headers);
 			UriComponentsBuilder urlParamBuilder = UriComponentsBuilder.fromHttpUrl(roleCatalogueUrl).queryParam("system", itSystem);
 	
-			ResponseEntity<RoleCatalogueRolesResponse> response = restTemplate.exchange(urlParamBuilder.toUriString(), HttpMethod.GET, request, new ParameterizedTypeReference<>() {});
+			ResponseEntity<RoleCatalogueRolesResponse> response = get(urlParamBuilder.toUriString(), RoleCatalogueRolesResponse.class);
 
 			return response.getBody();
 		}
@@ -313,4 +286,70 @@ public class RoleCatalogueService {
 			return null;
 		}
 	}
+
+	/**
+	 * Performs a GET against OS2rollekatalog. Successful responses are cached for a short while (keyed by the full url,
+	 * which contains both the user and the it-system), and concurrent calls for the same url share a single request,
+	 * so several claims evaluated for the same user during a login only result in one lookup.
+	 * 
+	 * Failures (including Errors) are not cached, but are rethrown to all callers waiting on the same request. The cached response is
+	 * shared by all callers, so it must not be modified.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> ResponseEntity<T> get(String url, Class<T> responseType) throws Exception {
+		String key = responseType.getName() + " " + url;
+		long now = System.currentTimeMillis();
+		long ttl = configuration.getRoleCatalogue().getCacheSeconds() * 1000;
+
+		CachedLookup newLookup = new CachedLookup(new CompletableFuture<>(), now);
+		CachedLookup lookup = lookups.compute(key, (k, existing) -> (existing == null || existing.isExpired(now, ttl)) ? newLookup : existing);
+
+		// we won the race, so we perform the actual request on behalf of everyone waiting for this key
+		if (lookup == newLookup) {
+			try {
+				HttpHeaders headers = new HttpHeaders();
+				headers.add("ApiKey", configuration.getRoleCatalogue().getApiKey());
+
+				HttpEntity<String> request = new HttpEntity<>(headers);
+
+				lookup.response().complete(restTemplate.exchange(url, HttpMethod.GET, request, responseType));
+			}
+			catch (Throwable ex) {
+				// also on Errors, otherwise everyone waiting for this key (now and later) would wait forever
+				lookups.remove(key, lookup);
+				lookup.response().completeExceptionally(ex);
+			}
+		}
+
+		try {
+			return (ResponseEntity<T>) lookup.response().get();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception cause) {
+				throw cause;
+			}
+
+			if (ex.getCause() instanceof Error error) {
+				throw error;
+			}
+
+			throw ex;
+		}
+	}
+
+	@Scheduled(fixedRate = 5 * 60 * 1000)
+	public void cleanupCache() {
+		long now = System.currentTimeMillis();
+		long ttl = configuration.getRoleCatalogue().getCacheSeconds() * 1000;
+
+		lookups.values().removeIf(lookup -> lookup.isExpired(now, ttl));
+	}
+
+	private record CachedLookup(CompletableFuture<ResponseEntity<?>> response, long created) {
+
+		// lookups still in progress never expire, otherwise concurrent callers would not share them
+		boolean isExpired(long now, long ttl) {
+			return response.isDone() && created + ttl < now;
+		}
+	}
 }
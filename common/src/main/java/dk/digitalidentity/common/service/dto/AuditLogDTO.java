@@ -20,4 +20,7 @@ public class AuditLogDTO {
 	private String personName;
 	private String performerName;
 	private String personUserId;
+
+	// only used to find the next page when reading auditlogs in (tts, id) order
+	private long id;
 }
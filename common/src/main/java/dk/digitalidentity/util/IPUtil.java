@@ -41,6 +41,124 @@ public class IPUtil {
 		return ips.stream().map(IpAddressMatcher::new).collect(Collectors.toList());
 	}
 
+	/**
+	 * Parses an IPv4 (e.g. 10.0.0.1) or IPv6 (e.g. 2001:db8::1 or ::ffff:10.0.0.1) literal into 4 or 16 bytes, or returns null if it is not
+	 * one (zone ids and brackets are not supported). Unlike InetAddress.getByName it never falls back to a DNS lookup, so it is safe to use
+	 * on untrusted input, like an X-Forwarded-For header.
+	 */
+	public static byte[] parseIpLiteral(String ip) {
+		if (ip == null || ip.isEmpty()) {
+			return null;
+		}
+
+		if (ip.indexOf(':') < 0) {
+			return parseIpv4(ip);
+		}
+
+		// at most one "::", which replaces one or more groups of zeros
+		int doubleColon = ip.indexOf("::");
+		if (doubleColon >= 0 && ip.indexOf("::", doubleColon + 1) >= 0) {
+			return null;
+		}
+
+		int[] head = parseIpv6Groups((doubleColon >= 0) ? ip.substring(0, doubleColon) : ip, doubleColon < 0);
+		int[] tail = (doubleColon >= 0) ? parseIpv6Groups(ip.substring(doubleColon + 2), true) : new int[0];
+		if (head == null || tail == null) {
+			return null;
+		}
+
+		if ((doubleColon < 0 && head.length != 8) || (doubleColon >= 0 && head.length + tail.length > 7)) {
+			return null;
+		}
+
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < head.length; i++) {
+			bytes[2 * i] = (byte) (head[i] >>> 8);
+			bytes[2 * i + 1] = (byte) head[i];
+		}
+
+		for (int i = 0; i < tail.length; i++) {
+			int index = 8 - tail.length + i;
+			bytes[2 * index] = (byte) (tail[i] >>> 8);
+			bytes[2 * index + 1] = (byte) tail[i];
+		}
+
+		return bytes;
+	}
+
+	private static byte[] parseIpv4(String ip) {
+		String[] octets = ip.split("\\.", -1);
+		if (octets.length != 4) {
+			return null;
+		}
+
+		byte[] bytes = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			if (octets[i].isEmpty() || octets[i].length() > 3) {
+				return null;
+			}
+
+			int octet = 0;
+			for (char c : octets[i].toCharArray()) {
+				if (c < '0' || c > '9') {
+					return null;
+				}
+
+				octet = octet * 10 + (c - '0');
+			}
+
+			if (octet > 255) {
+				return null;
+			}
+
+			bytes[i] = (byte) octet;
+		}
+
+		return bytes;
+	}
+
+	// the 16 bit groups of one side of an IPv6 address, an IPv4 address is allowed as the last group of the address (and counts as two groups)
+	private static int[] parseIpv6Groups(String part, boolean endsAddress) {
+		if (part.isEmpty()) {
+			return new int[0];
+		}
+
+		String[] groups = part.split(":", -1);
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < groups.length; i++) {
+			String group = groups[i];
+
+			if (group.indexOf('.') >= 0) {
+				byte[] ipv4 = (endsAddress && i == groups.length - 1) ? parseIpv4(group) : null;
+				if (ipv4 == null) {
+					return null;
+				}
+
+				result.add(((ipv4[0] & 0xff) << 8) | (ipv4[1] & 0xff));
+				result.add(((ipv4[2] & 0xff) << 8) | (ipv4[3] & 0xff));
+				continue;
+			}
+
+			if (group.isEmpty() || group.length() > 4) {
+				return null;
+			}
+
+			int value = 0;
+			for (char c : group.toCharArray()) {
+				int digit = Character.digit(c, 16);
+				if (digit < 0) {
+					return null;
+				}
+
+				value = (value << 4) | digit;
+			}
+
+			result.add(value);
+		}
+
+		return result.stream().mapToInt(Integer::intValue).toArray();
+	}
+
 	public static boolean isIpInTrustedNetwork(List<String> ips, HttpServletRequest request) {
 		List<IpAddressMatcher> allowList = createAllowList(ips);
 
@@ -0,0 +1,137 @@
+package dk.digitalidentity.util;
+
+import java.net.InetAddress;
+
+/**
+ * Maps IPv4 and IPv6 networks (CIDR notation, e.g. 10.0.0.0/16 or 2001:db8::/32) to values, and finds the value for the most specific
+ * network containing an address (longest prefix match). IPv4 addresses are stored as IPv4-mapped IPv6 addresses, so both kinds share
+ * a single binary trie, and a lookup is at most 128 steps regardless of the number of networks.
+ *
+ * Not thread-safe while being built, but safe for concurrent lookups once published (build a new trie instead of modifying a shared one).
+ */
+public class IpPrefixTrie<T> {
+	private static final int IPV4_MAPPED_PREFIX = 96;
+
+	private final Node<T> root = new Node<>();
+	private int size = 0;
+
+	/**
+	 * Adds the network, unless it has already been added (the first value for a network wins). Bits after the prefix are ignored,
+	 * so 10.0.0.5/24 is the same network as 10.0.0.0/24. An address without a prefix is a network with a single address.
+	 *
+	 * @throws IllegalArgumentException if cidr is not a valid network
+	 */
+	public boolean put(String cidr, T value) {
+		Cidr parsed = parseCidr(cidr);
+		if (parsed == null) {
+			throw new IllegalArgumentException("Not a valid network: " + cidr);
+		}
+
+		Node<T> node = root;
+		for (int i = 0; i < parsed.prefixLength; i++) {
+			if (bit(parsed.address, i) == 0) {
+				node = (node.zero != null) ? node.zero : (node.zero = new Node<>());
+			}
+			else {
+				node = (node.one != null) ? node.one : (node.one = new Node<>());
+			}
+		}
+
+		if (node.value != null) {
+			return false;
+		}
+
+		node.value = value;
+		size++;
+
+		return true;
+	}
+
+	// the value for the most specific network containing the address, or null
+	public T find(InetAddress address) {
+		byte[] bytes = toIpv6(address.getAddress());
+
+		Node<T> node = root;
+		T result = root.value;
+		for (int i = 0; i < 128 && node != null; i++) {
+			node = (bit(bytes, i) == 0) ? node.zero : node.one;
+
+			if (node != null && node.value != null) {
+				result = node.value;
+			}
+		}
+
+		return result;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public static boolean isValidCidr(String cidr) {
+		return parseCidr(cidr) != null;
+	}
+
+	private static Cidr parseCidr(String cidr) {
+		if (cidr == null) {
+			return null;
+		}
+
+		String[] tokens = cidr.trim().split("/", -1);
+		if (tokens.length > 2) {
+			return null;
+		}
+
+		// parsed without InetAddress.getByName, which falls back to a DNS lookup for anything that is not a valid literal
+		byte[] bytes = IPUtil.parseIpLiteral(tokens[0]);
+		if (bytes == null) {
+			return null;
+		}
+
+		int maxPrefixLength = bytes.length * 8;
+		int prefixLength = maxPrefixLength;
+		if (tokens.length == 2) {
+			try {
+				prefixLength = Integer.parseInt(tokens[1]);
+			}
+			catch (NumberFormatException ex) {
+				return null;
+			}
+
+			if (prefixLength < 0 || prefixLength > maxPrefixLength) {
+				return null;
+			}
+		}
+
+		if (bytes.length == 4) {
+			return new Cidr(toIpv6(bytes), prefixLength + IPV4_MAPPED_PREFIX);
+		}
+
+		return new Cidr(bytes, prefixLength);
+	}
+
+	private static byte[] toIpv6(byte[] bytes) {
+		if (bytes.length == 16) {
+			return bytes;
+		}
+
+		byte[] mapped = new byte[16];
+		mapped[10] = (byte) 0xff;
+		mapped[11] = (byte) 0xff;
+		System.arraycopy(bytes, 0, mapped, 12, 4);
+
+		return mapped;
+	}
+
+	private static int bit(byte[] bytes, int index) {
+		return (bytes[index >>> 3] >>> (7 - (index & 7))) & 1;
+	}
+
+	private record Cidr(byte[] address, int prefixLength) { }
+
+	private static class Node<T> {
+		private Node<T> zero;
+		private Node<T> one;
+		private T value;
+	}
+}
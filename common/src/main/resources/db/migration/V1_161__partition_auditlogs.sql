@@ -0,0 +1,69 @@
+-- partitioned tables cannot have foreign keys, so drop the one from auditlogs to auditlogs_details (the index on auditlogs_details_id is kept)
+SELECT CONCAT(
+	'ALTER TABLE `auditlogs` DROP FOREIGN KEY `',
+	constraint_name,
+	'`'
+) INTO @sqlst
+	FROM information_schema.KEY_COLUMN_USAGE
+	WHERE table_schema = DATABASE()
+		AND table_name = 'auditlogs'
+		AND referenced_table_name = 'auditlogs_details'
+		AND referenced_column_name = 'id' LIMIT 1;
+
+PREPARE stmt FROM @sqlst;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+SET @sqlst = NULL;
+
+-- retention_class is the retention rule for the auditlog (see AuditLogRetention) - 0 = general, 1 = login, 2 = trace
+ALTER TABLE auditlogs ADD COLUMN retention_class TINYINT NOT NULL DEFAULT 0;
+
+UPDATE auditlogs SET retention_class = 1 WHERE log_action IN ('LOGIN', 'LOGOUT', 'LOGOUT_IP_CHANGED', 'AUTHN_REQUEST', 'OIDC_JWT_ID_TOKEN', 'LOGOUT_REQUEST', 'LOGOUT_RESPONSE', 'TOO_MANY_ATTEMPTS', 'WRONG_PASSWORD', 'RIGHT_PASSWORD', 'ACCEPT_MFA', 'REJECT_MFA', 'ERROR_SENT_TO_SP', 'SESSION_EXPIRED', 'REJECTED_UNKNOWN_PERSON', 'DEACTIVATE_BY_PWD');
+UPDATE auditlogs SET retention_class = 2 WHERE log_action IN ('TRACE_LOG', 'SESSION_KEY_ISSUED', 'SESSION_KEY_EXCHANGED');
+UPDATE auditlogs SET tts = NOW() WHERE tts IS NULL;
+
+-- details are stored with the same tts and retention_class as the auditlog, so they live in the partition with the same name
+ALTER TABLE auditlogs_details ADD COLUMN tts DATETIME NULL, ADD COLUMN retention_class TINYINT NOT NULL DEFAULT 0;
+
+UPDATE auditlogs_details d JOIN auditlogs a ON a.auditlogs_details_id = d.id SET d.tts = a.tts, d.retention_class = a.retention_class;
+
+-- anything left is not referenced by any auditlog, so make sure it is removed by the first cleanup
+UPDATE auditlogs_details SET tts = '1970-01-01' WHERE tts IS NULL;
+
+-- the partitioning columns must be part of every unique key, including the primary key, so the primary key is changed in the
+-- same ALTER TABLE that partitions the table, and each table is only copied once.
+--
+-- all existing rows are placed in the first dated partition of their retention class, which ends tomorrow for the daily classes
+-- (login, trace) and on the first day of next month for the monthly class (general), matching AuditLogRetention. The tail
+-- partitions start out empty, so AuditLogPartitionService only ever splits empty (or nearly empty) tails, and never moves
+-- historic rows in the nightly job.
+--
+-- expected runtime: the UPDATEs above and the two ALTER TABLEs below each read or copy the whole table, so the migration takes
+-- time proportional to the size of auditlogs and auditlogs_details. As a rough guide InnoDB copies in the order of 100.000 rows
+-- per second (fewer for auditlogs_details, which holds the large detail_content values), i.e. around 10 minutes per 50 million
+-- auditlogs. Check the row counts first, and run the upgrade in a maintenance window on large installations.
+SET @day_bound = DATE_ADD(CURDATE(), INTERVAL 1 DAY);
+SET @month_bound = DATE_ADD(LAST_DAY(CURDATE()), INTERVAL 1 DAY);
+
+SET @partitions = CONCAT(
+	' PARTITION BY RANGE COLUMNS(retention_class, tts) (',
+	'PARTITION p0_', DATE_FORMAT(@month_bound, '%Y%m%d'), ' VALUES LESS THAN (0, ''', @month_bound, '''), ',
+	'PARTITION p0_max VALUES LESS THAN (0, MAXVALUE), ',
+	'PARTITION p1_', DATE_FORMAT(@day_bound, '%Y%m%d'), ' VALUES LESS THAN (1, ''', @day_bound, '''), ',
+	'PARTITION p1_max VALUES LESS THAN (1, MAXVALUE), ',
+	'PARTITION p2_', DATE_FORMAT(@day_bound, '%Y%m%d'), ' VALUES LESS THAN (2, ''', @day_bound, '''), ',
+	'PARTITION p2_max VALUES LESS THAN (2, MAXVALUE))'
+);
+
+SET @sqlst = CONCAT('ALTER TABLE auditlogs MODIFY COLUMN tts DATETIME NOT NULL, DROP PRIMARY KEY, ADD PRIMARY KEY (id, retention_class, tts)', @partitions);
+PREPARE stmt FROM @sqlst;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @sqlst = CONCAT('ALTER TABLE auditlogs_details MODIFY COLUMN tts DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP, DROP PRIMARY KEY, ADD PRIMARY KEY (id, retention_class, tts), ADD INDEX idx_auditlogs_details_tts (tts)', @partitions);
+PREPARE stmt FROM @sqlst;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @sqlst = NULL;
+SET @partitions = NULL;
@@ -0,0 +1,15 @@
+CREATE TABLE login_statistics (
+  id                           BIGINT NOT NULL PRIMARY KEY AUTO_INCREMENT,
+  tts                          DATETIME NOT NULL,
+  log_action                   VARCHAR(64) NOT NULL,
+  login_count                  BIGINT NOT NULL,
+
+  CONSTRAINT uc_login_statistics UNIQUE (tts, log_action)
+);
+
+-- backfill the last couple of days, so the statistics on the frontpage are complete from the start
+INSERT INTO login_statistics (tts, log_action, login_count)
+  SELECT DATE_FORMAT(tts, '%Y-%m-%d %H:%i:00'), log_action, COUNT(*)
+  FROM auditlogs
+  WHERE retention_class = 1 AND tts >= DATE_SUB(CURDATE(), INTERVAL 2 DAY)
+  GROUP BY DATE_FORMAT(tts, '%Y-%m-%d %H:%i:00'), log_action;
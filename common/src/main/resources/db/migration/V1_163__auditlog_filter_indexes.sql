@@ -0,0 +1,4 @@
+-- indexes for the keyset paginated eventlog in the admin UI, which reads in (tts, id) descending order, optionally filtered on log_action and/or person_domain.
+-- the unfiltered case is covered by the existing index on tts, as InnoDB appends the primary key (id, ...) to it
+CREATE INDEX idx_auditlogs_log_action_tts_id ON auditlogs (log_action, tts, id);
+CREATE INDEX idx_auditlogs_person_domain_tts_id ON auditlogs (person_domain, tts, id);
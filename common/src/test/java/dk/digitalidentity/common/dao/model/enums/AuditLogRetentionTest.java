@@ -0,0 +1,47 @@
+package dk.digitalidentity.common.dao.model.enums;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class AuditLogRetentionTest {
+
+	@Test
+	@DisplayName("Log actions are mapped to their retention class")
+	public void retentionClassOfLogAction() {
+		assertEquals(AuditLogRetention.LOGIN, AuditLogRetention.of(LogAction.LOGIN));
+		assertEquals(AuditLogRetention.LOGIN, AuditLogRetention.of(LogAction.WRONG_PASSWORD));
+		assertEquals(AuditLogRetention.TRACE, AuditLogRetention.of(LogAction.TRACE_LOG));
+		assertEquals(AuditLogRetention.GENERAL, AuditLogRetention.of(LogAction.CHANGE_PASSWORD));
+	}
+
+	@Test
+	@DisplayName("The cutoff is the retention period before now")
+	public void cutoff() {
+		LocalDateTime now = LocalDateTime.of(2024, 3, 31, 10, 15);
+
+		assertEquals(LocalDateTime.of(2023, 2, 28, 10, 15), AuditLogRetention.GENERAL.getCutoff(now));
+		assertEquals(LocalDateTime.of(2023, 12, 31, 10, 15), AuditLogRetention.LOGIN.getCutoff(now));
+		assertEquals(LocalDateTime.of(2024, 3, 17, 10, 15), AuditLogRetention.TRACE.getCutoff(now));
+	}
+
+	@Test
+	@DisplayName("Daily partition bounds are the next day")
+	public void dailyBoundaries() {
+		assertEquals(LocalDate.of(2024, 2, 29), AuditLogRetention.LOGIN.nextBoundary(LocalDate.of(2024, 2, 28)));
+		assertEquals(LocalDate.of(2024, 3, 1), AuditLogRetention.LOGIN.nextBoundary(LocalDate.of(2024, 2, 29)));
+		assertEquals(LocalDate.of(2025, 1, 1), AuditLogRetention.TRACE.nextBoundary(LocalDate.of(2024, 12, 31)));
+	}
+
+	@Test
+	@DisplayName("Monthly partition bounds are the first day of the next month")
+	public void monthlyBoundaries() {
+		assertEquals(LocalDate.of(2024, 2, 1), AuditLogRetention.GENERAL.nextBoundary(LocalDate.of(2024, 1, 1)));
+		assertEquals(LocalDate.of(2024, 2, 1), AuditLogRetention.GENERAL.nextBoundary(LocalDate.of(2024, 1, 31)));
+		assertEquals(LocalDate.of(2025, 1, 1), AuditLogRetention.GENERAL.nextBoundary(LocalDate.of(2024, 12, 15)));
+	}
+}
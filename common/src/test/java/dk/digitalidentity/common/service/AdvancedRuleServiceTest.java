@@ -0,0 +1,108 @@
+package dk.digitalidentity.common.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import dk.digitalidentity.common.dao.model.Person;
+
+/**
+ * The expected results were produced by the interpreter that evaluated the rule text directly, before rules were compiled.
+ * A result is either "=" and the value, "!" and the EvaluationException message, or "#" and the name of any other exception.
+ */
+public class AdvancedRuleServiceTest {
+	private final AdvancedRuleService advancedRuleService = new AdvancedRuleService();
+
+	static Stream<Arguments> rules() {
+		return Stream.of(
+			Arguments.of("JOIN(VALUE(user.name), VALUE(' '), VALUE(user.userId))", "=Brian Graversen BSG", "=Madonna "),
+			Arguments.of("UPPER(VALUE(user.userId))", "=BSG", "="),
+			Arguments.of("LOWER(VALUE(user.name))", "=brian graversen", "=madonna"),
+			Arguments.of("REGEX_REPLACE(VALUE(user.name), '\\s', VALUE('_'))", "=Brian_Graversen", "=Madonna"),
+			Arguments.of("JOIN(UPPER(JOIN(VALUE(user.userId), VALUE(', '), REGEX_REPLACE(VALUE(user.name), '\\s', VALUE('_')))), LOWER(VALUE(' xXx ')), UPPER(VALUE(user.email)))",
+					"=BSG, BRIAN_GRAVERSEN xxx BSG@DIGITAL-IDENTITY.DK", "=, MADONNA xxx "),
+			Arguments.of("VALUE(user.firstname)", "=Brian", "=Madonna"),
+			Arguments.of("VALUE(user.lastname)", "=Graversen", "=Madonna"),
+			Arguments.of("VALUE(user.department)", "=IT", "="),
+			Arguments.of("VALUE(user.sAMAccountName)", "=BSG", "="),
+			Arguments.of("VALUE(user.cpr)", "=0101011234", "="),
+			Arguments.of("UPPER(VALUE(user.alias))", "=BRIAN G", "="),
+			Arguments.of("BASE64(VALUE(user.uuid))", "=OWYzYzNkOGUtMWEyYi00YzVkLThlOWYtMGExYjJjM2Q0ZTVm", "="),
+			Arguments.of("BASE64(VALUE(user.department))", "=SVQ=", "="),
+			Arguments.of("BINARY_UUID(VALUE(user.uuid))", "=jj08nysaXUyOnwobLD1OXw==", "="),
+			Arguments.of("BINARY_UUID(VALUE(user.name))", "!Brian Graversen is not a UUID", "!Madonna is not a UUID"),
+			Arguments.of("  LOWER( VALUE('MiXeD') )  ", "=mixed", "=mixed"),
+			Arguments.of("JOIN(VALUE('a, b'), VALUE('(c)'))", "=a, b(c)", "=a, b(c)"),
+			Arguments.of("JOIN(VALUE(user.email), VALUE('@'), , VALUE(user.cpr))", "=bsg@digital-identity.dk@0101011234", "=@"),
+			Arguments.of("REGEX_REPLACE(VALUE(user.email), '@.*', JOIN(VALUE('@'), LOWER(VALUE('EXAMPLE.org'))))", "=bsg@example.org", "="),
+			Arguments.of("VALUE('unterminated)", "!Syntaksfejl: Input til VALUE skal indeholde både en start og stop ' karakter for faste værdier",
+					"!Syntaksfejl: Input til VALUE skal indeholde både en start og stop ' karakter for faste værdier"),
+			Arguments.of("VALUE(user)", "!Syntaksfejl: Input til VALUE ikke lovligt 'user'", "!Syntaksfejl: Input til VALUE ikke lovligt 'user'"),
+			Arguments.of("FOO(VALUE('x'))", "!Syntaksfejl: Ukendt operation 'FOO'", "!Syntaksfejl: Ukendt operation 'FOO'"),
+			Arguments.of("UPPER()", "!Syntaksfejl: Operationen 'UPPER' har ikke noget input", "!Syntaksfejl: Operationen 'UPPER' har ikke noget input"),
+			Arguments.of("user.name", "!Syntaksfejl: Reglen indeholder ikke nogen operation, eller mangler en start-parantes",
+					"!Syntaksfejl: Reglen indeholder ikke nogen operation, eller mangler en start-parantes"),
+			Arguments.of("UPPER(VALUE('x')", "!Syntaksfejl: Reglen mangler en slut-parantes", "!Syntaksfejl: Reglen mangler en slut-parantes"),
+			Arguments.of("REGEX_REPLACE(VALUE(user.name), '[', VALUE('_'))", "#PatternSyntaxException", "#PatternSyntaxException"),
+			Arguments.of("REGEX_REPLACE(VALUE(user.name), '\\s')", "!REGEX_REPLACE tager 3 parametre", "!REGEX_REPLACE tager 3 parametre"),
+			Arguments.of("JOIN(VALUE('a'), FOO(x), BINARY_UUID(VALUE('bad')))", "!Syntaksfejl: Ukendt operation 'FOO'", "!Syntaksfejl: Ukendt operation 'FOO'")
+		);
+	}
+
+	@ParameterizedTest
+	@MethodSource("rules")
+	@DisplayName("Compiled rules give the same results and errors as the interpreted rules did")
+	public void sameResultAsInterpreter(String rule, String expectedFullPerson, String expectedSparsePerson) {
+		assertEquals(expectedFullPerson, evaluate(rule, fullPerson()));
+		assertEquals(expectedSparsePerson, evaluate(rule, sparsePerson()));
+
+		// the second evaluation uses the cached compiled rule, and must not be affected by the previous person
+		assertEquals(expectedFullPerson, evaluate(rule, fullPerson()));
+
+		advancedRuleService.clearCompiledRules();
+		assertEquals(expectedSparsePerson, evaluate(rule, sparsePerson()));
+	}
+
+	private String evaluate(String rule, Person person) {
+		try {
+			return "=" + advancedRuleService.evaluateRule(rule, person);
+		}
+		catch (EvaluationException ex) {
+			return "!" + ex.getMessage();
+		}
+		catch (Exception ex) {
+			return "#" + ex.getClass().getSimpleName();
+		}
+	}
+
+	private static Person fullPerson() {
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put("department", "IT");
+
+		Person person = new Person();
+		person.setName("Brian Graversen");
+		person.setSamaccountName("BSG");
+		person.setUuid("9f3c3d8e-1a2b-4c5d-8e9f-0a1b2c3d4e5f");
+		person.setCpr("0101011234");
+		person.setEmail("bsg@digital-identity.dk");
+		person.setNameAlias("Brian G");
+		person.setAttributes(attributes);
+
+		return person;
+	}
+
+	// only a single name, every other field is empty
+	private static Person sparsePerson() {
+		Person person = new Person();
+		person.setName("Madonna");
+
+		return person;
+	}
+}
@@ -0,0 +1,115 @@
+package dk.digitalidentity.common.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class AuditLogPartitionServiceTest {
+	private static final DateTimeFormatter PARTITION_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+	private JdbcTemplate jdbcTemplate;
+	private AuditLogPartitionService auditLogPartitionService;
+	private LocalDate today;
+
+	@BeforeEach
+	public void before() {
+		jdbcTemplate = mock(JdbcTemplate.class);
+		auditLogPartitionService = new AuditLogPartitionService();
+		ReflectionTestUtils.setField(auditLogPartitionService, "jdbcTemplate", jdbcTemplate);
+		today = LocalDate.now();
+
+		// only auditlogs is partitioned in these tests
+		when(jdbcTemplate.queryForList(anyString(), eq(String.class), eq("auditlogs_details"))).thenReturn(List.of());
+	}
+
+	@Test
+	@DisplayName("Daily partitions older than the cutoff are dropped, and partitions are created a week ahead")
+	public void dailyPartitions() {
+		partitions("p2_" + name(today.minusDays(15)), "p2_" + name(today.minusDays(13)), "p2_" + name(today.plusDays(2)), "p2_max");
+
+		auditLogPartitionService.maintainPartitions();
+
+		List<String> statements = executedStatements(2);
+		assertEquals("ALTER TABLE auditlogs DROP PARTITION p2_" + name(today.minusDays(15)), statements.get(0));
+
+		StringBuilder expected = new StringBuilder("ALTER TABLE auditlogs REORGANIZE PARTITION p2_max INTO (");
+		for (int i = 3; i <= 8; i++) {
+			LocalDate bound = today.plusDays(i);
+			expected.append("PARTITION p2_").append(name(bound)).append(" VALUES LESS THAN (2, '").append(bound).append("'), ");
+		}
+		expected.append("PARTITION p2_max VALUES LESS THAN (2, MAXVALUE))");
+		assertEquals(expected.toString(), statements.get(1));
+	}
+
+	@Test
+	@DisplayName("Monthly partitions are split at the first day of each month")
+	public void monthlyPartitions() {
+		LocalDate thisMonth = today.withDayOfMonth(1);
+		partitions("p0_" + name(thisMonth), "p0_max");
+
+		auditLogPartitionService.maintainPartitions();
+
+		StringBuilder expected = new StringBuilder("ALTER TABLE auditlogs REORGANIZE PARTITION p0_max INTO (");
+		LocalDate bound = thisMonth;
+		do {
+			bound = bound.plusMonths(1);
+			expected.append("PARTITION p0_").append(name(bound)).append(" VALUES LESS THAN (0, '").append(bound).append("'), ");
+		}
+		while (!bound.isAfter(today.plusDays(7)));
+		expected.append("PARTITION p0_max VALUES LESS THAN (0, MAXVALUE))");
+
+		assertEquals(expected.toString(), executedStatements(1).get(0));
+	}
+
+	@Test
+	@DisplayName("Nothing is changed when no partition has expired and the coming week is covered")
+	public void nothingToDo() {
+		partitions("p1_" + name(today.minusDays(10)), "p1_" + name(today.plusDays(10)), "p1_max");
+
+		auditLogPartitionService.maintainPartitions();
+
+		verify(jdbcTemplate, never()).execute(anyString());
+	}
+
+	@Test
+	@DisplayName("The tail partition is never split when there is no dated partition, and unknown partitions are ignored")
+	public void noDatedPartitions() {
+		partitions("p0_max", "p1_max", "p2_max", "p1_old");
+
+		auditLogPartitionService.maintainPartitions();
+
+		verify(jdbcTemplate, never()).execute(anyString());
+	}
+
+	private void partitions(String... names) {
+		when(jdbcTemplate.queryForList(anyString(), eq(String.class), eq("auditlogs"))).thenReturn(new ArrayList<>(List.of(names)));
+	}
+
+	private List<String> executedStatements(int count) {
+		ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+		verify(jdbcTemplate, times(count)).execute(sql.capture());
+
+		return sql.getAllValues();
+	}
+
+	private static String name(LocalDate bound) {
+		return PARTITION_NAME_FORMAT.format(bound);
+	}
+}
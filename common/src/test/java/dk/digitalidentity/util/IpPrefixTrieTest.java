@@ -0,0 +1,133 @@
+package dk.digitalidentity.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class IpPrefixTrieTest {
+
+	@Test
+	@DisplayName("The most specific of overlapping IPv4 networks wins")
+	public void longestPrefixMatchIpv4() throws Exception {
+		IpPrefixTrie<String> trie = new IpPrefixTrie<>();
+		trie.put("10.0.0.0/8", "a");
+		trie.put("10.1.2.3/32", "d");
+		trie.put("10.1.0.0/16", "b");
+		trie.put("10.1.2.0/24", "c");
+
+		assertEquals("d", trie.find(address("10.1.2.3")));
+		assertEquals("c", trie.find(address("10.1.2.4")));
+		assertEquals("b", trie.find(address("10.1.3.1")));
+		assertEquals("a", trie.find(address("10.2.0.0")));
+		assertNull(trie.find(address("11.0.0.1")));
+		assertEquals(4, trie.size());
+	}
+
+	@Test
+	@DisplayName("A network is only added once, and bits after the prefix are ignored")
+	public void duplicateNetworks() throws Exception {
+		IpPrefixTrie<String> trie = new IpPrefixTrie<>();
+
+		assertTrue(trie.put("10.0.0.0/24", "first"));
+		assertFalse(trie.put("10.0.0.5/24", "second"));
+		assertTrue(trie.put("10.0.0.5", "single"));
+		assertFalse(trie.put("10.0.0.5/32", "again"));
+
+		assertEquals("first", trie.find(address("10.0.0.200")));
+		assertEquals("single", trie.find(address("10.0.0.5")));
+		assertEquals(2, trie.size());
+	}
+
+	@Test
+	@DisplayName("IPv6 networks are matched by longest prefix, and are kept apart from IPv4 networks")
+	public void ipv6Networks() throws Exception {
+		IpPrefixTrie<String> trie = new IpPrefixTrie<>();
+		trie.put("2001:db8::/32", "x");
+		trie.put("2001:DB8:1::/48", "y");
+		trie.put("2001:db8:1::1/128", "z");
+
+		assertEquals("z", trie.find(address("2001:db8:1::1")));
+		assertEquals("y", trie.find(address("2001:db8:1::5")));
+		assertEquals("x", trie.find(address("2001:db8:2::1")));
+		assertNull(trie.find(address("2001:db9::1")));
+		assertNull(trie.find(address("10.0.0.1")));
+	}
+
+	@Test
+	@DisplayName("0.0.0.0/0 matches every IPv4 address, ::/0 matches every address")
+	public void zeroPrefix() throws Exception {
+		IpPrefixTrie<String> ipv4 = new IpPrefixTrie<>();
+		ipv4.put("0.0.0.0/0", "any-v4");
+
+		assertEquals("any-v4", ipv4.find(address("1.2.3.4")));
+		assertEquals("any-v4", ipv4.find(address("255.255.255.255")));
+		assertNull(ipv4.find(address("2001:db8::1")));
+
+		IpPrefixTrie<String> all = new IpPrefixTrie<>();
+		all.put("::/0", "any");
+		all.put("192.168.0.0/16", "lan");
+
+		assertEquals("any", all.find(address("2001:db8::1")));
+		assertEquals("any", all.find(address("1.2.3.4")));
+		assertEquals("lan", all.find(address("192.168.10.1")));
+	}
+
+	@Test
+	@DisplayName("Malformed networks are rejected")
+	public void malformedNetworks() {
+		String[] malformed = { null, "", "/8", "10.0.0.0/", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x", "10.0.0.0/8/8", "10.0.0/8", "999.0.0.0/8",
+				"10.0.0.0.0/8", "2001:db8::/129", "2001:db8:::1/64", "1:2:3:4:5:6:7:8:9/64", "2001:db8::g/64", "[2001:db8::]/32", "fe80::1%eth0/64" };
+
+		IpPrefixTrie<String> trie = new IpPrefixTrie<>();
+		for (String cidr : malformed) {
+			assertFalse(IpPrefixTrie.isValidCidr(cidr), cidr);
+
+			if (cidr != null) {
+				assertThrows(IllegalArgumentException.class, () -> trie.put(cidr, "value"), cidr);
+			}
+		}
+
+		assertEquals(0, trie.size());
+	}
+
+	@Test
+	@DisplayName("Host names are rejected instead of being resolved")
+	public void noDnsLookup() {
+		// all of these would have been resolved (or attempted) by InetAddress.getByName
+		assertFalse(IpPrefixTrie.isValidCidr("localhost"));
+		assertFalse(IpPrefixTrie.isValidCidr("localhost/32"));
+		assertFalse(IpPrefixTrie.isValidCidr("example.com/24"));
+		assertFalse(IpPrefixTrie.isValidCidr("smtp.example:25"));
+		assertFalse(IpPrefixTrie.isValidCidr("zz:1"));
+
+		assertNull(IPUtil.parseIpLiteral("localhost"));
+		assertNull(IPUtil.parseIpLiteral("example.com"));
+	}
+
+	@Test
+	@DisplayName("IP literals are parsed to the same bytes as InetAddress does")
+	public void parseIpLiteral() throws Exception {
+		String[] literals = { "0.0.0.0", "10.1.2.3", "255.255.255.255", "::", "::1", "2001:db8::1", "2001:0db8:0000:0000:0000:0000:0000:0001",
+				"fe80::1:2", "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "1:2:3:4:5:6:7:8", "::10.0.0.1", "64:ff9b::192.0.2.1" };
+
+		for (String literal : literals) {
+			assertArrayEquals(InetAddress.getByName(literal).getAddress(), IPUtil.parseIpLiteral(literal), literal);
+		}
+
+		// InetAddress turns IPv4-mapped addresses into IPv4 addresses, the trie stores IPv4 addresses like this anyway
+		assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 10, 0, 0, 1 }, IPUtil.parseIpLiteral("::ffff:10.0.0.1"));
+	}
+
+	private static InetAddress address(String literal) throws UnknownHostException {
+		return InetAddress.getByAddress(IPUtil.parseIpLiteral(literal));
+	}
+}
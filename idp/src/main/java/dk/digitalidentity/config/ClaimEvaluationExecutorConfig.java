@@ -0,0 +1,26 @@
+package dk.digitalidentity.config;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class ClaimEvaluationExecutorConfig {
+
+	// used for performing the remote (OS2rollekatalog) claim lookups for a single login in parallel. If the pool is
+	// exhausted, the lookup is performed on the calling thread, so we degrade to the old sequential behaviour
+	@Bean(name = "claimEvaluationExecutor")
+	public ThreadPoolTaskExecutor claimEvaluationExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(10);
+		executor.setMaxPoolSize(50);
+		executor.setQueueCapacity(100);
+		executor.setThreadNamePrefix("claim-evaluation-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.initialize();
+
+		return executor;
+	}
+}
@@ -0,0 +1,22 @@
+package dk.digitalidentity.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class RadiusMfaExecutorConfig {
+
+	// used for checking the status of the MFA challenges for RADIUS logins that are waiting for the user to respond. A login
+	// is only checked by one thread at a time, so the queue never holds more than one task per pending login
+	@Bean(name = "radiusMfaExecutor")
+	public ThreadPoolTaskExecutor radiusMfaExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(10);
+		executor.setMaxPoolSize(10);
+		executor.setThreadNamePrefix("radius-mfa-");
+		executor.initialize();
+
+		return executor;
+	}
+}
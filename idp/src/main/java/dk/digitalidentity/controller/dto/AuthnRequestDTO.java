@@ -0,0 +1,194 @@
+package dk.digitalidentity.controller.dto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.impl.AuthnRequestMarshaller;
+import org.opensaml.saml.saml2.core.impl.AuthnRequestUnmarshaller;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import dk.digitalidentity.util.ResponderException;
+import lombok.Getter;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * Compact session representation of an AuthnRequest. The values needed during the login flow are stored as
+ * plain fields, and the original XML is only kept in deflated form, so it can be unmarshalled again (with the
+ * signature intact) when the full AuthnRequest is actually needed.
+ *
+ * The serialized form is written by hand and prefixed with a format version, so the session rows stay small
+ * and the format can be changed later without breaking sessions that are already stored.
+ */
+@Getter
+public class AuthnRequestDTO implements Serializable {
+	private static final long serialVersionUID = 2887411063870530251L;
+	private static final byte FORMAT_VERSION = 1;
+
+	private transient String id;
+	private transient String issuer;
+	private transient String assertionConsumerServiceURL;
+	private transient String destination;
+	private transient String nameIdPolicyFormat;
+	private transient List<String> requestedAuthnContextClassRefs;
+	private transient boolean forceAuthn;
+	private transient boolean passive;
+	private transient byte[] deflatedXml;
+
+	public AuthnRequestDTO(AuthnRequest authnRequest) throws MarshallingException {
+		this.id = authnRequest.getID();
+		this.issuer = (authnRequest.getIssuer() != null) ? authnRequest.getIssuer().getValue() : null;
+		this.assertionConsumerServiceURL = authnRequest.getAssertionConsumerServiceURL();
+		this.destination = authnRequest.getDestination();
+		this.nameIdPolicyFormat = (authnRequest.getNameIDPolicy() != null) ? authnRequest.getNameIDPolicy().getFormat() : null;
+		this.forceAuthn = authnRequest.isForceAuthn();
+		this.passive = authnRequest.isPassive();
+
+		List<String> classRefs = new ArrayList<>();
+		if (authnRequest.getRequestedAuthnContext() != null && authnRequest.getRequestedAuthnContext().getAuthnContextClassRefs() != null) {
+			for (AuthnContextClassRef classRef : authnRequest.getRequestedAuthnContext().getAuthnContextClassRefs()) {
+				classRefs.add(classRef.getAuthnContextClassRef());
+			}
+		}
+		this.requestedAuthnContextClassRefs = Collections.unmodifiableList(classRefs);
+
+		// marshalling an unmarshalled object returns the cached DOM, so the signature survives the roundtrip
+		Element element = new AuthnRequestMarshaller().marshall(authnRequest);
+		this.deflatedXml = deflate(SerializeSupport.nodeToString(element).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public AuthnRequest toAuthnRequest() throws ResponderException {
+		try {
+			Document document = XMLObjectProviderRegistrySupport.getParserPool().parse(new ByteArrayInputStream(inflate(deflatedXml)));
+
+			return (AuthnRequest) new AuthnRequestUnmarshaller().unmarshall(document.getDocumentElement());
+		}
+		catch (XMLParserException | UnmarshallingException | DataFormatException ex) {
+			throw new ResponderException("Kunne ikke afkode login forespørgsel, Fejl url ikke kendt", ex);
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeByte(FORMAT_VERSION);
+
+		writeNullableString(out, id);
+		writeNullableString(out, issuer);
+		writeNullableString(out, assertionConsumerServiceURL);
+		writeNullableString(out, destination);
+		writeNullableString(out, nameIdPolicyFormat);
+
+		out.writeShort(requestedAuthnContextClassRefs.size());
+		for (String classRef : requestedAuthnContextClassRefs) {
+			writeNullableString(out, classRef);
+		}
+
+		out.writeBoolean(forceAuthn);
+		out.writeBoolean(passive);
+
+		out.writeInt(deflatedXml.length);
+		out.write(deflatedXml);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new InvalidObjectException("Unsupported AuthnRequestDTO format version: " + version);
+		}
+
+		id = readNullableString(in);
+		issuer = readNullableString(in);
+		assertionConsumerServiceURL = readNullableString(in);
+		destination = readNullableString(in);
+		nameIdPolicyFormat = readNullableString(in);
+
+		int classRefCount = in.readShort();
+		List<String> classRefs = new ArrayList<>(classRefCount);
+		for (int i = 0; i < classRefCount; i++) {
+			classRefs.add(readNullableString(in));
+		}
+		requestedAuthnContextClassRefs = Collections.unmodifiableList(classRefs);
+
+		forceAuthn = in.readBoolean();
+		passive = in.readBoolean();
+
+		deflatedXml = new byte[in.readInt()];
+		in.readFully(deflatedXml);
+	}
+
+	private static void writeNullableString(ObjectOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullableString(ObjectInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data) throws DataFormatException {
+		Inflater inflater = new Inflater();
+
+		try {
+			inflater.setInput(data);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("Truncated AuthnRequest data");
+				}
+
+				out.write(buffer, 0, count);
+			}
+
+			return out.toByteArray();
+		}
+		finally {
+			inflater.end();
+		}
+	}
+}
@@ -12,6 +12,7 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import lombok.SneakyThrows;
 
 @Getter
 @Setter
@@ -34,6 +35,7 @@ public class LoginRequest {
 
 	// protocol specific
 	private AuthnRequest authnRequest;
+	private AuthnRequestDTO authnRequestDTO;
 	private OAuth2AuthorizationCodeRequestAuthenticationToken token;
 	private EntraPayload entraPayload;
 
@@ -84,7 +86,7 @@ public class LoginRequest {
 		this.wsFedLoginParameters = loginParameters.toString();
 	}
 
-	public LoginRequest(LoginRequestDTO loginRequestDTO, AuthnRequest authnRequest, String userAgent) {
+	public LoginRequest(LoginRequestDTO loginRequestDTO, AuthnRequestDTO authnRequestDTO, String userAgent) {
 		this.protocol = loginRequestDTO.getProtocol();
 		this.serviceProviderId = loginRequestDTO.getServiceProviderId();
 		this.returnURL = loginRequestDTO.getReturnURL();
@@ -94,7 +96,7 @@ public class LoginRequest {
 		this.token = loginRequestDTO.getToken();
 		this.relayState = loginRequestDTO.getRelayState();
 		this.userAgent = userAgent;
-		this.authnRequest = authnRequest;
+		this.authnRequestDTO = authnRequestDTO;
 		this.entraPayload = loginRequestDTO.getEntraPayload();
 	}
 
@@ -107,4 +109,14 @@ public class LoginRequest {
 		this.requireBrokering = false;
 		this.userAgent = userAgent;
 	}
+
+	// when restored from the session, the AuthnRequest is only unmarshalled if it is actually needed
+	@SneakyThrows
+	public AuthnRequest getAuthnRequest() {
+		if (authnRequest == null && authnRequestDTO != null) {
+			authnRequest = authnRequestDTO.toAuthnRequest();
+		}
+
+		return authnRequest;
+	}
 }
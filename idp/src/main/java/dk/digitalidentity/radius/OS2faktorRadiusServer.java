@@ -1,6 +1,7 @@
 package dk.digitalidentity.radius;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 
 import org.tinyradius.packet.AccessRequest;
@@ -25,8 +26,11 @@ public class OS2faktorRadiusServer extends RadiusServer {
 		this.radiusConfiguration = radiusConfiguration;
 		
 		if (this.radiusConfiguration.isEnabled()) {
-			// configure thread pool
-			this.executor =  Executors.newFixedThreadPool(5);
+			// a platform thread for each request that may be in progress - packets arriving above that limit are dropped. Virtual
+			// threads do not help here, as the JDBC driver synchronizes internally and would pin their carrier threads
+			int maxConcurrentRequests = Math.max(1, radiusConfiguration.getMaxConcurrentRequests());
+			this.executor = Executors.newFixedThreadPool(maxConcurrentRequests);
+			this.setMaxPendingRequests(maxConcurrentRequests);
 
 			this.start();
 		}		
@@ -39,6 +43,12 @@ public class OS2faktorRadiusServer extends RadiusServer {
 
 	@Override
 	public RadiusPacket accessRequestReceived(AccessRequest accessRequest, InetSocketAddress client) throws RadiusException {
+		return accessRequestReceivedAsync(accessRequest, client).join();
+	}
+
+	// MFA logins are answered when the user responds, without holding one of the threads from the pool while waiting
+	@Override
+	public CompletableFuture<RadiusPacket> accessRequestReceivedAsync(AccessRequest accessRequest, InetSocketAddress client) throws RadiusException {
 		return os2faktorRadiusService.accessRequestReceived(requireMfa, accessRequest, client);
 	}
 	
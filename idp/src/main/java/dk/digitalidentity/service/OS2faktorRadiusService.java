@@ -1,7 +1,5 @@
 package dk.digitalidentity.service;
 
-import java.net.Inet4Address;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -10,6 +8,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -36,6 +35,7 @@ import dk.digitalidentity.common.service.PersonService;
 import dk.digitalidentity.common.service.RadiusClientService;
 import dk.digitalidentity.common.service.mfa.MFAService;
 import dk.digitalidentity.common.service.mfa.model.MfaAuthenticationResponse;
+import dk.digitalidentity.service.RadiusClientRegistry.RadiusClientEntry;
 import dk.digitalidentity.service.model.enums.PasswordValidationResult;
 import lombok.extern.slf4j.Slf4j;
 
@@ -60,11 +60,17 @@ public class OS2faktorRadiusService {
 	
 	@Autowired
 	private AdvancedRuleService advancedRuleService;
+
+	@Autowired
+	private RadiusMfaPoller radiusMfaPoller;
+
+	@Autowired
+	private RadiusClientRegistry radiusClientRegistry;
 	
 	public String getSharedSecret(InetSocketAddress client) {
-		RadiusClient radiusClient = getRadiusClient(client);
+		RadiusClientEntry radiusClient = radiusClientRegistry.find(client.getAddress());
 		if (radiusClient != null) {
-			return radiusClient.getPassword();
+			return radiusClient.password();
 		}
 		
 		// if we cannot find a client, we return a random UUID, which ensures that any random
@@ -72,8 +78,13 @@ public class OS2faktorRadiusService {
 		return UUID.randomUUID().toString();
 	}
 
+	/**
+	 * Validates the request, and for MFA logins sends the challenges. The returned future is completed when the answer is ready, which
+	 * for MFA logins is when the user responds to a challenge (or the challenges time out), so neither a RADIUS thread nor the
+	 * transaction is held while waiting for the user.
+	 */
 	@Transactional
-	public RadiusPacket accessRequestReceived(boolean requireMfa, AccessRequest accessRequest, InetSocketAddress client) throws RadiusException {
+	public CompletableFuture<RadiusPacket> accessRequestReceived(boolean requireMfa, AccessRequest accessRequest, InetSocketAddress client) throws RadiusException {
 		String reasonText = "Årsag ukendt";
 		RadiusClient radiusClient = getRadiusClient(client);
 		int type = RadiusPacket.ACCESS_REJECT;
@@ -169,51 +180,22 @@ public class OS2faktorRadiusService {
 									}
 									else {
 										log.info("Challenges send to " + challenges.size() + " MFA clients for " + username);
-				
-										// wait up to 60 seconds for one of them to respond
-										int counter = 0;
-										
-										while (counter < 60) {
-											counter++;
-					
-											boolean responseReceived = false;
-											for (MfaAuthenticationResponse challenge : challenges) {
-												MfaAuthenticationResponse result = mfaService.getMfaAuthenticationResponse(challenge.getSubscriptionKey(), person);
-	
-												if (result == null) {
-													; // skip this round and try again
-												}
-												else if (result.isClientRejected()) {
-													responseReceived = true;
-													reasonText = "2-faktor enhed afviste login forespørgsel";
-												}
-												else if (result.isClientAuthenticated()) {
-													type = RadiusPacket.ACCESS_ACCEPT;
-													responseReceived = true;
-												}
-												
-												if (responseReceived) {
-													break;
-												}
-											}
-					
-											if (responseReceived) {
-												break;
-											}
-					
-											// wait 1 second, and try again
-											try {
-												Thread.sleep(1000);
-											}
-											catch (InterruptedException ex) {
-												; // ignore
+
+										// wait up to 60 seconds for one of them to respond, the answer is sent when that happens
+										Person mfaPerson = person;
+										List<RadiusAttribute> attributes = getClaimAttributes(radiusClient, person);
+
+										return radiusMfaPoller.waitForResponse(challenges, person).thenApply(result -> {
+											switch (result) {
+												case ACCEPTED:
+													return createAnswer(RadiusPacket.ACCESS_ACCEPT, null, mfaPerson, attributes, accessRequest);
+												case REJECTED:
+													return createAnswer(RadiusPacket.ACCESS_REJECT, "2-faktor enhed afviste login forespørgsel", mfaPerson, attributes, accessRequest);
+												default:
+													log.warn("No response within 60 seconds from " + username);
+													return createAnswer(RadiusPacket.ACCESS_REJECT, "Timeout (60 sekunder) for " + username, mfaPerson, attributes, accessRequest);
 											}
-										}
-										
-										if (counter == 60) {
-											log.warn("No response within 60 seconds from " + username);
-											reasonText = "Timeout (60 sekunder) for " + username;
-										}
+										});
 									}
 								}
 								else {
@@ -245,14 +227,25 @@ public class OS2faktorRadiusService {
 			reasonText = "Ukendt RADIUS klient";
 		}
 		
+		return CompletableFuture.completedFuture(createAnswer(type, reasonText, person, getClaimAttributes(radiusClient, person), accessRequest));
+	}
+
+	private RadiusPacket createAnswer(int type, String reasonText, Person person, List<RadiusAttribute> attributes, AccessRequest accessRequest) {
 		if (type == RadiusPacket.ACCESS_ACCEPT) {
 			auditLogger.radiusLoginRequestAccepted(person);
 		}
 		else {
 			auditLogger.radiusLoginRequestRejected(person, reasonText);
 		}
-		
-		// copy claims if available
+
+		RadiusPacket answer = new RadiusPacket(type, accessRequest.getPacketIdentifier(), attributes);
+		copyProxyState(accessRequest, answer);
+
+		return answer;
+	}
+
+	// copy claims if available
+	private List<RadiusAttribute> getClaimAttributes(RadiusClient radiusClient, Person person) {
 		List<RadiusAttribute> attributes = new ArrayList<>();
 		for (RadiusClientClaim claim : radiusClient.getClaims()) {
 			long attributeType = claim.getAttributeId();
@@ -265,11 +258,8 @@ public class OS2faktorRadiusService {
                 attributes.add(radiusAttribute);
             }
 		}
-		
-		RadiusPacket answer = new RadiusPacket(type, accessRequest.getPacketIdentifier(), attributes);
-		copyProxyState(accessRequest, answer);
 
-		return answer;
+		return attributes;
 	}
 
 	private void copyProxyState(RadiusPacket request, RadiusPacket answer) {
@@ -282,64 +272,12 @@ public class OS2faktorRadiusService {
 	}
 
 	private RadiusClient getRadiusClient(InetSocketAddress client) {
-		RadiusClient foundRadiusClient = null;
-		InetAddress address = client.getAddress();
-
-		if (address instanceof Inet4Address) {
-			String ipAddress = ((Inet4Address) address).getHostAddress();
-
-			String[] inetSplit = ipAddress.split("\\.");
-			int inetSegment1 = Integer.parseInt(inetSplit[0]);
-			int inetSegment2 = Integer.parseInt(inetSplit[1]);
-			int inetSegment3 = Integer.parseInt(inetSplit[2]);
-			int inetSegment4 = Integer.parseInt(inetSplit[3]);
-
-			List<RadiusClient> radiusClients = radiusClientService.getAllFullyLoaded();
-			for (RadiusClient radiusClient : radiusClients) {
-				boolean found = false;
-
-				String[] split = radiusClient.getIpAddress().split("\\.");
-				int segment1 = Integer.parseInt(split[0]);
-				int segment2 = Integer.parseInt(split[1]);
-				int segment3 = Integer.parseInt(split[2]);
-				int segment4 = Integer.parseInt(split[3].split("/")[0]);
-				int afterIp = Integer.parseInt(split[3].split("/")[1]);
-
-				if (afterIp == 16) {
-					if (segment1 == inetSegment1 && segment2 == inetSegment2) {
-						found = true;
-					}					
-				}
-				else if (afterIp == 24) {
-					if (segment1 == inetSegment1 && segment2 == inetSegment2 && segment3 == inetSegment3) {
-						found = true;
-					}
-				}
-				else if (afterIp == 32) {
-					if (segment1 == inetSegment1 && segment2 == inetSegment2 && segment3 == inetSegment3 && segment4 == inetSegment4) {
-						found = true;
-					}
-				}
-				else {
-					log.error("The number efter the / in the ip address for the radius client does not equal 16, 24 or 32 - ip address: " + radiusClient.getIpAddress());
-
-					return null;
-				}
-
-				if (found) {
-					foundRadiusClient = radiusClient;
-					break;
-				}
-			}
-			
-			if (foundRadiusClient == null) {
-				log.warn("Could not find client with ip address " + ipAddress);
-			}
-		}
-		else {
-			log.warn("Client address is not an IPv4 address: " + address.getClass().getCanonicalName());
+		RadiusClientEntry entry = radiusClientRegistry.find(client.getAddress());
+		if (entry == null) {
+			log.warn("Could not find client with ip address " + client.getAddress().getHostAddress());
+			return null;
 		}
 
-		return foundRadiusClient;
+		return radiusClientService.getByIdFullyLoaded(entry.id());
 	}
 }
@@ -0,0 +1,87 @@
+package dk.digitalidentity.service;
+
+import java.net.InetAddress;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import dk.digitalidentity.common.config.CommonConfiguration;
+import dk.digitalidentity.common.dao.model.RadiusClient;
+import dk.digitalidentity.common.service.RadiusClientService;
+import dk.digitalidentity.util.IpPrefixTrie;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory snapshot of the RADIUS clients, indexed by network, so finding the client for a packet does not read all clients from
+ * the database. The snapshot is reloaded every minute, and also when a packet arrives from an unknown address (at most every
+ * 10 seconds), so a newly created client can be used right away. Only what is needed to identify the client is kept, the full
+ * client is read by id when handling the request.
+ */
+@Slf4j
+@Component
+@EnableScheduling
+public class RadiusClientRegistry {
+	private static final long MIN_RELOAD_INTERVAL_MS = 10 * 1000;
+
+	public record RadiusClientEntry(long id, String name, String password) { }
+
+	@Autowired
+	private RadiusClientService radiusClientService;
+
+	@Autowired
+	private CommonConfiguration commonConfiguration;
+
+	private volatile IpPrefixTrie<RadiusClientEntry> clients = new IpPrefixTrie<>();
+	private volatile long lastLoad = 0;
+
+	// the most specific client network containing the address, or null
+	public RadiusClientEntry find(InetAddress address) {
+		RadiusClientEntry entry = clients.find(address);
+
+		if (entry == null && lastLoad < System.currentTimeMillis() - MIN_RELOAD_INTERVAL_MS) {
+			reload();
+			entry = clients.find(address);
+		}
+
+		return entry;
+	}
+
+	@Scheduled(cron = "0 * * * * *")
+	public void reloadTask() {
+		if (commonConfiguration.getRadiusConfiguration().isEnabled()) {
+			reload();
+		}
+	}
+
+	public synchronized void reload() {
+		if (lastLoad >= System.currentTimeMillis() - MIN_RELOAD_INTERVAL_MS && clients.size() > 0) {
+			// another thread reloaded while we waited
+			return;
+		}
+
+		try {
+			IpPrefixTrie<RadiusClientEntry> newClients = new IpPrefixTrie<>();
+
+			for (RadiusClient radiusClient : radiusClientService.getAll()) {
+				if (!IpPrefixTrie.isValidCidr(radiusClient.getIpAddress())) {
+					log.error("Invalid ip address for radius client " + radiusClient.getName() + ": " + radiusClient.getIpAddress());
+					continue;
+				}
+
+				if (!newClients.put(radiusClient.getIpAddress(), new RadiusClientEntry(radiusClient.getId(), radiusClient.getName(), radiusClient.getPassword()))) {
+					log.warn("Multiple radius clients with ip address " + radiusClient.getIpAddress() + ", ignoring " + radiusClient.getName());
+				}
+			}
+
+			clients = newClients;
+		}
+		catch (Exception ex) {
+			log.error("Failed to load radius clients", ex);
+		}
+		finally {
+			lastLoad = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package dk.digitalidentity.service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import dk.digitalidentity.common.config.CommonConfiguration;
+import dk.digitalidentity.common.dao.model.Person;
+import dk.digitalidentity.common.service.mfa.MFAService;
+import dk.digitalidentity.common.service.mfa.model.MfaAuthenticationResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Waits for the user to respond to the MFA challenges sent for a RADIUS login, without holding a thread per login. All pending
+ * logins are checked once a second by a single poller, which hands the status lookups to the radiusMfaExecutor, and the future
+ * for a login is completed as soon as one of its MFA clients accepts or rejects the login, or after 60 seconds without a response.
+ */
+@Slf4j
+@Component
+public class RadiusMfaPoller {
+	private static final long TIMEOUT_MS = 60 * 1000;
+	private static final long POLL_INTERVAL_MS = 1000;
+
+	public enum MfaResult { ACCEPTED, REJECTED, TIMEOUT }
+
+	@Autowired
+	private MFAService mfaService;
+
+	@Autowired
+	private CommonConfiguration commonConfiguration;
+
+	@Qualifier("radiusMfaExecutor")
+	@Autowired
+	private ThreadPoolTaskExecutor radiusMfaExecutor;
+
+	private Set<PendingLogin> pendingLogins = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService poller;
+
+	@PostConstruct
+	public void init() {
+		if (!commonConfiguration.getRadiusConfiguration().isEnabled()) {
+			return;
+		}
+
+		poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "radius-mfa-poller");
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (poller != null) {
+			poller.shutdownNow();
+		}
+	}
+
+	public CompletableFuture<MfaResult> waitForResponse(List<MfaAuthenticationResponse> challenges, Person person) {
+		PendingLogin pendingLogin = new PendingLogin(challenges, person, System.currentTimeMillis() + TIMEOUT_MS);
+		pendingLogins.add(pendingLogin);
+
+		return pendingLogin.future;
+	}
+
+	private void poll() {
+		// an exception would stop the scheduled polling, so never let one escape
+		try {
+			long now = System.currentTimeMillis();
+
+			for (PendingLogin pendingLogin : pendingLogins) {
+				if (pendingLogin.future.isDone()) {
+					pendingLogins.remove(pendingLogin);
+				}
+				else if (pendingLogin.deadline < now) {
+					pendingLogins.remove(pendingLogin);
+					pendingLogin.future.complete(MfaResult.TIMEOUT);
+				}
+				else if (pendingLogin.checking.compareAndSet(false, true)) {
+					try {
+						radiusMfaExecutor.execute(() -> check(pendingLogin));
+					}
+					catch (TaskRejectedException ex) {
+						pendingLogin.checking.set(false);
+					}
+				}
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to poll pending RADIUS MFA logins", ex);
+		}
+	}
+
+	private void check(PendingLogin pendingLogin) {
+		try {
+			for (MfaAuthenticationResponse challenge : pendingLogin.challenges) {
+				MfaAuthenticationResponse result = mfaService.getMfaAuthenticationResponse(challenge.getSubscriptionKey(), pendingLogin.person);
+
+				if (result == null) {
+					; // skip this round and try again
+				}
+				else if (result.isClientRejected()) {
+					pendingLogin.future.complete(MfaResult.REJECTED);
+					break;
+				}
+				else if (result.isClientAuthenticated()) {
+					pendingLogin.future.complete(MfaResult.ACCEPTED);
+					break;
+				}
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to check MFA status for person with uuid " + pendingLogin.person.getUuid(), ex);
+		}
+		finally {
+			pendingLogin.checking.set(false);
+		}
+	}
+
+	private static class PendingLogin {
+		private final List<MfaAuthenticationResponse> challenges;
+		private final Person person;
+		private final long deadline;
+		private final CompletableFuture<MfaResult> future = new CompletableFuture<>();
+
+		// true while a status check is running for this login
+		private final AtomicBoolean checking = new AtomicBoolean(false);
+
+		private PendingLogin(List<MfaAuthenticationResponse> challenges, Person person, long deadline) {
+			this.challenges = challenges;
+			this.person = person;
+			this.deadline = deadline;
+		}
+	}
+}
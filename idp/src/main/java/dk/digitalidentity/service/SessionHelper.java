@@ -25,7 +25,6 @@ import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.LogoutRequest;
-import org.opensaml.saml.saml2.core.impl.AuthnRequestMarshaller;
 import org.opensaml.saml.saml2.core.impl.AuthnRequestUnmarshaller;
 import org.opensaml.saml.saml2.core.impl.LogoutRequestMarshaller;
 import org.opensaml.saml.saml2.core.impl.LogoutRequestUnmarshaller;
@@ -49,6 +48,7 @@ import dk.digitalidentity.common.service.SessionSettingService;
 import dk.digitalidentity.common.service.enums.ChangePasswordResult;
 import dk.digitalidentity.common.service.mfa.model.MfaClient;
 import dk.digitalidentity.config.OS2faktorConfiguration;
+import dk.digitalidentity.controller.dto.AuthnRequestDTO;
 import dk.digitalidentity.controller.dto.ClaimValueDTO;
 import dk.digitalidentity.controller.dto.LoginRequest;
 import dk.digitalidentity.controller.dto.LoginRequestDTO;
@@ -482,7 +482,7 @@ public class SessionHelper {
 		}
 	}
 
-	private AuthnRequest getAuthnRequest() throws ResponderException {
+	private AuthnRequestDTO getAuthnRequest() throws ResponderException {
 		HttpServletRequest httpServletRequest = getServletRequest();
 		if (httpServletRequest == null) {
 			return null;
@@ -494,33 +494,38 @@ public class SessionHelper {
 			return null;
 		}
 
-		try {
-			Element marshalledAuthnRequest = (Element) attribute;
-			return (AuthnRequest) new AuthnRequestUnmarshaller().unmarshall(marshalledAuthnRequest);
-		}
-		catch (UnmarshallingException ex) {
-			throw new ResponderException("Kunne ikke afkode login forespørgsel, Fejl url ikke kendt", ex);
+		// sessions created before the compact format was introduced still contain the marshalled DOM
+		if (attribute instanceof Element marshalledAuthnRequest) {
+			try {
+				return new AuthnRequestDTO((AuthnRequest) new AuthnRequestUnmarshaller().unmarshall(marshalledAuthnRequest));
+			}
+			catch (UnmarshallingException | MarshallingException ex) {
+				throw new ResponderException("Kunne ikke afkode login forespørgsel, Fejl url ikke kendt", ex);
+			}
 		}
+
+		return (AuthnRequestDTO) attribute;
 	}
 
-	private void setAuthnRequest(AuthnRequest authnRequest) throws ResponderException {
+	private void setAuthnRequest(LoginRequest loginRequest) throws ResponderException {
 		HttpServletRequest httpServletRequest = getServletRequest();
 		if (httpServletRequest == null) {
 			return;
 		}
 
-		if (authnRequest == null) {
-			httpServletRequest.getSession().setAttribute(Constants.AUTHN_REQUEST, null);
-			return;
+		// no need to marshall the AuthnRequest again, if it was restored from the session and never touched
+		AuthnRequestDTO authnRequestDTO = loginRequest.getAuthnRequestDTO();
+		if (authnRequestDTO == null && loginRequest.getAuthnRequest() != null) {
+			try {
+				authnRequestDTO = new AuthnRequestDTO(loginRequest.getAuthnRequest());
+				loginRequest.setAuthnRequestDTO(authnRequestDTO);
+			}
+			catch (MarshallingException ex) {
+				throw new ResponderException("Kunne ikke omforme login forespørgsel (AuthnRequest)", ex);
+			}
 		}
 
-		try {
-			Element marshall = new AuthnRequestMarshaller().marshall(authnRequest);
-			httpServletRequest.getSession().setAttribute(Constants.AUTHN_REQUEST, marshall);
-		}
-		catch (MarshallingException ex) {
-			throw new ResponderException("Kunne ikke omforme login forespørgsel (AuthnRequest)", ex);
-		}
+		httpServletRequest.getSession().setAttribute(Constants.AUTHN_REQUEST, authnRequestDTO);
 	}
 
 	public void setLoginRequest(LoginRequest loginRequest) throws ResponderException {
@@ -531,14 +536,16 @@ public class SessionHelper {
 
 		if (loginRequest == null) {
 			httpServletRequest.getSession().setAttribute(Constants.LOGIN_REQUEST, null);
-			setAuthnRequest(null);
+			httpServletRequest.getSession().setAttribute(Constants.AUTHN_REQUEST, null);
+			httpServletRequest.removeAttribute(Constants.LOGIN_REQUEST_CACHE);
 			return;
 		}
 		
 		// TODO maybe refactor this at some point, the LoginRequest/LoginRequestDTO is an inelegant solution
-		setAuthnRequest(loginRequest.getAuthnRequest());
+		setAuthnRequest(loginRequest);
 		setRelayState(loginRequest.getRelayState());
 		httpServletRequest.getSession().setAttribute(Constants.LOGIN_REQUEST, new LoginRequestDTO(loginRequest));
+		httpServletRequest.removeAttribute(Constants.LOGIN_REQUEST_CACHE);
 	}
 
 	public LoginRequest getLoginRequest() throws ResponderException {
@@ -547,12 +554,21 @@ public class SessionHelper {
 			return null;
 		}
 
+		// the LoginRequest is read many times during a single request, so it is only restored from the session once
+		Object cached = httpServletRequest.getAttribute(Constants.LOGIN_REQUEST_CACHE);
+		if (cached != null) {
+			return (LoginRequest) cached;
+		}
+
 		Object loginRequestObj = httpServletRequest.getSession().getAttribute(Constants.LOGIN_REQUEST);
 		if (loginRequestObj == null) {
 			return null;
 		}
 		
-		return new LoginRequest((LoginRequestDTO) loginRequestObj, getAuthnRequest(), httpServletRequest.getHeader("User-Agent"));
+		LoginRequest loginRequest = new LoginRequest((LoginRequestDTO) loginRequestObj, getAuthnRequest(), httpServletRequest.getHeader("User-Agent"));
+		httpServletRequest.setAttribute(Constants.LOGIN_REQUEST_CACHE, loginRequest);
+
+		return loginRequest;
 	}
 
 	public String getRelayState() {
@@ -603,7 +619,20 @@ public class SessionHelper {
 
 		if (attribute != null) {
 			long personId = (long) attribute;
-			return personService.getById(personId);
+
+			// getPerson() is called many times during a single request, so the person is only loaded once per request. With
+			// open-in-view this is the same managed instance the persistence context would return anyway, so changes made
+			// to the person later in the request are still visible to the callers
+			Object cached = httpServletRequest.getAttribute(Constants.PERSON_CACHE);
+			if (cached instanceof Person cachedPerson && cachedPerson.getId() == personId) {
+				return cachedPerson;
+			}
+
+			Person person = personService.getById(personId);
+
+			httpServletRequest.setAttribute(Constants.PERSON_CACHE, person);
+
+			return person;
 		}
 
 		return null;
@@ -616,6 +645,7 @@ public class SessionHelper {
 		}
 
 		httpServletRequest.getSession().setAttribute(Constants.PERSON_ID, person == null ? null : person.getId());
+		httpServletRequest.removeAttribute(Constants.PERSON_CACHE);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -1458,6 +1488,10 @@ public class SessionHelper {
 
 		httpServletRequest.getSession().invalidate();
 
+		// the per-request copies were read from the session that is now gone
+		httpServletRequest.removeAttribute(Constants.LOGIN_REQUEST_CACHE);
+		httpServletRequest.removeAttribute(Constants.PERSON_CACHE);
+
 		if (log.isDebugEnabled()) {
 			log.debug("Session invalidated");
 		}
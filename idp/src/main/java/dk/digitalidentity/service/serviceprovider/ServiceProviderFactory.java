@@ -1,20 +1,25 @@
 package dk.digitalidentity.service.serviceprovider;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import org.apache.http.client.HttpClient;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.security.oauth2.server.authorization.authentication.OAuth2AuthorizationCodeRequestAuthenticationToken;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
 import dk.digitalidentity.common.dao.model.SqlServiceProviderConfiguration;
+import dk.digitalidentity.common.dao.model.enums.Protocol;
 import dk.digitalidentity.common.log.AuditLogger;
 import dk.digitalidentity.common.service.AdvancedRuleService;
 import dk.digitalidentity.common.service.RoleCatalogueService;
@@ -31,6 +36,9 @@ import lombok.extern.slf4j.Slf4j;
 public class ServiceProviderFactory {
     private LocalDateTime lastReload;
 
+    // request threads only ever read this reference, reloads build a new registry and swap it in
+    private volatile ServiceProviderRegistry registry = new ServiceProviderRegistry(Collections.emptyList());
+
 	@Autowired
     private SqlServiceProviderConfigurationService serviceProviderConfigurationService;
 
@@ -51,24 +59,35 @@ public class ServiceProviderFactory {
     
     @Autowired
     private AuditLogger auditLogger;
+
+    @Qualifier("claimEvaluationExecutor")
+    @Autowired
+    private Executor claimEvaluationExecutor;
     
     @PostConstruct
     public void loadServiceProviderFactory() {
-        serviceProviders = serviceProviders.stream()
+        registry = new ServiceProviderRegistry(serviceProviders.stream()
                 .filter(serviceProvider -> !(serviceProvider instanceof SqlServiceProvider) && serviceProvider.enabled())
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
 
         // calling this method bypasses the @Transactional annotation, which is okay in this specific case
         loadSQLServiceProviders();
 
-        log.info(serviceProviders.size() + " ServiceProviders initialized");
+        log.info(registry.getServiceProviders().size() + " ServiceProviders initialized");
     }
 
     @Transactional
-    public void loadSQLServiceProviders() {
+    public synchronized void loadSQLServiceProviders() {
         LocalDateTime nextLastReload = LocalDateTime.now();
 
+        // work on a copy, the current registry is still in use by request threads until the new one is swapped in
+        List<ServiceProvider> newServiceProviders = new ArrayList<>(registry.getServiceProviders());
+
+        // instances that have been replaced with a new instance with fresh metadata, their resolvers are destroyed after the swap
+        List<SqlServiceProvider> replacedServiceProviders = new ArrayList<>();
+
         List<SqlServiceProviderConfiguration> allConfigs = serviceProviderConfigurationService.getAllLoadedFully();
+        boolean changed = false;
         
         // add or update
         for (SqlServiceProviderConfiguration config : allConfigs) {
@@ -77,7 +96,8 @@ public class ServiceProviderFactory {
             }
 
             boolean foundExisting = false;
-            for (ServiceProvider serviceProvider : serviceProviders) {
+            for (int i = 0; i < newServiceProviders.size(); i++) {
+                ServiceProvider serviceProvider = newServiceProviders.get(i);
                 if (!(serviceProvider instanceof SqlServiceProvider)) {
                     continue;
                 }
@@ -92,17 +112,24 @@ public class ServiceProviderFactory {
                     String newMetadataUrl = config.getMetadataUrl();
                     
                     boolean refreshMetadata = !Objects.equals(newTimestamp, oldTimestamp) || !Objects.equals(oldMetadataUrl, newMetadataUrl);
-                    boolean recreateResolver = !Objects.equals(oldMetadataUrl, newMetadataUrl);
                     
                     if (lastReload == null || lastReload.isBefore(config.getLastUpdated())) {
                         log.info("Updating SQL SP with entityID: " + config.getEntityId());
 
-                        sqlSP.setConfig(config);
+                        // the existing instance is still in use by request threads, so it is replaced by a new instance instead of being updated
+                        SqlServiceProvider updatedSP = new SqlServiceProvider(config, httpClient, roleCatalogueService, advancedRuleService, auditLogger, claimEvaluationExecutor);
+                        changed = true;
 
                         if (refreshMetadata) {
-                        	log.info("Force reloading metadata for " + sqlSP.getEntityId() + " recreate = " + recreateResolver);
-                        	sqlSP.reloadMetadata(recreateResolver);
+                        	log.info("Force reloading metadata for " + sqlSP.getEntityId());
+                        	updatedSP.reloadMetadata(true);
+                        	replacedServiceProviders.add(sqlSP);
                         }
+                        else {
+                        	updatedSP.takeOverMetadataResolver(sqlSP);
+                        }
+
+                        newServiceProviders.set(i, updatedSP);
                     }
 
                     foundExisting = true;
@@ -114,12 +141,12 @@ public class ServiceProviderFactory {
             if (!foundExisting) {
                 log.info("Creating SQL SP with entityID: " + config.getEntityId());
 
-                serviceProviders.add(new SqlServiceProvider(config, httpClient, roleCatalogueService, advancedRuleService, auditLogger));
+                newServiceProviders.add(new SqlServiceProvider(config, httpClient, roleCatalogueService, advancedRuleService, auditLogger, claimEvaluationExecutor));
             }
         }
         
         // remove removed serviceProviders
-        for (Iterator<ServiceProvider> iterator = serviceProviders.iterator(); iterator.hasNext();) {
+        for (Iterator<ServiceProvider> iterator = newServiceProviders.iterator(); iterator.hasNext();) {
 			ServiceProvider serviceProvider = iterator.next();
 
             if (!(serviceProvider instanceof SqlServiceProvider)) {
@@ -142,10 +169,21 @@ public class ServiceProviderFactory {
             if (!found) {
             	log.info("Removing deleted/disabled SQL SP with entityID: " + serviceProvider.getEntityId());
             	iterator.remove();
+            	changed = true;
             }
         }
         
+        registry = new ServiceProviderRegistry(newServiceProviders);
         lastReload = nextLastReload;
+
+        for (SqlServiceProvider replacedServiceProvider : replacedServiceProviders) {
+            replacedServiceProvider.destroyMetadataResolver();
+        }
+
+        // drop compiled claim rules, so rules that are no longer configured on any SP do not stay cached
+        if (changed) {
+            advancedRuleService.clearCompiledRules();
+        }
     }
 
     public ServiceProvider getServiceProvider(AuthnRequest authnRequest) throws RequesterException, ResponderException {
@@ -162,6 +200,11 @@ public class ServiceProviderFactory {
     public ServiceProvider getServiceProvider(LoginRequest loginRequest) throws RequesterException, ResponderException {
         switch (loginRequest.getProtocol()) {
             case SAML20:
+                // the issuer is part of the compact session value, so there is no need to unmarshal the AuthnRequest to find it
+                if (loginRequest.getAuthnRequestDTO() != null && StringUtils.hasLength(loginRequest.getAuthnRequestDTO().getIssuer())) {
+                    return getServiceProvider(loginRequest.getAuthnRequestDTO().getIssuer());
+                }
+
                 AuthnRequest authnRequest = loginRequest.getAuthnRequest();
                 if (authnRequest != null && authnRequest.getIssuer() != null) {
                     ServiceProvider serviceProvider = getServiceProvider(authnRequest.getIssuer().getValue());
@@ -189,11 +232,10 @@ public class ServiceProviderFactory {
     }
 
 	public ServiceProvider getEntraMfaServiceProvider() throws RequesterException, ResponderException {
-        for (ServiceProvider serviceProvider : serviceProviders) {
-        	if (serviceProvider instanceof EntraMfaServiceProvider) {
-        		return serviceProvider;
-        	}
-        }
+		ServiceProvider serviceProvider = registry.getEntraMfaServiceProvider();
+		if (serviceProvider != null) {
+			return serviceProvider;
+		}
 
         log.warn("Kunne ikke finde en tjenesteudbyder for EntraID MFA");
 
@@ -201,20 +243,20 @@ public class ServiceProviderFactory {
     }
 	
 	public ServiceProvider getServiceProvider(String entityId) throws RequesterException, ResponderException {
-        for (ServiceProvider serviceProvider : serviceProviders) {
-
-        	for (String spEntityId : serviceProvider.getEntityIds()) {
-	        	if (Objects.equals(spEntityId, entityId)) {
-	                return serviceProvider;
-	            }
-        	}
-        }
+		ServiceProvider serviceProvider = registry.getByEntityId(entityId);
+		if (serviceProvider != null) {
+			return serviceProvider;
+		}
 
         log.warn("Kunne ikke finde en tjenesteudbyder der matcher: '" + entityId + "'");
         throw new RequesterException("Kunne ikke finde en tjenesteudbyder der matcher: '" + entityId + "'");
     }
 
     public List<ServiceProvider> getServiceProviders() {
-        return serviceProviders;
+        return registry.getServiceProviders();
+    }
+
+    public List<ServiceProvider> getServiceProviders(Protocol protocol) {
+        return registry.getByProtocol(protocol);
     }
 }
@@ -0,0 +1,65 @@
+package dk.digitalidentity.service.serviceprovider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.digitalidentity.common.dao.model.enums.Protocol;
+
+/**
+ * Immutable snapshot of the loaded ServiceProviders, indexed by every entityId and by protocol.
+ * A new snapshot is built on each reload and swapped in as a whole, so lookups never see a half-updated list.
+ */
+class ServiceProviderRegistry {
+	private final List<ServiceProvider> serviceProviders;
+	private final Map<String, ServiceProvider> byEntityId;
+	private final Map<Protocol, List<ServiceProvider>> byProtocol;
+	private final EntraMfaServiceProvider entraMfaServiceProvider;
+
+	ServiceProviderRegistry(List<ServiceProvider> serviceProviders) {
+		Map<String, ServiceProvider> byEntityId = new HashMap<>();
+		Map<Protocol, List<ServiceProvider>> byProtocol = new EnumMap<>(Protocol.class);
+		EntraMfaServiceProvider entraMfaServiceProvider = null;
+
+		for (ServiceProvider serviceProvider : serviceProviders) {
+			// first match wins, same as the linear scan that was used before the index
+			for (String entityId : serviceProvider.getEntityIds()) {
+				byEntityId.putIfAbsent(entityId, serviceProvider);
+			}
+
+			if (serviceProvider.getProtocol() != null) {
+				byProtocol.computeIfAbsent(serviceProvider.getProtocol(), p -> new ArrayList<>()).add(serviceProvider);
+			}
+
+			if (entraMfaServiceProvider == null && serviceProvider instanceof EntraMfaServiceProvider entraMfa) {
+				entraMfaServiceProvider = entraMfa;
+			}
+		}
+
+		byProtocol.replaceAll((protocol, list) -> Collections.unmodifiableList(list));
+
+		this.serviceProviders = Collections.unmodifiableList(new ArrayList<>(serviceProviders));
+		this.byEntityId = byEntityId;
+		this.byProtocol = byProtocol;
+		this.entraMfaServiceProvider = entraMfaServiceProvider;
+	}
+
+	List<ServiceProvider> getServiceProviders() {
+		return serviceProviders;
+	}
+
+	ServiceProvider getByEntityId(String entityId) {
+		return (entityId != null) ? byEntityId.get(entityId) : null;
+	}
+
+	List<ServiceProvider> getByProtocol(Protocol protocol) {
+		return byProtocol.getOrDefault(protocol, Collections.emptyList());
+	}
+
+	EntraMfaServiceProvider getEntraMfaServiceProvider() {
+		return entraMfaServiceProvider;
+	}
+}
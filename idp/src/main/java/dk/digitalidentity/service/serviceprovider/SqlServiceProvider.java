@@ -9,6 +9,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.apache.http.client.HttpClient;
@@ -48,15 +52,19 @@ import net.shibboleth.utilities.java.support.resolver.ResolverException;
 
 @Slf4j
 public class SqlServiceProvider extends ServiceProvider {
+    private static final long ROLE_CATALOGUE_CLAIMS_TIMEOUT = 30 * 1000;
+
     private SqlServiceProviderConfiguration config;
     private AbstractReloadingMetadataResolver resolver;
     private RoleCatalogueService roleCatalogueService;
     private AdvancedRuleService advancedRuleService;
     private AuditLogger auditLogger;
+    private Executor claimEvaluationExecutor;
 
-    public SqlServiceProvider(SqlServiceProviderConfiguration config, HttpClient httpClient, RoleCatalogueService roleCatalogueService, AdvancedRuleService advancedRuleService, AuditLogger auditLogger) {
+    public SqlServiceProvider(SqlServiceProviderConfiguration config, HttpClient httpClient, RoleCatalogueService roleCatalogueService, AdvancedRuleService advancedRuleService, AuditLogger auditLogger, Executor claimEvaluationExecutor) {
         super.httpClient = httpClient;
 
+        this.claimEvaluationExecutor = claimEvaluationExecutor;
         this.roleCatalogueService = roleCatalogueService;
         this.config = config;
         this.advancedRuleService = advancedRuleService;
@@ -136,53 +144,41 @@ public class SqlServiceProvider extends ServiceProvider {
 		}
 
 		// Role Catalogue claims
-		Set<SqlServiceProviderRoleCatalogueClaim> rcClaims = config.getRcClaims();
-		for (SqlServiceProviderRoleCatalogueClaim rcClaim : rcClaims) {
-			try {
-				switch (rcClaim.getExternalOperation()) {
-					case CONDITION_MEMBER_OF_SYSTEM_ROLE: {
-						String systemRoleId = rcClaim.getExternalOperationArgument();
-						if (roleCatalogueService.hasSystemRole(person, systemRoleId)) {
-							addAttribute(attributes, rcClaim.getClaimName(), rcClaim.getClaimValue(), includeDuplicates);
-						}
-						break;
-					}
-					case CONDITION_MEMBER_OF_USER_ROLE: {
-						String userRoleId = rcClaim.getExternalOperationArgument();
-						if (roleCatalogueService.hasUserRole(person, userRoleId)) {
-							addAttribute(attributes, rcClaim.getClaimName(), rcClaim.getClaimValue(), includeDuplicates);
-						}
-						break;
-					}
-					case GET_SYSTEM_ROLES: {
-						String itSystemId = rcClaim.getExternalOperationArgument();
-						List<String> systemRoles = roleCatalogueService.getSystemRoles(person, itSystemId);
-						if (systemRoles != null && systemRoles.size() > 0) {
-							addAttributeList(attributes, rcClaim.getClaimName(), systemRoles, includeDuplicates);
-						}
-						break;
-					}
-					case GET_SYSTEM_ROLES_OIOBPP: {
-						String itSystemId = rcClaim.getExternalOperationArgument();
-						String oiobpp = roleCatalogueService.getSystemRolesAsOIOBPP(person, itSystemId);
-						if (oiobpp != null && oiobpp.length() > 0) {
-							addAttribute(attributes, rcClaim.getClaimName(), oiobpp, includeDuplicates);
-						}
-						break;
-					}
-					case GET_USER_ROLES: {
-						String itSystemId = rcClaim.getExternalOperationArgument();
-						List<String> systemRoles = roleCatalogueService.getUserRoles(person, itSystemId);
-						if (systemRoles != null && systemRoles.size() > 0) {
-							addAttributeList(attributes, rcClaim.getClaimName(), systemRoles, includeDuplicates);
-						}
-						break;
-					}
+		List<SqlServiceProviderRoleCatalogueClaim> rcClaims = new ArrayList<>(config.getRcClaims());
+		if (rcClaims.size() > 1 && claimEvaluationExecutor != null) {
+
+			// the lookups are remote calls, so perform them in parallel, and then add the results in the same order as when done sequentially
+			long deadline = System.currentTimeMillis() + ROLE_CATALOGUE_CLAIMS_TIMEOUT;
+			List<CompletableFuture<Object>> lookups = new ArrayList<>();
+			for (SqlServiceProviderRoleCatalogueClaim rcClaim : rcClaims) {
+				lookups.add(CompletableFuture.supplyAsync(() -> lookupRoleCatalogueClaim(rcClaim, person), claimEvaluationExecutor));
+			}
+
+			for (int i = 0; i < rcClaims.size(); i++) {
+				SqlServiceProviderRoleCatalogueClaim rcClaim = rcClaims.get(i);
+
+				try {
+					Object result = lookups.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+					addRoleCatalogueClaim(attributes, rcClaim, result, includeDuplicates);
+				}
+				catch (Exception ex) {
+					lookups.get(i).cancel(true);
+
+					// maybe change this to warning in the future, but error for now so we can monitor the functionality
+					log.error("Failed to execute role catalogue claim: " + rcClaim.getId() + " for person " + person.getId(), (ex instanceof ExecutionException) ? ex.getCause() : ex);
 				}
 			}
-			catch (Exception ex) {
-				// maybe change this to warning in the future, but error for now so we can monitor the functionality
-				log.error("Failed to execute role catalogue claim: " + rcClaim.getId() + " for person " + person.getId(), ex);
+		}
+		else {
+			for (SqlServiceProviderRoleCatalogueClaim rcClaim : rcClaims) {
+				try {
+					addRoleCatalogueClaim(attributes, rcClaim, lookupRoleCatalogueClaim(rcClaim, person), includeDuplicates);
+				}
+				catch (Exception ex) {
+					// maybe change this to warning in the future, but error for now so we can monitor the functionality
+					log.error("Failed to execute role catalogue claim: " + rcClaim.getId() + " for person " + person.getId(), ex);
+				}
 			}
 		}
 
@@ -222,6 +218,52 @@ public class SqlServiceProvider extends ServiceProvider {
 		return attributes;
 	}
 
+	// performs the remote lookup for a role catalogue claim - does not touch the attribute map, so it is safe to call from another thread
+	private Object lookupRoleCatalogueClaim(SqlServiceProviderRoleCatalogueClaim rcClaim, Person person) {
+		switch (rcClaim.getExternalOperation()) {
+			case CONDITION_MEMBER_OF_SYSTEM_ROLE:
+				return roleCatalogueService.hasSystemRole(person, rcClaim.getExternalOperationArgument());
+			case CONDITION_MEMBER_OF_USER_ROLE:
+				return roleCatalogueService.hasUserRole(person, rcClaim.getExternalOperationArgument());
+			case GET_SYSTEM_ROLES:
+				return roleCatalogueService.getSystemRoles(person, rcClaim.getExternalOperationArgument());
+			case GET_SYSTEM_ROLES_OIOBPP:
+				return roleCatalogueService.getSystemRolesAsOIOBPP(person, rcClaim.getExternalOperationArgument());
+			case GET_USER_ROLES:
+				return roleCatalogueService.getUserRoles(person, rcClaim.getExternalOperationArgument());
+		}
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addRoleCatalogueClaim(HashMap<String, Object> attributes, SqlServiceProviderRoleCatalogueClaim rcClaim, Object result, boolean includeDuplicates) {
+		switch (rcClaim.getExternalOperation()) {
+			case CONDITION_MEMBER_OF_SYSTEM_ROLE:
+			case CONDITION_MEMBER_OF_USER_ROLE: {
+				if (Boolean.TRUE.equals(result)) {
+					addAttribute(attributes, rcClaim.getClaimName(), rcClaim.getClaimValue(), includeDuplicates);
+				}
+				break;
+			}
+			case GET_SYSTEM_ROLES:
+			case GET_USER_ROLES: {
+				List<String> roles = (List<String>) result;
+				if (roles != null && roles.size() > 0) {
+					addAttributeList(attributes, rcClaim.getClaimName(), roles, includeDuplicates);
+				}
+				break;
+			}
+			case GET_SYSTEM_ROLES_OIOBPP: {
+				String oiobpp = (String) result;
+				if (oiobpp != null && oiobpp.length() > 0) {
+					addAttribute(attributes, rcClaim.getClaimName(), oiobpp, includeDuplicates);
+				}
+				break;
+			}
+		}
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private void addAttribute(HashMap<String, Object> attributes, String claimKey, String newClaimVal, boolean includeDuplicates) {
 		if (!includeDuplicates) {
@@ -515,6 +557,22 @@ public class SqlServiceProvider extends ServiceProvider {
 		return this.config.getManualReloadTimestamp();
 	}
 
+	// used when this instance replaces an instance with the same metadata, so the metadata is not fetched again
+	void takeOverMetadataResolver(SqlServiceProvider previous) {
+		this.resolver = previous.resolver;
+	}
+
+	void destroyMetadataResolver() {
+		try {
+			if (this.resolver != null) {
+				this.resolver.destroy();
+			}
+		}
+		catch (Exception ignored) {
+			;
+		}
+	}
+
 	public void reloadMetadata(boolean recreateResolver) {
 
 		if (recreateResolver || this.resolver == null) {
@@ -57,6 +57,10 @@ public class Constants {
     public static final String ENTRAID_MFA_IN_FLOW = "ENTRAID_MFA_IN_FLOW";
     public static final String ENTRAID_MFA_PERSON = "ENTRAID_MFA_PERSON";
 
+    // Request Keys
+    public static final String LOGIN_REQUEST_CACHE = "LOGIN_REQUEST_CACHE";
+    public static final String PERSON_CACHE = "PERSON_CACHE";
+
     // Common Attributes
     public static final String ATTRIBUTE_VALUE_FORMAT_BASIC = "urn:oasis:names:tc:SAML:2.0:attrname-format:basic";
     public static final String ATTRIBUTE_VALUE_FORMAT_URI = "urn:oasis:names:tc:SAML:2.0:attrname-format:uri";
@@ -0,0 +1,137 @@
+package dk.digitalidentity.controller.dto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.impl.AuthnRequestMarshaller;
+import org.opensaml.saml.saml2.core.impl.AuthnRequestUnmarshaller;
+import org.w3c.dom.Document;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+
+public class AuthnRequestDTOTest {
+	private static final String AUTHN_REQUEST = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+			+ " ID=\"_a1b2c3\" Version=\"2.0\" IssueInstant=\"2024-01-31T10:00:00Z\" Destination=\"https://idp.example.dk/sso/saml/login\""
+			+ " AssertionConsumerServiceURL=\"https://sp.example.dk/saml/SSO\" ForceAuthn=\"true\">"
+			+ "<saml:Issuer>https://sp.example.dk</saml:Issuer>"
+			+ "<samlp:NameIDPolicy Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:persistent\"/>"
+			+ "<samlp:RequestedAuthnContext Comparison=\"minimum\">"
+			+ "<saml:AuthnContextClassRef>https://data.gov.dk/concept/core/nsis/loa/Substantial</saml:AuthnContextClassRef>"
+			+ "<saml:AuthnContextClassRef>https://data.gov.dk/concept/core/nsis/loa/High</saml:AuthnContextClassRef>"
+			+ "</samlp:RequestedAuthnContext>"
+			+ "</samlp:AuthnRequest>";
+
+	private static final String MINIMAL_AUTHN_REQUEST = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+			+ " ID=\"_d4e5f6\" Version=\"2.0\" IssueInstant=\"2024-01-31T10:00:00Z\" IsPassive=\"true\"/>";
+
+	@BeforeAll
+	public static void initOpenSaml() throws Exception {
+		InitializationService.initialize();
+	}
+
+	@Test
+	@DisplayName("All fields and the original XML survive serialization")
+	public void serializationRoundTrip() throws Exception {
+		AuthnRequest authnRequest = parse(AUTHN_REQUEST);
+		String originalXml = SerializeSupport.nodeToString(new AuthnRequestMarshaller().marshall(authnRequest));
+
+		AuthnRequestDTO dto = deserialize(serialize(new AuthnRequestDTO(authnRequest)));
+
+		assertEquals("_a1b2c3", dto.getId());
+		assertEquals("https://sp.example.dk", dto.getIssuer());
+		assertEquals("https://sp.example.dk/saml/SSO", dto.getAssertionConsumerServiceURL());
+		assertEquals("https://idp.example.dk/sso/saml/login", dto.getDestination());
+		assertEquals("urn:oasis:names:tc:SAML:2.0:nameid-format:persistent", dto.getNameIdPolicyFormat());
+		assertEquals(List.of("https://data.gov.dk/concept/core/nsis/loa/Substantial", "https://data.gov.dk/concept/core/nsis/loa/High"), dto.getRequestedAuthnContextClassRefs());
+		assertTrue(dto.isForceAuthn());
+		assertFalse(dto.isPassive());
+
+		// the XML is kept as is, so a signature on it would still validate
+		AuthnRequest restored = dto.toAuthnRequest();
+		assertEquals("_a1b2c3", restored.getID());
+		assertEquals(originalXml, SerializeSupport.nodeToString(new AuthnRequestMarshaller().marshall(restored)));
+	}
+
+	@Test
+	@DisplayName("Missing optional elements are serialized as null and an empty list")
+	public void serializationRoundTripWithoutOptionalElements() throws Exception {
+		AuthnRequestDTO dto = deserialize(serialize(new AuthnRequestDTO(parse(MINIMAL_AUTHN_REQUEST))));
+
+		assertEquals("_d4e5f6", dto.getId());
+		assertNull(dto.getIssuer());
+		assertNull(dto.getAssertionConsumerServiceURL());
+		assertNull(dto.getDestination());
+		assertNull(dto.getNameIdPolicyFormat());
+		assertTrue(dto.getRequestedAuthnContextClassRefs().isEmpty());
+		assertFalse(dto.isForceAuthn());
+		assertTrue(dto.isPassive());
+		assertEquals("_d4e5f6", dto.toAuthnRequest().getID());
+	}
+
+	@Test
+	@DisplayName("A serialized value with an unknown format version is rejected")
+	public void unknownFormatVersion() throws Exception {
+		byte[] data = serialize(new AuthnRequestDTO(parse(MINIMAL_AUTHN_REQUEST)));
+
+		// the format version is written right before the id, which is prefixed by a present flag and its length
+		byte[] id = "_d4e5f6".getBytes(StandardCharsets.UTF_8);
+		int versionIndex = indexOf(data, id) - 4;
+		assertEquals(1, data[versionIndex]);
+		data[versionIndex] = 2;
+
+		assertThrows(InvalidObjectException.class, () -> deserialize(data));
+	}
+
+	private static AuthnRequest parse(String xml) throws Exception {
+		Document document = XMLObjectProviderRegistrySupport.getParserPool().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+		return (AuthnRequest) new AuthnRequestUnmarshaller().unmarshall(document.getDocumentElement());
+	}
+
+	private static byte[] serialize(AuthnRequestDTO dto) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(dto);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static AuthnRequestDTO deserialize(byte[] data) throws Exception {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+			return (AuthnRequestDTO) in.readObject();
+		}
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		for (int i = 0; i <= data.length - pattern.length; i++) {
+			int j = 0;
+			while (j < pattern.length && data[i + j] == pattern[j]) {
+				j++;
+			}
+
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
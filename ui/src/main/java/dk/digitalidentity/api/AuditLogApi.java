@@ -3,15 +3,18 @@ package dk.digitalidentity.api;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import dk.digitalidentity.api.dto.AuditLogApiViewHeadDTO;
 import dk.digitalidentity.common.dao.AuditLogApiViewDao;
 import dk.digitalidentity.common.dao.model.AuditLogApiView;
+import dk.digitalidentity.service.AuditLogFeedService;
 
 @RestController
 public class AuditLogApi {
@@ -19,6 +22,9 @@ public class AuditLogApi {
 	@Autowired
 	private AuditLogApiViewDao auditLogApiViewDao;
 
+	@Autowired
+	private AuditLogFeedService auditLogFeedService;
+
 	@GetMapping("/api/auditlog/head")
 	@ResponseBody
 	public ResponseEntity<?> getHeadIndex() {
@@ -34,4 +40,14 @@ public class AuditLogApi {
 
 		return ResponseEntity.ok(logs);
 	}
+
+	// newline delimited JSON, one auditlog per line in id order - consumers resume by calling again with the id of the last line they received
+	@GetMapping(value = "/api/auditlog/stream", produces = "application/x-ndjson")
+	public ResponseEntity<StreamingResponseBody> streamLogs(@RequestParam(name = "offset", defaultValue = "0") long offset, @RequestParam(name = "limit", defaultValue = "50000") int limit, @RequestParam(name = "wait", defaultValue = "0") int wait) {
+		StreamingResponseBody body = outputStream -> auditLogFeedService.stream(offset, limit, wait, outputStream);
+
+		return ResponseEntity.ok()
+				.contentType(MediaType.parseMediaType("application/x-ndjson"))
+				.body(body);
+	}
 }
@@ -7,4 +7,17 @@ import lombok.Setter;
 @Setter
 public class AuditLogModule {
 	private String apiKey;
+
+	// max rows returned by a single call to /api/auditlog/stream
+	private int streamMaxRows = 50000;
+
+	// max time a call to /api/auditlog/stream waits for new auditlogs when the caller has read everything (must be below streamMaxSeconds)
+	private int streamMaxWaitSeconds = 25;
+
+	// max time a call to /api/auditlog/stream runs, waiting included, before it stops after the current line - must be below the async request
+	// timeout (spring.mvc.async.request-timeout, 60s in default.properties), which would otherwise cut off the response mid-line
+	private int streamMaxSeconds = 45;
+
+	// max calls to /api/auditlog/stream waiting at the same time, each one holds a thread from the MVC async executor while it waits
+	private int streamMaxWaiters = 4;
 }
@@ -8,4 +8,10 @@ import lombok.Setter;
 public class GeoLocate {
 	private boolean enabled = false;
 	private String url = "http://geolocate.digital-identity.dk/";	
+
+	// optional local range file (see LocalGeoLocator) - if set, lookups are done against this file instead of the url above
+	private String databaseFile;
+
+	// number of looked up IP addresses to keep in memory
+	private int cacheSize = 10000;
 }
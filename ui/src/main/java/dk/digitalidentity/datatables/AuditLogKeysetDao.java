@@ -0,0 +1,171 @@
+package dk.digitalidentity.datatables;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.jpa.datatables.mapping.Column;
+import org.springframework.data.jpa.datatables.mapping.DataTablesInput;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import dk.digitalidentity.common.dao.model.enums.LogAction;
+import dk.digitalidentity.datatables.model.AuditLogView;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keyset paginated reads from view_audit_log for the admin eventlog. Rows are always ordered by (tts, id) descending,
+ * and a page is located by seeking past the last row of the previous page instead of skipping rows with OFFSET, so
+ * reading page N costs the same as reading the first page.
+ *
+ * Counting is capped at COUNT_LIMIT, so a draw never has to count the entire (filtered) table. Without a cursor the page
+ * is located by OFFSET, which is bounded by the same limit, as DataTables cannot page beyond the count it is given.
+ *
+ * Only column filters on the eventlog columns are supported. Check supports() first, and use the DataTables repository for anything else.
+ */
+@Slf4j
+@Component
+public class AuditLogKeysetDao {
+	public static final int COUNT_LIMIT = 10000;
+
+	private static final String SELECT = "SELECT id, tts, person_id, cpr, user_id, person_name, person_domain, message, log_action FROM view_audit_log";
+
+	// the columns in the eventlog table that are searched with LIKE, same as the DataTables default (contains, case insensitive)
+	private static final Map<String, String> LIKE_COLUMNS = Map.of(
+			"tts", "CAST(tts AS CHAR)",
+			"userId", "user_id",
+			"personName", "person_name",
+			"message", "message");
+
+	private static final RowMapper<AuditLogView> ROW_MAPPER = (rs, rowNum) -> {
+		AuditLogView view = new AuditLogView();
+		view.setId(rs.getLong("id"));
+		view.setTts(rs.getTimestamp("tts").toLocalDateTime());
+		view.setPersonId(rs.getObject("person_id", Long.class));
+		view.setCpr(rs.getString("cpr"));
+		view.setUserId(rs.getString("user_id"));
+		view.setPersonName(rs.getString("person_name"));
+		view.setPersonDomain(rs.getString("person_domain"));
+		view.setMessage(rs.getString("message"));
+		view.setLogAction(LogAction.valueOf(rs.getString("log_action")));
+
+		return view;
+	};
+
+	@Qualifier("defaultTemplate")
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	/**
+	 * Whether the filters in the input can be handled here. The global search value, and filters on columns this class does not know,
+	 * are not supported, as ignoring them would show unfiltered results while the UI shows the filter as active
+	 */
+	public boolean supports(DataTablesInput input) {
+		if (input.getSearch() != null && StringUtils.hasLength(input.getSearch().getValue())) {
+			return false;
+		}
+
+		boolean supported = true;
+		if (input.getColumns() != null) {
+			for (Column column : input.getColumns()) {
+				if (column == null || column.getSearch() == null || !StringUtils.hasLength(column.getSearch().getValue())) {
+					continue;
+				}
+
+				if (!"logAction".equals(column.getData()) && !LIKE_COLUMNS.containsKey(column.getData())) {
+					log.warn("Unsupported filter column in eventlog: " + column.getData());
+					supported = false;
+				}
+			}
+		}
+
+		return supported;
+	}
+
+	/**
+	 * Reads a page of auditlogs. If afterTts/afterId is given, the page starts right after that row, otherwise it starts at input.start
+	 *
+	 * @param domains restricts the auditlogs to these domains, or null for all domains
+	 */
+	public List<AuditLogView> findPage(DataTablesInput input, List<String> domains, LocalDateTime afterTts, Long afterId) {
+		List<Object> params = new ArrayList<>();
+		StringBuilder sql = new StringBuilder(SELECT);
+		String where = where(input, domains, true, params);
+		sql.append(where);
+
+		if (afterTts != null && afterId != null) {
+			sql.append(where.isEmpty() ? " WHERE " : " AND ");
+			sql.append("(tts < ? OR (tts = ? AND id < ?))");
+			params.add(Timestamp.valueOf(afterTts));
+			params.add(Timestamp.valueOf(afterTts));
+			params.add(afterId);
+		}
+
+		int length = (input.getLength() == null || input.getLength() <= 0) ? 10 : Math.min(input.getLength(), 1000);
+		sql.append(" ORDER BY tts DESC, id DESC LIMIT ?");
+		params.add(length);
+
+		if ((afterTts == null || afterId == null) && input.getStart() != null && input.getStart() > 0) {
+			sql.append(" OFFSET ?");
+			params.add(Math.min(input.getStart(), COUNT_LIMIT));
+		}
+
+		return jdbcTemplate.query(sql.toString(), ROW_MAPPER, params.toArray());
+	}
+
+	/**
+	 * Counts the auditlogs matching the filters, but stops counting at COUNT_LIMIT + 1, so the caller can tell that the limit was reached
+	 */
+	public long countCapped(DataTablesInput input, List<String> domains, boolean applyColumnFilters) {
+		List<Object> params = new ArrayList<>();
+		String sql = "SELECT COUNT(*) FROM (SELECT 1 FROM view_audit_log" + where(input, domains, applyColumnFilters, params) + " LIMIT " + (COUNT_LIMIT + 1) + ") c";
+
+		Long count = jdbcTemplate.queryForObject(sql, Long.class, params.toArray());
+
+		return (count != null) ? count : 0;
+	}
+
+	private static String where(DataTablesInput input, List<String> domains, boolean applyColumnFilters, List<Object> params) {
+		List<String> conditions = new ArrayList<>();
+
+		if (domains != null) {
+			if (domains.isEmpty()) {
+				conditions.add("1 = 0");
+			}
+			else {
+				conditions.add("person_domain IN (" + String.join(", ", domains.stream().map(d -> "?").toList()) + ")");
+				params.addAll(domains);
+			}
+		}
+
+		if (applyColumnFilters && input.getColumns() != null) {
+			for (Column column : input.getColumns()) {
+				if (column == null || column.getSearch() == null || !StringUtils.hasLength(column.getSearch().getValue())) {
+					continue;
+				}
+
+				String value = column.getSearch().getValue();
+				if ("logAction".equals(column.getData())) {
+					conditions.add("log_action = ?");
+					params.add(LogAction.valueOf(value).name());
+				}
+				else if (LIKE_COLUMNS.containsKey(column.getData())) {
+					conditions.add(LIKE_COLUMNS.get(column.getData()) + " LIKE ?");
+					params.add("%" + escapeLike(value) + "%");
+				}
+			}
+		}
+
+		return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+	}
+
+	private static String escapeLike(String value) {
+		return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+}
@@ -14,8 +14,6 @@ import java.util.zip.ZipOutputStream;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.support.ResourceBundleMessageSource;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
@@ -283,10 +281,10 @@ public class ReportController {
 
 					zipOutputStream.write(builder.toString().getBytes(Charset.forName("ISO-8859-1")));
 
-					Pageable page = PageRequest.of(0, 20000);
+					AuditLogDTO last = null;
 
 					do {
-						List<AuditLogDTO> auditLogs = (type != ReportType.ALL) ? auditLogService.findAllJDBC(page, from, to, type) : auditLogService.findAllJDBC(page, from, to);
+						List<AuditLogDTO> auditLogs = (type != ReportType.ALL) ? auditLogService.findAllJDBC(last, 20000, from, to, type) : auditLogService.findAllJDBC(last, 20000, from, to);
 						if (auditLogs == null || auditLogs.size() == 0) {
 							break;
 						}
@@ -310,7 +308,7 @@ public class ReportController {
 						}
 						
 						// next page
-						page = page.next();
+						last = auditLogs.get(auditLogs.size() - 1);
 					} while (true);					
 				}
 				
@@ -372,10 +370,10 @@ public class ReportController {
 
 					zipOutputStream.write(builder.toString().getBytes(Charset.forName("ISO-8859-1")));
 
-					Pageable page = PageRequest.of(0, 20000);
+					AuditLogDTO last = null;
 
 					do {
-						List<AuditLogDTO> auditLogs = auditLogService.findAllJDBC(page, from, to, logAction, messageFilter);
+						List<AuditLogDTO> auditLogs = auditLogService.findAllJDBC(last, 20000, from, to, logAction, messageFilter);
 						if (auditLogs == null || auditLogs.size() == 0) {
 							break;
 						}
@@ -397,7 +395,7 @@ public class ReportController {
 						}
 						
 						// next page
-						page = page.next();
+						last = auditLogs.get(auditLogs.size() - 1);
 					} while (true);
 				}
 				
@@ -448,10 +446,10 @@ public class ReportController {
 
 				zipOutputStream.write(builder.toString().getBytes(Charset.forName("ISO-8859-1")));
 
-				Pageable page = PageRequest.of(0, 20000);
+				AuditLogDTO last = null;
 
 				do {
-					List<AuditLogDTO> auditLogs = (type != ReportType.ALL) ? auditLogService.findAllJDBC(page, from, to, type) : auditLogService.findAllJDBC(page, from, to);
+					List<AuditLogDTO> auditLogs = (type != ReportType.ALL) ? auditLogService.findAllJDBC(last, 20000, from, to, type) : auditLogService.findAllJDBC(last, 20000, from, to);
 					if (auditLogs == null || auditLogs.size() == 0) {
 						break;
 					}
@@ -475,7 +473,7 @@ public class ReportController {
 					}
 
 					// next page
-					page = page.next();
+					last = auditLogs.get(auditLogs.size() - 1);
 				} while (true);
 			}
 			log.info(type.toString() + " : Done rendering logs from " + formattedFrom +  " to " + formattedTo);
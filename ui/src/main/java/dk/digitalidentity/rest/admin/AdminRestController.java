@@ -50,7 +50,6 @@ import dk.digitalidentity.common.dao.model.SqlServiceProviderConfiguration;
 import dk.digitalidentity.common.dao.model.Supporter;
 import dk.digitalidentity.common.dao.model.enums.EmailTemplateType;
 import dk.digitalidentity.common.dao.model.enums.ForceMFARequired;
-import dk.digitalidentity.common.dao.model.enums.LogAction;
 import dk.digitalidentity.common.dao.model.enums.NSISLevel;
 import dk.digitalidentity.common.dao.model.enums.RadiusClientConditionType;
 import dk.digitalidentity.common.log.AuditLogger;
@@ -68,6 +67,7 @@ import dk.digitalidentity.common.service.mfa.MFAService;
 import dk.digitalidentity.common.service.mfa.model.MfaClient;
 import dk.digitalidentity.config.OS2faktorConfiguration;
 import dk.digitalidentity.datatables.AuditLogDatatableDao;
+import dk.digitalidentity.datatables.AuditLogKeysetDao;
 import dk.digitalidentity.datatables.PersonDatatableDao;
 import dk.digitalidentity.datatables.model.AdminPersonView;
 import dk.digitalidentity.datatables.model.AuditLogView;
@@ -78,6 +78,8 @@ import dk.digitalidentity.mvc.admin.dto.serviceprovider.ConditionDTO;
 import dk.digitalidentity.mvc.admin.dto.serviceprovider.ServiceProviderDTO;
 import dk.digitalidentity.mvc.selfservice.NSISStatus;
 import dk.digitalidentity.rest.admin.dto.AdvancedRuleDTO;
+import dk.digitalidentity.rest.admin.dto.AuditLogDataTablesInput;
+import dk.digitalidentity.rest.admin.dto.AuditLogDataTablesOutput;
 import dk.digitalidentity.rest.admin.dto.AuditLogViewDTO;
 import dk.digitalidentity.rest.admin.dto.LinkDTO;
 import dk.digitalidentity.rest.admin.dto.NameDTO;
@@ -93,6 +95,7 @@ import dk.digitalidentity.service.AuditLogSearchCriteriaService;
 import dk.digitalidentity.service.EmailTemplateSenderService;
 import dk.digitalidentity.service.LinkService;
 import dk.digitalidentity.service.MetadataService;
+import dk.digitalidentity.util.IpPrefixTrie;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 import jakarta.persistence.criteria.ListJoin;
@@ -110,6 +113,9 @@ public class AdminRestController {
 	@Autowired
 	private AuditLogDatatableDao auditLogDatatableDao;
 
+	@Autowired
+	private AuditLogKeysetDao auditLogKeysetDao;
+
 	@Autowired
 	private PersonDatatableDao personDatatableDao;
 
@@ -218,51 +224,19 @@ public class AdminRestController {
 
 	@RequireSupporter
 	@PostMapping("/rest/admin/eventlog")
-	public DataTablesOutput<AuditLogViewDTO> adminEventLogsDataTable(@Valid @RequestBody DataTablesInput input, BindingResult bindingResult, Locale locale) {
+	public DataTablesOutput<AuditLogViewDTO> adminEventLogsDataTable(@Valid @RequestBody AuditLogDataTablesInput input, BindingResult bindingResult, Locale locale) {
 		if (bindingResult.hasErrors()) {
 			DataTablesOutput<AuditLogViewDTO> error = new DataTablesOutput<>();
 			error.setError(bindingResult.toString());
 
 			return error;
 		}
-		
-		// column 3 is LogAction - lot of null checks and a check if we are searching on logAction
-		if (input != null && input.getColumns() != null && input.getColumns().get(3) != null && input.getColumns().get(3).getSearch() != null && input.getColumns().get(3).getSearch().getValue() != null && !input.getColumns().get(3).getSearch().getValue().equals("")) {
-			String searchTerm = input.getColumns().get(3).getSearch().getValue();
-
-			Person loggedInPerson = personService.getById(securityUtil.getPersonId());
-
-			// show either full output or filter by domain if not admin or supporter for all domains
-			if (securityUtil.isAdmin() || (loggedInPerson.isSupporter() && loggedInPerson.getSupporter().getDomain() == null)) {
-				Specification<AuditLogView> auditLogByLogAction = getAuditLogByLogAction(searchTerm);
-				DataTablesOutput<AuditLogView> x = auditLogDatatableDao.findAll(input, null, auditLogByLogAction);
-				return convertAuditLogDataTablesModelToDTO(x, locale);
-			}
-			else {
-
-				// if we are filtering on domains (supporter role) we should show subdomains too.
-				ArrayList<Domain> domains = new ArrayList<>();
-				Domain domain = (loggedInPerson.isSupporter()) ? loggedInPerson.getSupporter().getDomain() : loggedInPerson.getTopLevelDomain();
-
-				domains.add(domain);
-
-				if (domain.getChildDomains() != null && !domain.getChildDomains().isEmpty()) {
-					domains.addAll(domain.getChildDomains());
-				}
-
-				List<String> domainNames = domains.stream().map(Domain::getName).collect(Collectors.toList());
-
-				return convertAuditLogDataTablesModelToDTO(auditLogDatatableDao.findAll(input, getAuditLogByDomain(domainNames), getAuditLogByLogAction(searchTerm)), locale);
-			}
-		}
 
 		Person loggedInPerson = personService.getById(securityUtil.getPersonId());
 
 		// Show either full output or filter by domain if not admin or supporter for all domains
-		if (securityUtil.isAdmin() || (loggedInPerson.isSupporter() && loggedInPerson.getSupporter().getDomain() == null)) {
-			return convertAuditLogDataTablesModelToDTO(auditLogDatatableDao.findAll(input), locale);
-		}
-		else {
+		List<String> domainNames = null;
+		if (!securityUtil.isAdmin() && !(loggedInPerson.isSupporter() && loggedInPerson.getSupporter().getDomain() == null)) {
 
 			// If we are filtering on domains (supporter role) we should show subdomains too.
 			ArrayList<Domain> domains = new ArrayList<>();
@@ -273,14 +247,33 @@ public class AdminRestController {
 				domains.addAll(domain.getChildDomains());
 			}
 
-			List<String> domainNames = domains.stream().map(Domain::getName).collect(Collectors.toList());
+			domainNames = domains.stream().map(Domain::getName).collect(Collectors.toList());
+		}
 
-			return convertAuditLogDataTablesModelToDTO(auditLogDatatableDao.findAll(input, getAuditLogByDomain(domainNames)), locale);
+		// a global search, or a filter on a column the keyset query does not know, is handled by the DataTables repository (OFFSET paging)
+		if (!auditLogKeysetDao.supports(input)) {
+			Specification<AuditLogView> auditLogSpec = (domainNames != null) ? getAuditLogByDomain(domainNames) : null;
+
+			return convertAuditLogDataTablesModelToDTO(auditLogDatatableDao.findAll(input, auditLogSpec), locale);
 		}
+
+		// keyset paging when the client has the last row of the previous page, and capped counts instead of counting the whole table on every draw
+		List<AuditLogView> page = auditLogKeysetDao.findPage(input, domainNames, input.getAfterTts(), input.getAfterId());
+		long recordsFiltered = auditLogKeysetDao.countCapped(input, domainNames, true);
+		long recordsTotal = hasColumnSearch(input) ? auditLogKeysetDao.countCapped(input, domainNames, false) : recordsFiltered;
+
+		AuditLogDataTablesOutput<AuditLogViewDTO> result = new AuditLogDataTablesOutput<>();
+		result.setData(page.stream().map(auditlog -> new AuditLogViewDTO(auditlog, messageSource, locale)).collect(Collectors.toList()));
+		result.setDraw(input.getDraw());
+		result.setCountCapped(recordsFiltered > AuditLogKeysetDao.COUNT_LIMIT);
+		result.setRecordsFiltered(Math.min(recordsFiltered, AuditLogKeysetDao.COUNT_LIMIT));
+		result.setRecordsTotal(Math.min(recordsTotal, AuditLogKeysetDao.COUNT_LIMIT));
+
+		return result;
 	}
-	
-	private Specification<AuditLogView> getAuditLogByLogAction(String search) {
-		return (root, query, criteriaBuilder) -> criteriaBuilder.equal(root.get("logAction"), LogAction.valueOf(search));
+
+	private static boolean hasColumnSearch(DataTablesInput input) {
+		return input.getColumns() != null && input.getColumns().stream().anyMatch(column -> column != null && column.getSearch() != null && StringUtils.hasLength(column.getSearch().getValue()));
 	}
 	
 	private Specification<AuditLogView> getAuditLogByDomain(List<String> domains) {
@@ -787,8 +780,8 @@ public class AdminRestController {
 			return new ResponseEntity<>("Alle felter skal have en værdi", HttpStatus.BAD_REQUEST);
 		}
 		
-		if (!validIp(radiusClientDTO.getIpAddress())) {
-			return new ResponseEntity<>("IP-adressen er ikke valid (/16, /24 eller /32 segmenter er tilladte)", HttpStatus.BAD_REQUEST);
+		if (!IpPrefixTrie.isValidCidr(radiusClientDTO.getIpAddress())) {
+			return new ResponseEntity<>("IP-adressen er ikke valid (angiv en IPv4 eller IPv6 adresse med prefix, f.eks. 10.0.0.0/24)", HttpStatus.BAD_REQUEST);
 		}
 
 		RadiusClient radiusClient = null;
@@ -1109,43 +1102,4 @@ public class AdminRestController {
 		
 		return specification;
 	}
-	
-	private boolean validIp(String ip) {
-		String[] split = ip.split("\\.");
-		if (split.length != 4) {
-			return false;
-		}
-		int split0 = Integer.parseInt(split[0]);
-		int split1 = Integer.parseInt(split[1]);
-		int split2 = Integer.parseInt(split[2]);
-		if (split0 < 0 || split0 > 255 || split[0].length() > 3) {
-			return false;
-		}
-		if (split1 < 0 || split1 > 255 || split[1].length() > 3) {
-			return false;
-		}
-		if (split2 < 0 || split2 > 255 || split[2].length() > 3) {
-			return false;
-		}
-		
-		if (!split[3].contains("/")) {
-			return false;
-		} else {
-			String[] lastSplit = split[3].split("/");
-			if (lastSplit.length != 2) {
-				return false;
-			}
-			int firstPartInt = Integer.parseInt(lastSplit[0]);
-			if (firstPartInt < 0 || firstPartInt > 255) {
-				return false;
-			}
-			
-			int lastPartInt = Integer.parseInt(lastSplit[1]);
-			if (lastPartInt != 32 && lastPartInt != 24 && lastPartInt != 16) {
-				return false;
-			}
-		}
-		
-		return true;
-	}
 }
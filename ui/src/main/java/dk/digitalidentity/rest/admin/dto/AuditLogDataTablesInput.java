@@ -0,0 +1,20 @@
+package dk.digitalidentity.rest.admin.dto;
+
+import java.time.LocalDateTime;
+
+import org.springframework.data.jpa.datatables.mapping.DataTablesInput;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * DataTablesInput with an optional keyset cursor - the tts and id of the last row before the requested page.
+ * The cursor is only set by the client when it pages forward from a page it already has, otherwise the page
+ * is located by start (the normal DataTables contract).
+ */
+@Getter
+@Setter
+public class AuditLogDataTablesInput extends DataTablesInput {
+	private LocalDateTime afterTts;
+	private Long afterId;
+}
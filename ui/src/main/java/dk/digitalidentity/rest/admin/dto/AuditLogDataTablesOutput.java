@@ -0,0 +1,14 @@
+package dk.digitalidentity.rest.admin.dto;
+
+import org.springframework.data.jpa.datatables.mapping.DataTablesOutput;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class AuditLogDataTablesOutput<T> extends DataTablesOutput<T> {
+
+	// true if recordsFiltered was capped, and the real count is higher
+	private boolean countCapped;
+}
@@ -0,0 +1,200 @@
+package dk.digitalidentity.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import dk.digitalidentity.common.config.CommonConfiguration;
+import dk.digitalidentity.common.dao.model.AuditLogApiView;
+import dk.digitalidentity.common.dao.model.enums.DetailType;
+import dk.digitalidentity.common.dao.model.enums.LogAction;
+import dk.digitalidentity.config.OS2faktorConfiguration;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams auditlogs to SIEM consumers as newline delimited JSON (one AuditLogApiView per line), in id order, starting after a given id.
+ * The rows are read through a streaming result set (fetch size Integer.MIN_VALUE, which makes MySQL Connector/J read the rows one at
+ * a time instead of buffering the whole result) and written to the response as they are read, so a call returning 50.000 rows uses
+ * about as much memory as a call returning 100.
+ *
+ * A call that waits for new auditlogs sleeps on a thread from the MVC async executor, so at most streamMaxWaiters calls wait at the
+ * same time. Further calls return right away with no rows, and the consumer simply calls again.
+ *
+ * Auditlog ids are not handed out in commit order - the writers on the ui and idp instances commit in batches, and an auditlog can wait
+ * in a writer's queue before it gets its id - so rows are only returned up to the newest id whose auditlog was logged at least
+ * auditLog.maxWriteDelayMs ago (see AuditLogConfiguration). Any row with a lower id was inserted before that one, and is committed by
+ * the time it is returned, as long as no auditlog takes longer than that to be written. An auditlog that is committed later than that
+ * (e.g. a backlog after a database outage, which the writer logs as a warning) can be skipped by a consumer that has already read past
+ * its id.
+ */
+@Slf4j
+@Service
+public class AuditLogFeedService {
+	private static final int FLUSH_INTERVAL = 1000;
+	private static final long POLL_INTERVAL_MS = 1000;
+
+	// walks the primary key backwards from the newest row, so it only reads the rows written within the write delay
+	private static final String SELECT_HEAD = "SELECT id FROM auditlogs WHERE tts < ? ORDER BY id DESC LIMIT 1";
+	private static final String SELECT_AUDITLOGS = "SELECT * FROM view_audit_log_api a WHERE a.id > ? AND a.id <= ? ORDER BY a.id ASC LIMIT ?";
+
+	@Qualifier("defaultTemplate")
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private OS2faktorConfiguration configuration;
+
+	@Autowired
+	private CommonConfiguration commonConfiguration;
+
+	private Semaphore waiters;
+
+	@PostConstruct
+	public void init() {
+		waiters = new Semaphore(Math.max(1, configuration.getAuditLog().getStreamMaxWaiters()));
+	}
+
+	/**
+	 * Writes up to limit auditlogs with an id above fromId to the output. If there are none, it waits up to waitSeconds for new auditlogs
+	 * before returning, so a consumer that has caught up can call again immediately instead of polling on a timer. If streamMaxWaiters
+	 * calls are already waiting, it returns right away instead.
+	 *
+	 * The whole call, including the wait, stops after streamMaxSeconds. It always stops after a complete line, so the response is not cut
+	 * off mid-line by the async request timeout (spring.mvc.async.request-timeout), and the consumer simply resumes from the last line.
+	 *
+	 * @return the number of auditlogs written
+	 */
+	public int stream(long fromId, int limit, int waitSeconds, OutputStream out) throws IOException {
+		long stopAt = System.currentTimeMillis() + 1000L * configuration.getAuditLog().getStreamMaxSeconds();
+		int maxRows = Math.max(1, Math.min(limit, configuration.getAuditLog().getStreamMaxRows()));
+		long deadline = System.currentTimeMillis() + 1000L * Math.max(0, Math.min(waitSeconds, configuration.getAuditLog().getStreamMaxWaitSeconds()));
+
+		long head = getHead();
+		if (head <= fromId && System.currentTimeMillis() < deadline && waiters.tryAcquire()) {
+			try {
+				while (head <= fromId && System.currentTimeMillis() < deadline) {
+					try {
+						Thread.sleep(POLL_INTERVAL_MS);
+					}
+					catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+
+					head = getHead();
+				}
+			}
+			finally {
+				waiters.release();
+			}
+		}
+
+		if (head <= fromId) {
+			return 0;
+		}
+
+		// flushing is done every FLUSH_INTERVAL rows instead of after every row, which would send a chunk per auditlog
+		ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		int[] count = { 0 };
+		try {
+			jdbcTemplate.query(connection -> {
+				PreparedStatement statement = connection.prepareStatement(SELECT_AUDITLOGS, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+				// makes the driver stream the result row by row instead of reading all of it into memory
+				statement.setFetchSize(Integer.MIN_VALUE);
+				statement.setLong(1, fromId);
+				statement.setLong(2, head);
+				statement.setInt(3, maxRows);
+
+				return statement;
+			}, (ResultSetExtractor<Void>) rs -> {
+				try {
+					while (rs.next()) {
+						writer.writeValue(generator, mapRow(rs));
+						generator.writeRaw('\n');
+
+						if (++count[0] % FLUSH_INTERVAL == 0) {
+							generator.flush();
+						}
+
+						if (System.currentTimeMillis() >= stopAt) {
+							log.info("Stopped streaming auditlogs after " + count[0] + " rows, the time limit was reached");
+							break;
+						}
+					}
+				}
+				catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+
+				return null;
+			});
+		}
+		catch (UncheckedIOException ex) {
+			// most likely the consumer closed the connection, it will resume from the last id it received
+			log.warn("Stopped streaming auditlogs after " + count[0] + " rows: " + ex.getCause().getMessage());
+			return count[0];
+		}
+
+		generator.flush();
+
+		return count[0];
+	}
+
+	// the newest id that is old enough to be safe to hand out
+	private long getHead() {
+		Timestamp cutoff = Timestamp.valueOf(LocalDateTime.now().minus(Duration.ofMillis(commonConfiguration.getAuditLog().getMaxWriteDelayMs())));
+
+		List<Long> head = jdbcTemplate.queryForList(SELECT_HEAD, Long.class, cutoff);
+
+		return head.isEmpty() ? 0 : head.get(0);
+	}
+
+	private static AuditLogApiView mapRow(ResultSet rs) throws SQLException {
+		AuditLogApiView view = new AuditLogApiView();
+		view.setId(rs.getLong("id"));
+		view.setTts(rs.getTimestamp("tts").toLocalDateTime());
+		view.setIpAddress(rs.getString("ip_address"));
+		view.setCorrelationId(rs.getString("correlation_id"));
+		view.setPersonId(rs.getObject("person_id", Long.class));
+		view.setPersonName(rs.getString("person_name"));
+		view.setCpr(rs.getString("cpr"));
+		view.setPerformerId(rs.getObject("performer_id", Long.class));
+		view.setPerformerName(rs.getString("performer_name"));
+		view.setLogAction(LogAction.valueOf(rs.getString("log_action")));
+		view.setMessage(rs.getString("message"));
+		view.setPersonDomain(rs.getString("person_domain"));
+		view.setSamaccountName(rs.getString("samaccount_name"));
+		view.setDetailType((rs.getString("detail_type") != null) ? DetailType.valueOf(rs.getString("detail_type")) : null);
+		view.setDetailContent(rs.getString("detail_content"));
+		view.setDetailSupplement(rs.getString("detail_supplement"));
+
+		return view;
+	}
+}
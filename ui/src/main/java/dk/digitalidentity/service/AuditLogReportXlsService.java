@@ -12,8 +12,6 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.support.ResourceBundleMessageSource;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
@@ -49,10 +47,10 @@ public class AuditLogReportXlsService {
 		createHeaderRow(sheet, headers, headerStyle);
 		
 		int row = 1;
-		Pageable page = PageRequest.of(0, 20000);
+		AuditLogDTO last = null;
 
 		do {
-			List<AuditLogDTO> auditLogs = auditLogService.findAllJDBC(page, from, to, type);
+			List<AuditLogDTO> auditLogs = auditLogService.findAllJDBC(last, 20000, from, to, type);
 			if (auditLogs == null || auditLogs.size() == 0) {
 				break;
 			}
@@ -72,7 +70,7 @@ public class AuditLogReportXlsService {
 			}
 			
 			// next page
-			page = page.next();
+			last = auditLogs.get(auditLogs.size() - 1);
 		} while (true);
 	}
 
@@ -1,21 +1,22 @@
 package dk.digitalidentity.service;
 
 import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
-import org.springframework.web.client.RestTemplate;
 
 import dk.digitalidentity.common.dao.model.AuditLog;
 import dk.digitalidentity.common.service.AuditLogService;
 import dk.digitalidentity.config.OS2faktorConfiguration;
+import dk.digitalidentity.service.geo.GeoLocator;
+import dk.digitalidentity.service.geo.LocalGeoLocator;
+import dk.digitalidentity.service.geo.RemoteGeoLocator;
 import dk.digitalidentity.service.geo.dto.GeoIP;
 import lombok.extern.slf4j.Slf4j;
 
@@ -29,6 +30,25 @@ public class GeoLocateService {
 	@Autowired
 	private AuditLogService auditLogService;
 
+	@Autowired
+	private LogWatchEngine logWatchEngine;
+
+	@Autowired
+	private LocalGeoLocator localGeoLocator;
+
+	@Autowired
+	private RemoteGeoLocator remoteGeoLocator;
+
+	// most auditlogs come from a handful of IP addresses, so keep the final results of recent lookups (access ordered, so this is an LRU cache)
+	private final Map<String, GeoIP> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, GeoIP> eldest) {
+			return size() > configuration.getGeo().getCacheSize();
+		}
+	};
+
 	public GeoIP lookupIp(String ip) {
 		if (!configuration.getGeo().isEnabled()) {
 			return null;
@@ -45,55 +65,45 @@ public class GeoLocateService {
 			return geo;
 		}
 
-		RestTemplate restTemplate = new RestTemplate();
+		synchronized (cache) {
+			geo = cache.get(ip);
+		}
 
-		String resourceUrl = configuration.getGeo().getUrl();
-		if (!resourceUrl.endsWith("/")) {
-			resourceUrl += "/";
+		if (geo != null) {
+			return geo;
 		}
-		resourceUrl += "api?ip=" + ip;
 
-		try {
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("Accept", "application/json");
-			HttpEntity<Void> request = new HttpEntity<>(headers);
+		geo = getGeoLocator().lookup(ip);
 
-			ResponseEntity<GeoIP> response = restTemplate.exchange(resourceUrl, HttpMethod.GET, request, GeoIP.class);
-			
-			if (response.getStatusCode().value() != 200) {
-				log.warn("Failed to lookup ip " + ip + ". Status = " + response.getStatusCode().value());
-				
-				if (response.getStatusCode().value() == 400) {
-					geo.setRetry(false);
-				}
-				return geo;
-			}
-			
-			return response.getBody();
-		}
-		catch (Exception ex) {
-			log.warn("Failed to lookup ip " + ip + ". Message = " + ex.getMessage());
-			
-			if (ex.getMessage().contains("400")) {
-				geo.setRetry(false);
+		// failed lookups are retried later, so do not cache those
+		if (geo != null && !geo.isRetry()) {
+			synchronized (cache) {
+				cache.put(ip, geo);
 			}
 		}
 
 		return geo;
 	}
+
+	private GeoLocator getGeoLocator() {
+		return localGeoLocator.isLoaded() ? localGeoLocator : remoteGeoLocator;
+	}
 	
 	@Transactional
 	public void setLocationFromIP() {
 		LocalDateTime oneWeekAgo = LocalDateTime.now().minusDays(7);
 		List<AuditLog> logs = auditLogService.get500WhereLocationNull();
 
+		// each IP address is looked up once per batch
+		Map<String, GeoIP> lookups = new HashMap<>();
+
 		for (AuditLog auditLog : logs) {
 			if (auditLog.getIpAddress() == null) {
 				auditLog.setLocation("UNKNOWN");
 				continue;
 			}
 
-			GeoIP geoIp = lookupIp(auditLog.getIpAddress());
+			GeoIP geoIp = lookups.computeIfAbsent(auditLog.getIpAddress(), ip -> lookupIp(ip));
 			
 			if (geoIp != null && geoIp.getCountry() != null) {
 				auditLog.setLocation(geoIp.getCountry());
@@ -109,6 +119,21 @@ public class GeoLocateService {
 			}
 		}
 
-		auditLogService.saveAll(logs);		
+		auditLogService.saveAll(logs);
+
+		// set the location on every other auditlog from the same IP addresses in one go, instead of 500 rows at a time
+		for (Map.Entry<String, GeoIP> lookup : lookups.entrySet()) {
+			GeoIP geoIp = lookup.getValue();
+
+			if (geoIp != null && geoIp.getCountry() != null) {
+				auditLogService.setLocationByIpAddressExceptLogins(lookup.getKey(), geoIp.getCountry());
+			}
+			else if (geoIp != null && !geoIp.isRetry()) {
+				auditLogService.setLocationByIpAddressExceptLogins(lookup.getKey(), "UNKNOWN");
+			}
+		}
+
+		// logins from other countries can only be detected once the location is known
+		logWatchEngine.processLocatedLogins(logs);
 	}
 }
\ No newline at end of file
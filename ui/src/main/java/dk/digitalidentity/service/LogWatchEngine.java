@@ -0,0 +1,281 @@
+package dk.digitalidentity.service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.web.util.matcher.IpAddressMatcher;
+import org.springframework.stereotype.Component;
+
+import dk.digitalidentity.common.config.CommonConfiguration;
+import dk.digitalidentity.common.dao.model.AuditLog;
+import dk.digitalidentity.common.dao.model.enums.LogAction;
+import dk.digitalidentity.common.dao.model.enums.LogWatchSettingKey;
+import dk.digitalidentity.common.service.LogWatchSettingService;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Incremental version of the log watch rules. Instead of scanning the last hour of auditlogs every 55 minutes, new WRONG_PASSWORD
+ * auditlogs are read by id (keeping a watermark of the last id seen), and LOGIN auditlogs are handed over by the GeoLocateService
+ * as soon as their location is known. The last hour of events is kept in memory per person, so alarms are raised within a minute.
+ *
+ * WRONG_PASSWORD auditlogs are only read once they are auditLog.maxWriteDelayMs old (see AuditLogConfiguration), as ids are not handed
+ * out in commit order, and a row committed after a row with a higher id would otherwise be skipped.
+ *
+ * On startup the windows are filled with the last hour of events, but no alarms are raised for those, so a restart does not
+ * resend alarms that were already sent.
+ */
+@Slf4j
+@Component
+public class LogWatchEngine {
+	private static final Duration WINDOW = Duration.ofHours(1);
+
+	private static final int BATCH_SIZE = 10000;
+
+	private static final String SELECT_WATERMARK = "SELECT id FROM auditlogs WHERE tts < ? ORDER BY id DESC LIMIT 1";
+	private static final String SELECT_WRONG_PASSWORDS_AFTER_ID = "SELECT id, tts, person_id, ip_address FROM auditlogs WHERE log_action = 'WRONG_PASSWORD' AND id > ? AND tts < ? ORDER BY id LIMIT " + BATCH_SIZE;
+	private static final String SELECT_WRONG_PASSWORDS_LAST_HOUR = "SELECT id, tts, person_id, ip_address FROM auditlogs WHERE log_action = 'WRONG_PASSWORD' AND tts > ? AND id <= ? ORDER BY id";
+	private static final String SELECT_LOGINS_WITH_LOCATION_LAST_HOUR = "SELECT tts, person_id, location FROM auditlogs WHERE log_action = 'LOGIN' AND tts > ? AND location IS NOT NULL AND location <> 'UNKNOWN' ORDER BY id";
+
+	@Qualifier("defaultTemplate")
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private LogWatcherService logWatcherService;
+
+	@Autowired
+	private LogWatchSettingService logWatchSettingService;
+
+	@Autowired
+	private CommonConfiguration commonConfiguration;
+
+	private long watermark = -1;
+	private final Deque<LocalDateTime> wrongPasswords = new ArrayDeque<>();
+	private final Map<WrongPasswordKey, Deque<LocalDateTime>> wrongPasswordsByPersonAndIp = new HashMap<>();
+	private final Set<WrongPasswordKey> alarmedPersonAndIp = new HashSet<>();
+	private final Map<Long, Deque<SeenLocation>> locationsByPerson = new HashMap<>();
+	private final Map<Long, LocalDateTime> lastTwoCountriesAlarm = new HashMap<>();
+	private LocalDateTime lastWrongPasswordsAlarm;
+
+	public synchronized void processNewAuditLogs() {
+		LocalDateTime now = LocalDateTime.now();
+
+		if (watermark < 0) {
+			initialize(now);
+			return;
+		}
+
+		WrongPasswordSettings settings = new WrongPasswordSettings();
+
+		List<WrongPasswordEvent> events;
+		do {
+			events = jdbcTemplate.query(SELECT_WRONG_PASSWORDS_AFTER_ID, (rs, rowNum) -> new WrongPasswordEvent(rs.getLong("id"), rs.getTimestamp("tts").toLocalDateTime(), rs.getObject("person_id", Long.class), rs.getString("ip_address")), watermark, Timestamp.valueOf(now.minus(getCommitLag())));
+
+			for (WrongPasswordEvent event : events) {
+				onWrongPassword(event, settings);
+				watermark = Math.max(watermark, event.id());
+			}
+		} while (events.size() == BATCH_SIZE);
+
+		evictExpired(now);
+
+		// the total number of wrong passwords is only alarmed once per window, same as when it was checked once an hour
+		if (settings.totalEnabled && wrongPasswords.size() > settings.totalLimit && (lastWrongPasswordsAlarm == null || lastWrongPasswordsAlarm.isBefore(now.minus(WINDOW)))) {
+			lastWrongPasswordsAlarm = now;
+			logWatcherService.alarmTooManyWrongPasswords(wrongPasswords.size(), settings.totalLimit);
+		}
+	}
+
+	// called with auditlogs that just had their location set
+	public synchronized void processLocatedLogins(List<AuditLog> auditLogs) {
+		boolean twoCountriesEnabled = logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.LOG_WATCH_ENABLED) && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TWO_COUNTRIES_ONE_HOUR_ENABLED);
+		boolean translateGermany = logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TWO_COUNTRIES_ONE_HOUR_GERMANY_ENABLED);
+		boolean translateSweeden = logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TWO_COUNTRIES_ONE_HOUR_SWEEDEN_ENABLED);
+
+		Map<Long, String> personIdsWithMultipleLocations = new LinkedHashMap<>();
+		Set<String> newCountryAlarms = new HashSet<>();
+
+		// logins that are geolocated late (e.g. a backlog after a restart) are outside the window, and too old to alarm on
+		LocalDateTime windowStart = LocalDateTime.now().minus(WINDOW);
+
+		for (AuditLog auditLog : auditLogs) {
+			if (auditLog.getLogAction() != LogAction.LOGIN || auditLog.getPerson() == null || auditLog.getLocation() == null || "UNKNOWN".equals(auditLog.getLocation())) {
+				continue;
+			}
+
+			if (auditLog.getTts() == null || auditLog.getTts().isBefore(windowStart)) {
+				continue;
+			}
+
+			long personId = auditLog.getPerson().getId();
+			String location = auditLog.getLocation();
+
+			// one alarm per person and country is enough, the LoginAlarm table prevents repeated alarms across batches
+			if (!"Denmark".equals(location) && newCountryAlarms.add(personId + "/" + location)) {
+				logWatcherService.alarmNewCountryLogin(auditLog.getPerson(), location);
+			}
+
+			if ((translateGermany && "Germany".equals(location)) || (translateSweeden && "Sweden".equals(location))) {
+				location = "Denmark";
+			}
+
+			String otherLocation = onLocatedLogin(personId, location, auditLog.getTts());
+			if (twoCountriesEnabled && otherLocation != null && !personIdsWithMultipleLocations.containsKey(personId)) {
+				LocalDateTime lastAlarm = lastTwoCountriesAlarm.get(personId);
+
+				if (lastAlarm == null || lastAlarm.isBefore(auditLog.getTts().minus(WINDOW))) {
+					lastTwoCountriesAlarm.put(personId, auditLog.getTts());
+					personIdsWithMultipleLocations.put(personId, location + " og " + otherLocation);
+				}
+			}
+		}
+
+		if (!personIdsWithMultipleLocations.isEmpty()) {
+			logWatcherService.alarmTwoCountriesOneHour(personIdsWithMultipleLocations);
+		}
+	}
+
+	private Duration getCommitLag() {
+		return Duration.ofMillis(commonConfiguration.getAuditLog().getMaxWriteDelayMs());
+	}
+
+	private void initialize(LocalDateTime now) {
+		LocalDateTime windowStart = now.minus(WINDOW);
+
+		// walks the primary key backwards from the newest row, instead of a range scan of the tts index for MAX(id)
+		List<Long> maxId = jdbcTemplate.queryForList(SELECT_WATERMARK, Long.class, Timestamp.valueOf(now.minus(getCommitLag())));
+		watermark = maxId.isEmpty() ? 0 : maxId.get(0);
+
+		// fill the windows without raising any alarms, those were handled before the restart
+		List<WrongPasswordEvent> wrongPasswordEvents = jdbcTemplate.query(SELECT_WRONG_PASSWORDS_LAST_HOUR, (rs, rowNum) -> new WrongPasswordEvent(rs.getLong("id"), rs.getTimestamp("tts").toLocalDateTime(), rs.getObject("person_id", Long.class), rs.getString("ip_address")), Timestamp.valueOf(windowStart), watermark);
+		for (WrongPasswordEvent event : wrongPasswordEvents) {
+			wrongPasswords.addLast(event.tts());
+
+			if (event.personId() != null) {
+				wrongPasswordsByPersonAndIp.computeIfAbsent(new WrongPasswordKey(event.personId(), event.ipAddress()), k -> new ArrayDeque<>()).addLast(event.tts());
+			}
+		}
+
+		jdbcTemplate.query(SELECT_LOGINS_WITH_LOCATION_LAST_HOUR, rs -> {
+			long personId = rs.getLong("person_id");
+			if (!rs.wasNull()) {
+				onLocatedLogin(personId, rs.getString("location"), rs.getTimestamp("tts").toLocalDateTime());
+			}
+		}, Timestamp.valueOf(windowStart));
+
+		log.info("LogWatchEngine initialized at auditlog id " + watermark + " with " + wrongPasswordEvents.size() + " wrong passwords and " + locationsByPerson.size() + " persons with logins from the last hour");
+	}
+
+	private void onWrongPassword(WrongPasswordEvent event, WrongPasswordSettings settings) {
+		wrongPasswords.addLast(event.tts());
+
+		// unknown persons only count towards the total
+		if (event.personId() == null) {
+			return;
+		}
+
+		WrongPasswordKey key = new WrongPasswordKey(event.personId(), event.ipAddress());
+		Deque<LocalDateTime> attempts = wrongPasswordsByPersonAndIp.computeIfAbsent(key, k -> new ArrayDeque<>());
+		attempts.addLast(event.tts());
+		evict(attempts, event.tts().minus(WINDOW));
+
+		if (settings.whitelistEnabled && attempts.size() > settings.whitelistLimit && !alarmedPersonAndIp.contains(key) && !logWatcherService.isWhitelistedIP(settings.whitelist, event.ipAddress())) {
+			alarmedPersonAndIp.add(key);
+			logWatcherService.alarmTooManyWrongPasswordsFromNonWhitelistIP(event.personId(), event.ipAddress());
+		}
+	}
+
+	// returns another location the person has logged in from within the window, or null
+	private String onLocatedLogin(long personId, String location, LocalDateTime tts) {
+		Deque<SeenLocation> locations = locationsByPerson.computeIfAbsent(personId, k -> new ArrayDeque<>());
+		while (!locations.isEmpty() && locations.peekFirst().tts().isBefore(tts.minus(WINDOW))) {
+			locations.removeFirst();
+		}
+
+		String otherLocation = null;
+		for (SeenLocation seen : locations) {
+			if (!Objects.equals(seen.location(), location)) {
+				otherLocation = seen.location();
+				break;
+			}
+		}
+
+		locations.addLast(new SeenLocation(tts, location));
+
+		return otherLocation;
+	}
+
+	private void evictExpired(LocalDateTime now) {
+		LocalDateTime cutoff = now.minus(WINDOW);
+
+		evict(wrongPasswords, cutoff);
+
+		for (Iterator<Map.Entry<WrongPasswordKey, Deque<LocalDateTime>>> iterator = wrongPasswordsByPersonAndIp.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<WrongPasswordKey, Deque<LocalDateTime>> entry = iterator.next();
+
+			evict(entry.getValue(), cutoff);
+			if (entry.getValue().isEmpty()) {
+				alarmedPersonAndIp.remove(entry.getKey());
+				iterator.remove();
+			}
+		}
+
+		for (Iterator<Deque<SeenLocation>> iterator = locationsByPerson.values().iterator(); iterator.hasNext();) {
+			Deque<SeenLocation> locations = iterator.next();
+
+			while (!locations.isEmpty() && locations.peekFirst().tts().isBefore(cutoff)) {
+				locations.removeFirst();
+			}
+
+			if (locations.isEmpty()) {
+				iterator.remove();
+			}
+		}
+
+		lastTwoCountriesAlarm.values().removeIf(tts -> tts.isBefore(cutoff));
+	}
+
+	private static void evict(Deque<LocalDateTime> timestamps, LocalDateTime cutoff) {
+		while (!timestamps.isEmpty() && !timestamps.peekFirst().isAfter(cutoff)) {
+			timestamps.removeFirst();
+		}
+	}
+
+	// read once per run, instead of once per event
+	private class WrongPasswordSettings {
+		private final boolean totalEnabled;
+		private final long totalLimit;
+		private final boolean whitelistEnabled;
+		private final long whitelistLimit;
+		private final List<IpAddressMatcher> whitelist;
+
+		private WrongPasswordSettings() {
+			boolean logWatchEnabled = logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.LOG_WATCH_ENABLED);
+
+			totalLimit = logWatchSettingService.getLongWithDefault(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_LIMIT, 0);
+			totalEnabled = logWatchEnabled && totalLimit > 0 && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_ENABLED);
+
+			whitelistLimit = logWatchSettingService.getLongWithDefault(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_WHITELIST_LIMIT, 0);
+			whitelistEnabled = logWatchEnabled && whitelistLimit > 0 && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_WHITELIST_ENABLED);
+			whitelist = whitelistEnabled ? logWatcherService.getWhitelist() : List.of();
+		}
+	}
+
+	private record WrongPasswordEvent(long id, LocalDateTime tts, Long personId, String ipAddress) { }
+	private record WrongPasswordKey(long personId, String ipAddress) { }
+	private record SeenLocation(LocalDateTime tts, String location) { }
+}
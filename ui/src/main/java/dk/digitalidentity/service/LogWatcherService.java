@@ -1,18 +1,11 @@
 package dk.digitalidentity.service;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.web.util.matcher.IpAddressMatcher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -31,8 +24,6 @@ import dk.digitalidentity.common.service.EmailTemplateService;
 import dk.digitalidentity.common.service.LogWatchSettingService;
 import dk.digitalidentity.common.service.LoginAlarmService;
 import dk.digitalidentity.common.service.PersonService;
-import dk.digitalidentity.common.service.dto.AuditLogFailedLoginDTO;
-import dk.digitalidentity.common.service.dto.AuditLogLocationDto;
 import dk.digitalidentity.util.IPUtil;
 import lombok.extern.slf4j.Slf4j;
 
@@ -40,40 +31,6 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class LogWatcherService {
 
-	private static final String SELECT_WRONG_PASSWORD_NON_WHITELIST_IP =
-			"SELECT COUNT(id) AS antal, ip_address, person_id FROM auditlogs a " +
-			" WHERE a.log_action = 'WRONG_PASSWORD' " +
-			" AND a.tts > ? " +
-			" AND a.tts < ? " +
-			" GROUP BY ip_address, person_id";
-
-	private static final String SELECT_WRONG_PASSWORD_LAST_HOUR =
-			"SELECT COUNT(id) AS antal FROM auditlogs a " +
-			" WHERE a.log_action = 'WRONG_PASSWORD' " +
-			" AND a.tts > ? " +
-			" AND a.tts < ?;";
-
-	private static final String SELECT_LOGIN_AUDITLOGS_WITH_LOCATION =
-			"SELECT person_id, location FROM auditlogs a " +
-			" WHERE a.log_action = 'LOGIN' " +
-			" AND a.tts > ? " +
-			" AND a.tts < ? " +
-			" AND a.location IS NOT NULL " +
-			" AND a.location <> 'UNKNOWN'";
-
-	private static final String SELECT_LOGIN_AUDITLOGS_WITH_LOCATION_NON_DK =
-			"SELECT DISTINCT person_id, location FROM auditlogs a " +
-			" WHERE a.log_action = 'LOGIN' " +
-			" AND a.tts > ? " +
-			" AND a.tts < ? " +
-			" AND a.location IS NOT NULL " +
-			" AND a.location <> 'UNKNOWN' " +
-			" AND a.location <> 'Denmark'";
-
-	@Qualifier("defaultTemplate")
-	@Autowired
-	private JdbcTemplate jdbcTemplate;
-
 	@Autowired
 	private EmailTemplateService emailTemplateService;
 
@@ -96,54 +53,35 @@ public class LogWatcherService {
 	private CommonConfiguration commonConfiguration;
 
 	@Transactional
-	public void logWatchTooManyWrongPasswordsFromNonWhitelistIP() {
-		long limit = logWatchSettingService.getLongWithDefault(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_WHITELIST_LIMIT, 0);
-		if (limit == 0) {
+	public void alarmTooManyWrongPasswordsFromNonWhitelistIP(long personId, String ipAddress) {
+		log.warn("Too many wrong passwords from non-whitelisted IP: " + ipAddress + " for person " + personId);
+
+		Person person = personService.getById(personId);
+		if (person == null) {
 			return;
 		}
 
-		LocalDateTime.now().minusHours(1).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-		List<AuditLogFailedLoginDTO> dtoList = jdbcTemplate.query(SELECT_WRONG_PASSWORD_NON_WHITELIST_IP,
-				(rs, rowNum) -> failedLoginMapper(rs),
-				LocalDateTime.now().minusHours(1).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-				LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
-
-		if (dtoList != null && dtoList.size() > 0) {
-			List<IpAddressMatcher> whiteList = getWhitelist();
-
-			for (AuditLogFailedLoginDTO dto : dtoList) {
-				if (dto.getAttempts() > limit && !isWhitelistedIP(whiteList, dto.getIpAddress())) {	
-					log.warn("Too many wrong passwords from non-whitelisted IP: " + dto.getIpAddress() + " for person " + dto.getPersonId());
-
-					Person person = personService.getById(dto.getPersonId());
-					if (person == null) {
-						continue;
-					}
-
-					EmailTemplate emailTemplate = emailTemplateService.findByTemplateType(EmailTemplateType.TOO_MANY_PASSWORD_WRONG_NON_WHITELIST);
-					for (EmailTemplateChild child : emailTemplate.getChildren()) {
-						if (child.isEnabled() && child.getDomain().getId() == person.getDomain().getId()) {
-							// we already alarmed the person on this IP address within the last month
-							if (loginAlarmService.countByPersonAndIpAddress(person, dto.getIpAddress()) > 0) {
-								continue;
-							}
-							
-							// store that we informed the user about this, so we don't send it later
-							LoginAlarm alarm = new LoginAlarm();
-							alarm.setAlarmType(LoginAlarmType.IP_ADDRESS);
-							alarm.setIpAddress(dto.getIpAddress());
-							alarm.setPerson(person);
-							alarm.setTts(LocalDateTime.now());
-							loginAlarmService.save(alarm);
-
-							String message = EmailTemplateService.safeReplacePlaceholder(child.getMessage(), EmailTemplateService.IP_PLACEHOLDER, dto.getIpAddress());
-							message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.RECIPIENT_PLACEHOLDER, person.getName());
-							message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.USERID_PLACEHOLDER, person.getSamaccountName());
-
-							emailTemplateSenderService.send(person.getEmail(), person.getCpr(), person, child.getTitle(), message, child, false);
-						}
-					}
+		EmailTemplate emailTemplate = emailTemplateService.findByTemplateType(EmailTemplateType.TOO_MANY_PASSWORD_WRONG_NON_WHITELIST);
+		for (EmailTemplateChild child : emailTemplate.getChildren()) {
+			if (child.isEnabled() && child.getDomain().getId() == person.getDomain().getId()) {
+				// we already alarmed the person on this IP address within the last month
+				if (loginAlarmService.countByPersonAndIpAddress(person, ipAddress) > 0) {
+					continue;
 				}
+				
+				// store that we informed the user about this, so we don't send it later
+				LoginAlarm alarm = new LoginAlarm();
+				alarm.setAlarmType(LoginAlarmType.IP_ADDRESS);
+				alarm.setIpAddress(ipAddress);
+				alarm.setPerson(person);
+				alarm.setTts(LocalDateTime.now());
+				loginAlarmService.save(alarm);
+
+				String message = EmailTemplateService.safeReplacePlaceholder(child.getMessage(), EmailTemplateService.IP_PLACEHOLDER, ipAddress);
+				message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.RECIPIENT_PLACEHOLDER, person.getName());
+				message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.USERID_PLACEHOLDER, person.getSamaccountName());
+
+				emailTemplateSenderService.send(person.getEmail(), person.getCpr(), person, child.getTitle(), message, child, false);
 			}
 		}
 	}
@@ -187,94 +125,45 @@ public class LogWatcherService {
 	}
 	
 	@Transactional
-	public void logWatchNotifyPersonOnNewCountryLogin() {
+	public void alarmNewCountryLogin(Person person, String location) {
 		EmailTemplate emailTemplate = emailTemplateService.findByTemplateType(EmailTemplateType.NEW_LOGIN_FOREIGN_COUNTRY);
 
 		List<EmailTemplateChild> children = emailTemplate.getChildren().stream().filter(c -> c.isEnabled()).collect(Collectors.toList());
 		if (children.size() == 0) {
 			return;
 		}
-		
-		List<AuditLogLocationDto> dtoList = jdbcTemplate.query(SELECT_LOGIN_AUDITLOGS_WITH_LOCATION_NON_DK,
-			(rs, rowNum) -> {
-				return new AuditLogLocationDto(rs.getLong("person_id"), rs.getString("location"));
-			},
-			LocalDateTime.now().minusMinutes(70).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-			LocalDateTime.now().minusMinutes(10).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
-
-		if (dtoList != null && dtoList.size() > 0) {
-			for (AuditLogLocationDto dto : dtoList) {
-				Person person = personService.getById(dto.getPersonId());
-				if (person == null) {
+
+		for (EmailTemplateChild child : children) {
+			if (child.getDomain().getId() == person.getDomain().getId()) {
+				// we already alarmed the person on this IP address within the last month
+				if (loginAlarmService.countByPersonAndCountry(person, location) > 0) {
 					continue;
 				}
 
-				for (EmailTemplateChild child : children) {
-					if (child.getDomain().getId() == person.getDomain().getId()) {
-						// we already alarmed the person on this IP address within the last month
-						if (loginAlarmService.countByPersonAndCountry(person, dto.getLocation()) > 0) {
-							continue;
-						}
-
-						// store that we informed the user about this, so we don't send it later
-						LoginAlarm alarm = new LoginAlarm();
-						alarm.setAlarmType(LoginAlarmType.COUNTRY);
-						alarm.setCountry(dto.getLocation());
-						alarm.setPerson(person);
-						alarm.setTts(LocalDateTime.now());
-						loginAlarmService.save(alarm);
-
-						String message = EmailTemplateService.safeReplacePlaceholder(child.getMessage(), EmailTemplateService.COUNTRY, dto.getLocation());
-						message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.RECIPIENT_PLACEHOLDER, person.getName());
-						message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.USERID_PLACEHOLDER, person.getSamaccountName());
-
-						emailTemplateSenderService.send(person.getEmail(), person.getCpr(), person, child.getTitle(), message, child, false);
-					}
-				}
+				// store that we informed the user about this, so we don't send it later
+				LoginAlarm alarm = new LoginAlarm();
+				alarm.setAlarmType(LoginAlarmType.COUNTRY);
+				alarm.setCountry(location);
+				alarm.setPerson(person);
+				alarm.setTts(LocalDateTime.now());
+				loginAlarmService.save(alarm);
+
+				String message = EmailTemplateService.safeReplacePlaceholder(child.getMessage(), EmailTemplateService.COUNTRY, location);
+				message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.RECIPIENT_PLACEHOLDER, person.getName());
+				message = EmailTemplateService.safeReplacePlaceholder(message, EmailTemplateService.USERID_PLACEHOLDER, person.getSamaccountName());
+
+				emailTemplateSenderService.send(person.getEmail(), person.getCpr(), person, child.getTitle(), message, child, false);
 			}
 		}
 	}
 
 	@Transactional
-	public void logWatchTwoCountriesOneHour() {
-		boolean translateGermany = logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TWO_COUNTRIES_ONE_HOUR_GERMANY_ENABLED);
-		boolean translateSweeden = logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TWO_COUNTRIES_ONE_HOUR_SWEEDEN_ENABLED);
-		
+	public void alarmTwoCountriesOneHour(Map<Long, String> personIdsWithMultipleLocations) {
 		String emails = logWatchSettingService.getAlarmEmailRecipients();
 		if (!StringUtils.hasLength(emails)) {
 			return;
 		}
 
-		List<AuditLogLocationDto> logsWithLocation = jdbcTemplate.query(SELECT_LOGIN_AUDITLOGS_WITH_LOCATION,
-			(rs, rowNum) -> {
-				String location = rs.getString("location");
-				if ((translateGermany && "Germany".equals(location)) || (translateSweeden && "Sweden".equals(location))) {
-					location = "Denmark";
-				}
-
-				return new AuditLogLocationDto(rs.getLong("person_id"), location);
-			},
-			LocalDateTime.now().minusMinutes(70).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-			LocalDateTime.now().minusMinutes(10).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
-
-		Map<Long, String> personIdsWithMultipleLocations = new HashMap<>();
-		Map<Long, String> personLocations = new HashMap<>();
-
-		for (AuditLogLocationDto dto : logsWithLocation) {
-			if (personIdsWithMultipleLocations.containsKey(dto.getPersonId())) {
-				continue;
-			}
-
-			if (personLocations.containsKey(dto.getPersonId())) {
-				if (!Objects.equals(dto.getLocation(), personLocations.get(dto.getPersonId()))) {
-					personIdsWithMultipleLocations.put(dto.getPersonId(), dto.getLocation() + " og " + personLocations.get(dto.getPersonId()));
-				}
-			}
-			else {
-				personLocations.put(dto.getPersonId(), dto.getLocation());
-			}
-		}
-
 		if (!personIdsWithMultipleLocations.isEmpty()) {
 			StringBuilder builder = new StringBuilder();
 
@@ -313,27 +202,12 @@ public class LogWatcherService {
 	}
 
 	@Transactional
-	public void logWatchTooManyWrongPassword() {
-		long limit = logWatchSettingService.getLongWithDefault(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_LIMIT, 0);
-		if (limit == 0) {
-			return;
-		}
-
+	public void alarmTooManyWrongPasswords(long logCount, long limit) {
 		String emails = logWatchSettingService.getAlarmEmailRecipients();
 		if (!StringUtils.hasLength(emails)) {
 			return;
 		}
 
-		long logCount = 0;
-		List<Long> logCountList = jdbcTemplate.query(SELECT_WRONG_PASSWORD_LAST_HOUR,
-				(rs, rowNum) -> rs.getLong("antal"),
-				LocalDateTime.now().minusHours(1).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-				LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
-
-		if (!logCountList.isEmpty()) {
-			logCount = logCountList.get(0);
-		}
-
 		if (logCount > limit) {
 			log.warn("Too many wrong passwords the last hour");
 			
@@ -357,12 +231,12 @@ public class LogWatcherService {
 		}
 	}
 
-	private List<IpAddressMatcher> getWhitelist() {
+	public List<IpAddressMatcher> getWhitelist() {
 		String whitelistString = logWatchSettingService.getString(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_WHITELIST);
 		return IPUtil.createAllowList(whitelistString);
 	}
 
-	private boolean isWhitelistedIP(List<IpAddressMatcher> whitelist, String userIp) {
+	public boolean isWhitelistedIP(List<IpAddressMatcher> whitelist, String userIp) {
 		boolean isWhitelisted = false;
 
 		for (IpAddressMatcher whitelistIp : whitelist) {
@@ -373,18 +247,4 @@ public class LogWatcherService {
 
 		return isWhitelisted;
 	}
-	
-
-	private AuditLogFailedLoginDTO failedLoginMapper(ResultSet rs) throws SQLException {
-		AuditLogFailedLoginDTO dto = new AuditLogFailedLoginDTO();
-		if (Objects.isNull(rs)) {
-			return dto;
-		}
-
-		dto.setAttempts(rs.getLong("antal"));
-		dto.setPersonId(rs.getLong("person_id"));
-		dto.setIpAddress(rs.getString("ip_address"));
-
-		return dto;
-	}
 }
@@ -1,7 +1,7 @@
 package dk.digitalidentity.service;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -16,9 +16,9 @@ import org.springframework.data.util.Pair;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import dk.digitalidentity.common.dao.AuditLogDao;
+import dk.digitalidentity.common.dao.LoginStatisticDao;
 import dk.digitalidentity.common.dao.PersonDao;
-import dk.digitalidentity.common.dao.model.AuditLog;
+import dk.digitalidentity.common.dao.model.LoginStatistic;
 import dk.digitalidentity.common.dao.model.PasswordSetting;
 import dk.digitalidentity.common.dao.model.enums.LogAction;
 import dk.digitalidentity.common.service.ADPasswordService;
@@ -27,9 +27,8 @@ import dk.digitalidentity.common.service.PasswordSettingService;
 @Service
 public class StatisticsService {
 
-	// TODO: autowire service instead, instead of direct DAO access, and recode to use count() instead of find()
 	@Autowired
-	private AuditLogDao auditLogDao;
+	private LoginStatisticDao loginStatisticDao;
 
 	@Autowired
 	private PersonDao personDao;
@@ -59,20 +58,10 @@ public class StatisticsService {
 
 	@Cacheable("lastHourLogins")
 	public List<Integer> getLoginCountLastHour() {
-		List<Integer> loginCounts = new ArrayList<>();
-		LocalDateTime now = LocalDateTime.now();
-
-		for (int i = 6; i > 0; i--) {
-			LocalDateTime start = now.minusMinutes(i * 10);
-			LocalDateTime end = now;
-			if (i != 1) {
-				end = now.minusMinutes((i - 1) * 10);
-			}
-
-			loginCounts.add(findLoginsByTimePeriod(start, end).size());
-		}
+		// 6 buckets of 10 minutes, the last one including the current minute
+		LocalDateTime from = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES).plusMinutes(1).minusHours(1);
 
-		return loginCounts;
+		return countLogins(from, 10, 6);
 	}
 
 	@Cacheable("TotalLastHourLogins")
@@ -87,22 +76,9 @@ public class StatisticsService {
 
 	@Cacheable("yesterdayLogins")
 	public List<Integer> getLoginCountYesterday() {
-		List<Integer> loginCounts = new ArrayList<>();
-		LocalDateTime yesterday = LocalDateTime.now().minus(1, ChronoUnit.DAYS);
-		LocalDateTime lastHourYesterday = yesterday.with(LocalTime.of(23, 59, 59));
-		LocalDateTime firstHourYesterday = yesterday.with(LocalTime.of(0, 0, 0));
-
-		for (int i = 1; i < 25; i++) {
-			LocalDateTime start = firstHourYesterday.plusHours(i - 1);
-			LocalDateTime end = firstHourYesterday.plusHours(i);
-			if (i == 24) {
-				end = lastHourYesterday;
-			}
-
-			loginCounts.add(findLoginsByTimePeriod(start, end).size());
-		}
+		LocalDateTime from = LocalDate.now().minusDays(1).atStartOfDay();
 
-		return loginCounts;
+		return countLogins(from, 60, 24);
 	}
 
 	@Cacheable("TotalYesterdayLogins")
@@ -171,7 +147,24 @@ public class StatisticsService {
 		self.cleanupDaily();
 	}
 
-	private List<AuditLog> findLoginsByTimePeriod(LocalDateTime start, LocalDateTime end) {
-		return auditLogDao.findByTtsAfterAndTtsBeforeAndLogAction(start, end, LogAction.LOGIN);
+	// reads the per-minute login counts maintained by the AuditLogWriter, instead of loading every LOGIN auditlog just to count them
+	private List<Integer> countLogins(LocalDateTime from, int bucketMinutes, int buckets) {
+		int[] counts = new int[buckets];
+
+		LocalDateTime to = from.plusMinutes((long) bucketMinutes * buckets);
+		for (LoginStatistic loginStatistic : loginStatisticDao.findByTtsGreaterThanEqualAndTtsLessThanAndLogAction(from, to, LogAction.LOGIN)) {
+			int bucket = (int) (ChronoUnit.MINUTES.between(from, loginStatistic.getTts()) / bucketMinutes);
+
+			if (bucket >= 0 && bucket < buckets) {
+				counts[bucket] += loginStatistic.getLoginCount();
+			}
+		}
+
+		List<Integer> loginCounts = new ArrayList<>(buckets);
+		for (int count : counts) {
+			loginCounts.add(count);
+		}
+
+		return loginCounts;
 	}
 }
@@ -0,0 +1,12 @@
+package dk.digitalidentity.service.geo;
+
+import dk.digitalidentity.service.geo.dto.GeoIP;
+
+public interface GeoLocator {
+
+	/**
+	 * Looks up the location of an IP address. A result without a country and with retry set means the lookup failed
+	 * for now and should be attempted again later, without retry it means the location is unknown.
+	 */
+	GeoIP lookup(String ip);
+}
@@ -0,0 +1,229 @@
+package dk.digitalidentity.service.geo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import dk.digitalidentity.config.OS2faktorConfiguration;
+import dk.digitalidentity.service.geo.dto.GeoIP;
+import dk.digitalidentity.util.IPUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Looks up IP addresses in a local range file, configured in os2faktor.ui.geo.databaseFile. The file is a CSV file with one range per line
+ *
+ *   start,end,country[,city]
+ *
+ * where start and end are IPv4 or IPv6 addresses (both inclusive). Empty lines and lines starting with # are ignored, and the ranges
+ * must not overlap. All addresses are stored as 128 bit numbers (IPv4 as IPv4-mapped IPv6) in sorted primitive arrays, so a lookup is
+ * a binary search without any allocations besides the result.
+ */
+@Slf4j
+@Component
+public class LocalGeoLocator implements GeoLocator {
+
+	@Autowired
+	private OS2faktorConfiguration configuration;
+
+	private volatile RangeTable ranges;
+
+	@PostConstruct
+	public void loadDatabaseFile() {
+		String databaseFile = configuration.getGeo().getDatabaseFile();
+		if (!configuration.getGeo().isEnabled() || !StringUtils.hasLength(databaseFile)) {
+			return;
+		}
+
+		try {
+			ranges = RangeTable.load(Path.of(databaseFile));
+
+			log.info("Loaded " + ranges.size() + " IP ranges from " + databaseFile);
+		}
+		catch (Exception ex) {
+			log.error("Failed to load IP ranges from " + databaseFile + ", using the remote geolocate service instead", ex);
+		}
+	}
+
+	public boolean isLoaded() {
+		return ranges != null;
+	}
+
+	@Override
+	public GeoIP lookup(String ip) {
+		GeoIP geo = new GeoIP();
+		geo.setIp(ip);
+
+		// the file is all there is, so an address that is not in it will not be found later either
+		geo.setRetry(false);
+
+		long[] address = parse(ip);
+		if (address == null) {
+			log.warn("Failed to lookup ip " + ip + ". Not an IP address");
+			return geo;
+		}
+
+		RangeTable table = ranges;
+		int index = (table != null) ? table.find(address[0], address[1]) : -1;
+		if (index >= 0) {
+			geo.setCountry(table.country[index]);
+			geo.setCity(table.city[index]);
+		}
+
+		return geo;
+	}
+
+	// returns the address as { high 64 bits, low 64 bits }, or null if it is not an IP address
+	static long[] parse(String ip) {
+		if (ip == null) {
+			return null;
+		}
+
+		ip = ip.trim();
+
+		// parsed without InetAddress.getByName, which falls back to a DNS lookup for anything that is not a valid literal
+		byte[] bytes = IPUtil.parseIpLiteral(ip);
+		if (bytes == null) {
+			return null;
+		}
+
+		long high = 0, low = 0;
+		if (bytes.length == 4) {
+			low = 0xffffL << 32;
+			for (int i = 0; i < 4; i++) {
+				low |= (bytes[i] & 0xffL) << (8 * (3 - i));
+			}
+		}
+		else {
+			for (int i = 0; i < 8; i++) {
+				high = (high << 8) | (bytes[i] & 0xffL);
+				low = (low << 8) | (bytes[i + 8] & 0xffL);
+			}
+		}
+
+		return new long[] { high, low };
+	}
+
+	private static int compare(long high1, long low1, long high2, long low2) {
+		int result = Long.compareUnsigned(high1, high2);
+
+		return (result != 0) ? result : Long.compareUnsigned(low1, low2);
+	}
+
+	static class RangeTable {
+		private final long[] startHigh;
+		private final long[] startLow;
+		private final long[] endHigh;
+		private final long[] endLow;
+		private final String[] country;
+		private final String[] city;
+
+		private RangeTable(List<Range> ranges) {
+			ranges.sort(Comparator.<Range, Long>comparing(r -> r.start[0], Long::compareUnsigned).thenComparing(r -> r.start[1], Long::compareUnsigned));
+
+			int size = ranges.size();
+			startHigh = new long[size];
+			startLow = new long[size];
+			endHigh = new long[size];
+			endLow = new long[size];
+			country = new String[size];
+			city = new String[size];
+
+			for (int i = 0; i < size; i++) {
+				Range range = ranges.get(i);
+				startHigh[i] = range.start[0];
+				startLow[i] = range.start[1];
+				endHigh[i] = range.end[0];
+				endLow[i] = range.end[1];
+				country[i] = range.country;
+				city[i] = range.city;
+			}
+		}
+
+		static RangeTable load(Path file) throws IOException {
+			List<Range> ranges = new ArrayList<>();
+
+			// most ranges share a handful of country/city names, so keep one instance of each
+			Map<String, String> names = new HashMap<>();
+
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				int lineNumber = 0;
+
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+
+					String[] tokens = line.split(",", 4);
+					long[] start = (tokens.length >= 3) ? parse(unquote(tokens[0])) : null;
+					long[] end = (tokens.length >= 3) ? parse(unquote(tokens[1])) : null;
+					if (start == null || end == null || compare(start[0], start[1], end[0], end[1]) > 0) {
+						log.warn("Skipping invalid IP range in line " + lineNumber + ": " + line);
+						continue;
+					}
+
+					String country = names.computeIfAbsent(unquote(tokens[2]), name -> name);
+					String city = (tokens.length == 4 && StringUtils.hasLength(unquote(tokens[3]))) ? names.computeIfAbsent(unquote(tokens[3]), name -> name) : null;
+
+					ranges.add(new Range(start, end, country, city));
+				}
+			}
+
+			return new RangeTable(ranges);
+		}
+
+		int size() {
+			return startHigh.length;
+		}
+
+		// index of the range containing the address, or -1
+		int find(long high, long low) {
+			int lowIndex = 0, highIndex = startHigh.length - 1, candidate = -1;
+
+			// find the last range starting at or before the address
+			while (lowIndex <= highIndex) {
+				int middle = (lowIndex + highIndex) >>> 1;
+
+				if (compare(startHigh[middle], startLow[middle], high, low) <= 0) {
+					candidate = middle;
+					lowIndex = middle + 1;
+				}
+				else {
+					highIndex = middle - 1;
+				}
+			}
+
+			if (candidate >= 0 && compare(high, low, endHigh[candidate], endLow[candidate]) <= 0) {
+				return candidate;
+			}
+
+			return -1;
+		}
+
+		private static String unquote(String value) {
+			value = value.trim();
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+				value = value.substring(1, value.length() - 1);
+			}
+
+			return value;
+		}
+	}
+
+	private record Range(long[] start, long[] end, String country, String city) { }
+}
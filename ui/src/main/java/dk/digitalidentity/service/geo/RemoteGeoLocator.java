@@ -0,0 +1,63 @@
+package dk.digitalidentity.service.geo;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import dk.digitalidentity.config.OS2faktorConfiguration;
+import dk.digitalidentity.service.geo.dto.GeoIP;
+import lombok.extern.slf4j.Slf4j;
+
+// looks up IP addresses using the remote geolocate service configured in os2faktor.ui.geo.url
+@Slf4j
+@Component
+public class RemoteGeoLocator implements GeoLocator {
+	private final RestTemplate restTemplate = new RestTemplate();
+
+	@Autowired
+	private OS2faktorConfiguration configuration;
+
+	@Override
+	public GeoIP lookup(String ip) {
+		GeoIP geo = new GeoIP();
+		geo.setRetry(true);
+
+		String resourceUrl = configuration.getGeo().getUrl();
+		if (!resourceUrl.endsWith("/")) {
+			resourceUrl += "/";
+		}
+		resourceUrl += "api?ip=" + ip;
+
+		try {
+			HttpHeaders headers = new HttpHeaders();
+			headers.add("Accept", "application/json");
+			HttpEntity<Void> request = new HttpEntity<>(headers);
+
+			ResponseEntity<GeoIP> response = restTemplate.exchange(resourceUrl, HttpMethod.GET, request, GeoIP.class);
+			
+			if (response.getStatusCode().value() != 200) {
+				log.warn("Failed to lookup ip " + ip + ". Status = " + response.getStatusCode().value());
+				
+				if (response.getStatusCode().value() == 400) {
+					geo.setRetry(false);
+				}
+				return geo;
+			}
+			
+			return response.getBody();
+		}
+		catch (Exception ex) {
+			log.warn("Failed to lookup ip " + ip + ". Message = " + ex.getMessage());
+			
+			if (ex.getMessage().contains("400")) {
+				geo.setRetry(false);
+			}
+		}
+
+		return geo;
+	}
+}
@@ -7,6 +7,7 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import dk.digitalidentity.common.log.AuditLogger;
+import dk.digitalidentity.common.service.AuditLogPartitionService;
 import dk.digitalidentity.config.OS2faktorConfiguration;
 
 @Component
@@ -17,15 +18,20 @@ public class LogCleanupTask {
 	@Autowired
 	private AuditLogger auditLogger;
 
+	@Autowired
+	private AuditLogPartitionService auditLogPartitionService;
+
 	@Autowired
 	private OS2faktorConfiguration configuration;
 
-	// nightly - run it multiple times to ensure we delete enough data (LIMIT 25000 on each run)
+	// nightly - run it multiple times to ensure we delete enough data (LIMIT 25000 on each run). Most expired data is removed by
+	// dropping partitions, the row-by-row deletes only handle what is left at the partition boundaries (and data from before partitioning)
 	@Scheduled(cron = "#{new java.util.Random().nextInt(59)} #{new java.util.Random().nextInt(59)} 2,3,4 * * ?")
 	public void processChanges() {
 		if (configuration.getScheduled().isEnabled()) {
 			log.info("Cleanup of old logs started");
 
+			auditLogPartitionService.maintainPartitions();
 			auditLogger.cleanupLogs();
 			auditLogger.cleanupTraceLogs();
 			auditLogger.cleanupLoginLogs();
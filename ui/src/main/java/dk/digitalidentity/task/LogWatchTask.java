@@ -8,6 +8,7 @@ import org.springframework.stereotype.Component;
 import dk.digitalidentity.common.dao.model.enums.LogWatchSettingKey;
 import dk.digitalidentity.common.service.LogWatchSettingService;
 import dk.digitalidentity.config.OS2faktorConfiguration;
+import dk.digitalidentity.service.LogWatchEngine;
 import dk.digitalidentity.service.LogWatcherService;
 
 @Component
@@ -23,14 +24,17 @@ public class LogWatchTask {
 	@Autowired
 	private LogWatcherService logWatcherService;
 
-	// run every 55 minutes, delayed 5 minutes to spread out load
-	@Scheduled(fixedDelay = 55 * 60 * 1000, initialDelay = 5 * 60 * 1000)
-	public void watchLogTwoCountriesOneHour() {
-		if (configuration.getScheduled().isEnabled() && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.LOG_WATCH_ENABLED) && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TWO_COUNTRIES_ONE_HOUR_ENABLED)) {
-			logWatcherService.logWatchTwoCountriesOneHour();
+	@Autowired
+	private LogWatchEngine logWatchEngine;
+
+	// the wrong password rules are evaluated incrementally on new auditlogs, the country rules when GeoLocateService sets the location
+	@Scheduled(fixedDelay = 30 * 1000, initialDelay = 60 * 1000)
+	public void watchNewAuditLogs() {
+		if (configuration.getScheduled().isEnabled()) {
+			logWatchEngine.processNewAuditLogs();
 		}
 	}
-		
+
 	// run every 55 minutes, delayed 10 minutes to spread out load
 	@Scheduled(fixedDelay = 55 * 60 * 1000, initialDelay = 10 * 60 * 1000)
 	public void watchLogTooManyLockedOnPassword() {
@@ -38,28 +42,4 @@ public class LogWatchTask {
 			logWatcherService.logWatchTooManyLockedOnPassword();
 		}
 	}
-	
-	// run every 55 minutes, delayed 15 minutes to spread out load
-	@Scheduled(fixedDelay = 55 * 60 * 1000, initialDelay = 15 * 60 * 1000)
-	public void watchLogTooManyWrongPasswords() {
-		if (configuration.getScheduled().isEnabled() && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.LOG_WATCH_ENABLED) && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_ENABLED)) {
-			logWatcherService.logWatchTooManyWrongPassword();
-		}
-	}
-
-	// run every 55 minutes, delayed 20 minutes to spread out load
-	@Scheduled(fixedDelay = 55 * 60 * 1000, initialDelay = 20 * 60 * 1000)
-	public void watchLogTooManyWrongPasswordsFromNonWhitelistIP() {
-		if (configuration.getScheduled().isEnabled() && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.LOG_WATCH_ENABLED) && logWatchSettingService.getBooleanWithDefaultFalse(LogWatchSettingKey.TOO_MANY_WRONG_PASSWORDS_WHITELIST_ENABLED)) {
-			logWatcherService.logWatchTooManyWrongPasswordsFromNonWhitelistIP();
-		}
-	}
-	
-	// run every 55 minutes, delayed 25 minutes to spread out load
-	@Scheduled(fixedDelay = 55 * 60 * 1000, initialDelay = 25 * 60 * 1000)
-	public void watchLogNewCountryLogins() {
-		if (configuration.getScheduled().isEnabled()) {
-			logWatcherService.logWatchNotifyPersonOnNewCountryLogin();
-		}
-	}
 }
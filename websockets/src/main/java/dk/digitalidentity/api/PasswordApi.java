@@ -1,6 +1,7 @@
 package dk.digitalidentity.api;
 
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -33,88 +34,88 @@ public class PasswordApi {
 	private OS2faktorConfiguration configuration;
 	
 	@PostMapping("/api/validatePassword")
-	public ResponseEntity<?> validatePassword(@Valid @RequestBody PasswordRequest request, BindingResult bindingResult) {
+	public CompletableFuture<ResponseEntity<?>> validatePassword(@Valid @RequestBody PasswordRequest request, BindingResult bindingResult) {
 		if (bindingResult.hasErrors()) {
-			return new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST);
+			return CompletableFuture.completedFuture(new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST));
 		}
 		
-		PasswordResponse response = null;
+		CompletableFuture<PasswordResponse> response = null;
 		if (configuration.getAzureProxy().isEnabled() && Objects.equals(configuration.getAzureProxy().getDomain(), request.getDomain())) {
-			response = azureProxy.validatePassword(request);
+			response = CompletableFuture.completedFuture(azureProxy.validatePassword(request));
 		}
 		else {
 			response = passwordService.validatePassword(request);
 		}
-		
-		return new ResponseEntity<>(response, HttpStatus.OK);
+
+		return response.thenApply(r -> new ResponseEntity<>(r, HttpStatus.OK));
 	}
 	
 	@PostMapping("/api/setPassword")
-	public ResponseEntity<?> setPassword(@Valid @RequestBody PasswordRequest request, BindingResult bindingResult) {
+	public CompletableFuture<ResponseEntity<?>> setPassword(@Valid @RequestBody PasswordRequest request, BindingResult bindingResult) {
 		if (bindingResult.hasErrors()) {
-			return new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST);
+			return CompletableFuture.completedFuture(new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST));
 		}
 
-		PasswordResponse response = null;
+		CompletableFuture<PasswordResponse> response = null;
 		if (configuration.getAzureProxy().isEnabled() && Objects.equals(configuration.getAzureProxy().getDomain(), request.getDomain())) {
-			response = azureProxy.setPassword(request);
+			response = CompletableFuture.completedFuture(azureProxy.setPassword(request));
 		}
 		else {
 			response = passwordService.setPassword(request);
 		}
-		
-		return new ResponseEntity<>(response, HttpStatus.OK);
+
+		return response.thenApply(r -> new ResponseEntity<>(r, HttpStatus.OK));
 	}
 	
 	@PostMapping("/api/setPasswordWithForcedChange")
-	public ResponseEntity<?> setPasswordWithForcedChange(@Valid @RequestBody PasswordRequest request, BindingResult bindingResult) {
+	public CompletableFuture<ResponseEntity<?>> setPasswordWithForcedChange(@Valid @RequestBody PasswordRequest request, BindingResult bindingResult) {
 		if (bindingResult.hasErrors()) {
-			return new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST);
+			return CompletableFuture.completedFuture(new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST));
 		}
 
-		PasswordResponse response = null;
+		CompletableFuture<PasswordResponse> response = null;
 		if (configuration.getAzureProxy().isEnabled() && Objects.equals(configuration.getAzureProxy().getDomain(), request.getDomain())) {
-			response = azureProxy.setPasswordWithForcedChange(request);
+			response = CompletableFuture.completedFuture(azureProxy.setPasswordWithForcedChange(request));
 		}
 		else {
 			response = passwordService.setPasswordWithForcedChange(request);
 		}
-		
-		return new ResponseEntity<>(response, HttpStatus.OK);
+
+		return response.thenApply(r -> new ResponseEntity<>(r, HttpStatus.OK));
 	}
 	
 	@PostMapping("/api/unlockAccount")
-	public ResponseEntity<?> unlockAccount(@Valid @RequestBody UnlockRequest request, BindingResult bindingResult) {
+	public CompletableFuture<ResponseEntity<?>> unlockAccount(@Valid @RequestBody UnlockRequest request, BindingResult bindingResult) {
 		if (bindingResult.hasErrors()) {
-			return new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST);
+			return CompletableFuture.completedFuture(new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST));
 		}
 
-		PasswordResponse response = null;
+		CompletableFuture<PasswordResponse> response = null;
 		if (configuration.getAzureProxy().isEnabled() && Objects.equals(configuration.getAzureProxy().getDomain(), request.getDomain())) {
-			response = azureProxy.unlockAccount(request);
+			response = CompletableFuture.completedFuture(azureProxy.unlockAccount(request));
 		}
 		else {
 			response = passwordService.unlockAccount(request);
 		}
-		
-		return new ResponseEntity<>(response, HttpStatus.OK);
+
+		return response.thenApply(r -> new ResponseEntity<>(r, HttpStatus.OK));
 	}
 
 	@PostMapping("/api/passwordExpires")
-	public ResponseEntity<?> passwordExpires(@Valid @RequestBody UnlockRequest request, BindingResult bindingResult) {
+	public CompletableFuture<ResponseEntity<?>> passwordExpires(@Valid @RequestBody UnlockRequest request, BindingResult bindingResult) {
 		if (bindingResult.hasErrors()) {
-			return new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST);
+			return CompletableFuture.completedFuture(new ResponseEntity<>(bindingResult.getAllErrors(), HttpStatus.BAD_REQUEST));
 		}
 
-		PasswordResponse response = null;
+		CompletableFuture<PasswordResponse> response = null;
 		if (configuration.getAzureProxy().isEnabled() && Objects.equals(configuration.getAzureProxy().getDomain(), request.getDomain())) {
-			response = azureProxy.passwordExpires(request);
+			response = CompletableFuture.completedFuture(azureProxy.passwordExpires(request));
 		}
 		else {
 			response = passwordService.passwordExpires(request);
 		}
 
-		return new ResponseEntity<>(response, HttpStatus.OK);
+		return response.thenApply(r -> new ResponseEntity<>(r, HttpStatus.OK));
 	}
 
 	@GetMapping("/api/sessions")
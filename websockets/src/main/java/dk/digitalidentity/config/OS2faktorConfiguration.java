@@ -14,6 +14,10 @@ public class OS2faktorConfiguration {
 	private String apiKey;
 	private String webSocketKey;
 	private long maxWait = 40;
+
+	// limits on the outbound queue of each agent connection, a connection exceeding them is closed
+	private int sendTimeLimit = 5000;
+	private int sendBufferSizeLimit = 512 * 1024;
 	
 	private AzureProxyConfig azureProxy = new AzureProxyConfig();
 }
@@ -3,6 +3,7 @@ package dk.digitalidentity.config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 @Configuration
@@ -20,4 +21,16 @@ public class TaskPoolConfiguration {
 	    return scheduler;
 	}
 
+	// requests that timed out are retried from here, as sending may block on a stalled connection, and must not hold up the scheduler
+	@Bean
+	public ThreadPoolTaskExecutor requestRetryExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+
+		executor.setCorePoolSize(4);
+		executor.setMaxPoolSize(4);
+		executor.setThreadNamePrefix("request-retry-");
+		executor.setDaemon(true);
+
+		return executor;
+	}
 }
@@ -9,17 +9,35 @@ import javax.crypto.spec.SecretKeySpec;
 public class HMacUtil {
 	private static final String HMAC_ALGORITHM = "HmacSHA256";
 
+	// Mac.getInstance() and init() are costly compared to the hmac itself, so each thread keeps an initialized Mac for the last key it used
+	private static final ThreadLocal<KeyedMac> MACS = new ThreadLocal<>();
+
 	public static String hmac(String message, String key) throws Exception {
+		Mac mac = getMac(key);
+
+		// perform hmac (doFinal also resets the Mac, so it is ready for the next message)
+		byte[] macData = mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+		return Base64.getEncoder().encodeToString(macData);
+	}
+
+	private static Mac getMac(String key) throws Exception {
+		KeyedMac keyedMac = MACS.get();
+		if (keyedMac != null && keyedMac.key.equals(key)) {
+			return keyedMac.mac;
+		}
+
 		// generate key from raw bytes
-        byte[] byteKey = key.getBytes(StandardCharsets.UTF_8);
-        SecretKeySpec keySpec = new SecretKeySpec(byteKey, HMAC_ALGORITHM);
-
-        // generate hmac algorithm
-        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-        mac.init(keySpec);
-        
-        // perform hmac
-        byte[] macData = mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(macData);
+		byte[] byteKey = key.getBytes(StandardCharsets.UTF_8);
+		SecretKeySpec keySpec = new SecretKeySpec(byteKey, HMAC_ALGORITHM);
+
+		// generate hmac algorithm
+		Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(keySpec);
+
+		MACS.set(new KeyedMac(key, mac));
+
+		return mac;
 	}
+
+	private record KeyedMac(String key, Mac mac) { }
 }
@@ -2,9 +2,10 @@ package dk.digitalidentity.service;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
 
 import dk.digitalidentity.api.dto.PasswordRequest;
@@ -20,112 +21,32 @@ public class PasswordService {
 	@Autowired
 	private SocketHandler socketHandler;
 
-	public PasswordResponse validatePassword(PasswordRequest request) {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-
-		try {
-			AsyncResult<PasswordResponse> result = socketHandler.validatePassword(request.getUserName(), request.getPassword(), request.getDomain(), true);
-
-			return result.get();
-		}
-		catch (Exception ex) {
-			log.error("Failed to validate password", ex);
-
-			response.setMessage(ex.getMessage());
-		}
-
-		return response;
+	public CompletableFuture<PasswordResponse> validatePassword(PasswordRequest request) {
+		return socketHandler.validatePassword(request.getUserName(), request.getPassword(), request.getDomain(), true)
+				.exceptionally(ex -> failure("Failed to validate password", ex));
 	}
 
-	public PasswordResponse setPassword(PasswordRequest request) {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-
-		try {
-			AsyncResult<PasswordResponse> result = socketHandler.setPassword(request.getUserName(), request.getPassword(), request.getDomain(), true);
-
-			// convert technical error to insufficent permissions if needed
-			PasswordResponse res = result.get();
-			if (res.getMessage() != null && res.getMessage().contains("E_ACCESSDENIED")) {
-				res.setStatus(PasswordStatus.INSUFFICIENT_PERMISSION);
-			}
-
-			return result.get();
-		}
-		catch (Exception ex) {
-			log.error("Failed to set password", ex);
-			
-			response.setMessage(ex.getMessage());
-		}
-
-		return response;
+	public CompletableFuture<PasswordResponse> setPassword(PasswordRequest request) {
+		return socketHandler.setPassword(request.getUserName(), request.getPassword(), request.getDomain(), true)
+				.thenApply(PasswordService::mapAccessDenied)
+				.exceptionally(ex -> failure("Failed to set password", ex));
 	}
 	
-	public PasswordResponse setPasswordWithForcedChange(PasswordRequest request) {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-
-		try {
-			AsyncResult<PasswordResponse> result = socketHandler.setPasswordWithForcedChange(request.getUserName(), request.getPassword(), request.getDomain(), true);
-
-			// convert technical error to insufficent permissions if needed
-			PasswordResponse res = result.get();
-			if (res.getMessage() != null && res.getMessage().contains("E_ACCESSDENIED")) {
-				res.setStatus(PasswordStatus.INSUFFICIENT_PERMISSION);
-			}
-
-			return result.get();
-		}
-		catch (Exception ex) {
-			log.error("Failed to set password", ex);
-			
-			response.setMessage(ex.getMessage());
-		}
-
-		return response;
+	public CompletableFuture<PasswordResponse> setPasswordWithForcedChange(PasswordRequest request) {
+		return socketHandler.setPasswordWithForcedChange(request.getUserName(), request.getPassword(), request.getDomain(), true)
+				.thenApply(PasswordService::mapAccessDenied)
+				.exceptionally(ex -> failure("Failed to set password", ex));
 	}
 	
-	public PasswordResponse unlockAccount(UnlockRequest request) {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-
-		try {
-			AsyncResult<PasswordResponse> result = socketHandler.unlockAccount(request.getUserName(), request.getDomain(), true);
-
-			// convert technical error to insufficent permissions if needed
-			PasswordResponse res = result.get();
-			if (res.getMessage() != null && res.getMessage().contains("E_ACCESSDENIED")) {
-				res.setStatus(PasswordStatus.INSUFFICIENT_PERMISSION);
-			}
-			
-			return res;
-		}
-		catch (Exception ex) {
-			log.error("Failed to unlock account", ex);
-			
-			response.setMessage(ex.getMessage());
-		}
-
-		return response;
+	public CompletableFuture<PasswordResponse> unlockAccount(UnlockRequest request) {
+		return socketHandler.unlockAccount(request.getUserName(), request.getDomain(), true)
+				.thenApply(PasswordService::mapAccessDenied)
+				.exceptionally(ex -> failure("Failed to unlock account", ex));
 	}
 
-	public PasswordResponse passwordExpires(UnlockRequest request) {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-
-		try {
-			AsyncResult<PasswordResponse> result = socketHandler.passwordExpires(request.getUserName(), request.getDomain(), true);
-
-			return result.get();
-		}
-		catch (Exception ex) {
-			log.error("Failed to run password expires soon script", ex);
-
-			response.setMessage(ex.getMessage());
-		}
-
-		return response;
+	public CompletableFuture<PasswordResponse> passwordExpires(UnlockRequest request) {
+		return socketHandler.passwordExpires(request.getUserName(), request.getDomain(), true)
+				.exceptionally(ex -> failure("Failed to run password expires soon script", ex));
 	}
 
 	public int activeSessions(String domain) {
@@ -137,4 +58,24 @@ public class PasswordService {
 		
 		return sessions.size();
 	}
+
+	// convert technical error to insufficent permissions if needed
+	private static PasswordResponse mapAccessDenied(PasswordResponse response) {
+		if (response.getMessage() != null && response.getMessage().contains("E_ACCESSDENIED")) {
+			response.setStatus(PasswordStatus.INSUFFICIENT_PERMISSION);
+		}
+
+		return response;
+	}
+
+	private static PasswordResponse failure(String message, Throwable ex) {
+		Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+		log.error(message, cause);
+
+		PasswordResponse response = new PasswordResponse();
+		response.setStatus(PasswordStatus.FAILURE);
+		response.setMessage(cause.getMessage());
+
+		return response;
+	}
 }
@@ -1,7 +1,9 @@
 package dk.digitalidentity.service;
 
 import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
 
+import dk.digitalidentity.api.dto.PasswordResponse;
 import dk.digitalidentity.service.model.Request;
 import lombok.Getter;
 import lombok.Setter;
@@ -11,6 +13,9 @@ import lombok.Setter;
 public class RequestHolder {
 	private Request request;
 	private LocalDateTime tts;
+
+	// completed when the response arrives (or the request times out)
+	private CompletableFuture<PasswordResponse> future = new CompletableFuture<>();
 	
 	public RequestHolder(Request request) {
 		this.request = request;
@@ -3,6 +3,7 @@ package dk.digitalidentity.service;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.web.socket.WebSocketSession;
 
@@ -14,6 +15,7 @@ import lombok.extern.slf4j.Slf4j;
 @Getter
 @Setter
 public class Session {
+	private static final double AVERAGE_WEIGHT = 0.2;
 	private static long idMax = 0;
 	private long id;
 	private WebSocketSession session;
@@ -32,6 +34,10 @@ public class Session {
 	private long requestCount = 0;
 	private Map<String, RequestTracker> requestMap = new HashMap<>();
 
+	// load, used when picking a connection for a request
+	private AtomicInteger outstandingRequests = new AtomicInteger();
+	private volatile double averageRequestTime = 0;
+
 	public Session(WebSocketSession session) {
 		this.session = session;
 		this.domain = null;
@@ -42,6 +48,9 @@ public class Session {
 	
 	public synchronized void logRequest(String command, long timeToComplete) {
 		requestCount++;
+
+		// exponentially weighted, so the average follows the agent if it becomes slower (or faster)
+		averageRequestTime = (requestCount == 1) ? timeToComplete : (AVERAGE_WEIGHT * timeToComplete) + ((1 - AVERAGE_WEIGHT) * averageRequestTime);
 		
 		RequestTracker tracker = requestMap.get(command);
 		if (tracker == null) {
@@ -110,6 +119,12 @@ public class Session {
 		return false;
 	}
 
+	// expected time before this connection can answer one more request. Connections without any measurements count as taking 1 ms,
+	// so they are tried before connections that are known to be slower
+	public double getLoad() {
+		return (outstandingRequests.get() + 1) * Math.max(averageRequestTime, 1);
+	}
+
 	public boolean isStale() {
 		if (cleanupTimestamp.isBefore(LocalDateTime.now()) || isBadState()) {
 			return true;
@@ -2,28 +2,37 @@ package dk.digitalidentity.service;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 import dk.digitalidentity.api.dto.PasswordResponse;
 import dk.digitalidentity.api.dto.PasswordResponse.PasswordStatus;
@@ -33,546 +42,225 @@ import dk.digitalidentity.service.model.Request;
 import dk.digitalidentity.service.model.Response;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Sends requests to the AD agents connected on the websocket, and correlates their responses by transactionUuid. Each request
+ * gets a CompletableFuture that is completed directly by handleTextMessage when the response arrives, or completed exceptionally
+ * by a timeout scheduled on the shared TaskScheduler, so no thread is blocked while waiting for the agent. A request that timed
+ * out is retried on the requestRetryExecutor, so a send blocked on a stalled connection never holds up the scheduler.
+ */
 @Slf4j
 @Component
 public class SocketHandler extends TextWebSocketHandler {
+	private static final long IS_ALIVE_TIMEOUT_MS = 3000;
+
+	// readers and writers are immutable and thread-safe, and reusing them saves looking up the (de)serializers for every message
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final ObjectWriter REQUEST_WRITER = MAPPER.writerFor(Request.class);
+	private static final ObjectReader RESPONSE_READER = MAPPER.readerFor(Response.class);
+
 	private static SecureRandom random = new SecureRandom();
-	private List<Session> sessions = new ArrayList<>();
+	private Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+	// the authenticated sessions for each domain, so finding a connection for a request does not scan all sessions
+	private Map<String, List<Session>> sessionsByDomain = new ConcurrentHashMap<>();
 	private Map<String, RequestHolder> requests = new ConcurrentHashMap<>();
-	private Map<String, ResponseHolder> responses = new ConcurrentHashMap<>();
 	private int timeoutCounter = 0; // not thread-safe, but also not critical that it is
 	private Map<String, LocalDateTime> ttsFirstNoConnectionMap = new ConcurrentHashMap<>();
 	
 	@Autowired
 	private OS2faktorConfiguration configuration;
 
-	@Async
-	public AsyncResult<PasswordResponse> validatePassword(String username, String password, String domain, boolean retry) throws InterruptedException {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-		
-		Session session = getSession(domain);
-		if (session == null) {
-			logNoAuthenticatedWebsocket("Failed to get an authenticated WebSocket connection for validatePassword for domain: " + domain, domain);
-			response.setMessage("No authenticated WebSocket connection available");
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		Request request = new Request();
-		request.setCommand(Commands.VALIDATE_PASSWORD);
-		request.setTarget(username);
-		request.setPayload(password);
-
-		try {
-			request.sign(configuration.getWebSocketKey());
-		}
-		catch (Exception ex) {
-			log.error("Failed to sign validatePassword message", ex);
-			response.setMessage("Failed to sign validatePassword message: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-
-		String data = null;
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-
-			data = mapper.writeValueAsString(request);
-		}
-		catch (JsonProcessingException ex) {
-			log.error("Cannot serialize validatePassword request", ex);
-			
-			response.setMessage("Cannot serialize validatePassword request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
+	@Autowired
+	private TaskScheduler taskScheduler;
 
-		long startTts = System.currentTimeMillis();
-		
-		TextMessage message = new TextMessage(data);
-		try {
-			putRequest(request.getTransactionUuid(), new RequestHolder(request));
+	@Qualifier("requestRetryExecutor")
+	@Autowired
+	private ThreadPoolTaskExecutor requestRetryExecutor;
 
-			sendMessage(session, message);
-		}
-		catch (IOException ex) {
-			log.error("Failed to send valiatePassword request", ex);
-			
-			response.setMessage("Failed to send valiatePassword request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		// wait for result for X seconds, default 4 (polling every 100 ms)
-		int tries = 0;
-		ResponseHolder holder = null;
-		do {
-			holder = responses.get(request.getTransactionUuid());
-			
-			if (holder != null) {
-				break;
-			}
-			
-			Thread.sleep(100);
-			
-			tries++;
-		} while(tries <= configuration.getMaxWait());
-		
-		if (holder == null) {
-			if (timeoutCounter >= 4) {
-				log.error("Timeout waiting for response on validatePassword on transactionUuid " + request.getTransactionUuid());
-			}
-			else {
-				log.warn("Timeout waiting for response on validatePassword on transactionUuid " + request.getTransactionUuid());
-			}
-			
-			// flag session as bad, so it will be closed
-			session.setBadState(true);
-			
-			if (!retry) {
-				response.setMessage("Timeout waiting for response");
-				response.setStatus(PasswordStatus.TIMEOUT);
-				timeoutCounter++;
-				return new AsyncResult<PasswordResponse>(response);
-			}
-			else {
-				// try once more, against a new connection
-				return validatePassword(username, password, domain, false);
-			}
-		}
-		
-		timeoutCounter = 0;
+	public CompletableFuture<PasswordResponse> validatePassword(String username, String password, String domain, boolean retry) {
+		return sendRequest(Commands.VALIDATE_PASSWORD, username, password, domain, retry);
+	}
 
-		session.logRequest(Commands.VALIDATE_PASSWORD, System.currentTimeMillis() - startTts);
-		
-		return new AsyncResult<PasswordResponse>(holder.getResponse());
+	public CompletableFuture<PasswordResponse> setPasswordWithForcedChange(String userId, String password, String domain, boolean retry) {
+		return sendRequest(Commands.SET_PASSWORD_WITH_FORCED_CHANGE, userId, password, domain, retry);
 	}
 
-	private void logNoAuthenticatedWebsocket(String message, String domain) {
-		LocalDateTime ttsFirstNoConnection = ttsFirstNoConnectionMap.get(domain);
+	public CompletableFuture<PasswordResponse> setPassword(String userId, String password, String domain, boolean retry) {
+		return sendRequest(Commands.SET_PASSWORD, userId, password, domain, retry);
+	}
 
-		if (ttsFirstNoConnection != null) {
-			// once it has been 15 minutes without a connection, start logging errors
-			if (ttsFirstNoConnection.isBefore(LocalDateTime.now().minusMinutes(15))) {
-				log.error(message);
-			}
-			else {
-				log.warn(message);
-			}
-		}
-		else {
-			ttsFirstNoConnection = LocalDateTime.now();
-			ttsFirstNoConnectionMap.put(domain, ttsFirstNoConnection);
+	public CompletableFuture<PasswordResponse> unlockAccount(String userId, String domain, boolean retry) {
+		return sendRequest(Commands.UNLOCK_ACCOUNT, userId, null, domain, retry);
+	}
 
-			log.warn(message);
-		}
+	public CompletableFuture<PasswordResponse> passwordExpires(String userId, String domain, boolean retry) {
+		return sendRequest(Commands.PASSWORD_EXPIRES_SOON, userId, null, domain, retry);
 	}
 
-	@Async
-	public AsyncResult<PasswordResponse> setPasswordWithForcedChange(String userId, String password, String domain, boolean retry) throws InterruptedException {
+	private CompletableFuture<PasswordResponse> sendRequest(String command, String target, String payload, String domain, boolean retry) {
 		PasswordResponse response = new PasswordResponse();
 		response.setStatus(PasswordStatus.FAILURE);
 
 		Session session = getSession(domain);
 		if (session == null) {
-			logNoAuthenticatedWebsocket("Failed to get an authenticated WebSocket connection for setPasswordWithForcedChange for " + domain, domain);
+			logNoAuthenticatedWebsocket("Failed to get an authenticated WebSocket connection for " + command + " for domain: " + domain, domain);
 			response.setMessage("No authenticated WebSocket connection available");
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		Request request = new Request();
-		request.setCommand(Commands.SET_PASSWORD_WITH_FORCED_CHANGE);
-		request.setTarget(userId);
-		request.setPayload(password);
 
-		try {
-			request.sign(configuration.getWebSocketKey());
-		}
-		catch (Exception ex) {
-			log.error("Failed to sign setPasswordWithForcedChange message", ex);
-			response.setMessage("Failed to sign setPasswordWithForcedChange message: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-
-		String data = null;
-		try {
-			ObjectMapper mapper = new ObjectMapper();
+			if (Commands.VALIDATE_PASSWORD.equals(command)) {
+				response.setStatus(PasswordStatus.TECHNICAL_ERROR);
+			}
 
-			data = mapper.writeValueAsString(request);
-		}
-		catch (JsonProcessingException ex) {
-			response.setMessage("Cannot serialize setPasswordWithForcedChange request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
+			return CompletableFuture.completedFuture(response);
 		}
 
-		long startTts = System.currentTimeMillis();
-
-		TextMessage message = new TextMessage(data);
-		try {
-			putRequest(request.getTransactionUuid(), new RequestHolder(request));
-
-			sendMessage(session, message);
-		}
-		catch (IOException ex) {
-			log.error("Failed to send setPasswordWithForcedChange request", ex);
-						
-			response.setMessage("Failed to send setPasswordWithForcedChange request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		// wait for result for X seconds
-		int tries = 0;
-		ResponseHolder holder = null;
-		do {
-			holder = responses.get(request.getTransactionUuid());
-			
-			if (holder != null) {
-				break;
-			}
-			
-			Thread.sleep(100);
-			
-			tries++;
-		} while(tries <= configuration.getMaxWait());
-	
-		if (holder == null) {
-			if (timeoutCounter >= 4) {
-				log.error("Timeout waiting for response on setPasswordWithForcedChange with transactionUUid " + request.getTransactionUuid());
-			}
-			else {
-				log.warn("Timeout waiting for response on setPasswordWithForcedChange with transactionUUid " + request.getTransactionUuid());
-			}
-			
-			// flag session as bad, so it will be closed
-			session.setBadState(true);
-			
-			if (!retry) {
-				response.setMessage("Timeout waiting for response");
-				response.setStatus(PasswordStatus.TIMEOUT);
-				timeoutCounter++;
-				return new AsyncResult<PasswordResponse>(response);
-			}
-			else {
-				// try once more, against a new connection
-				return setPasswordWithForcedChange(userId, password, domain, false);
-			}
+		// if not running at least version 2.1.0, we will just return OK and do nothing
+		if (Commands.PASSWORD_EXPIRES_SOON.equals(command) && !verifyVersion(session, 2, 1)) {
+			response.setStatus(PasswordStatus.OK);
+			return CompletableFuture.completedFuture(response);
 		}
-		
-		timeoutCounter = 0;
-
-		session.logRequest(Commands.SET_PASSWORD_WITH_FORCED_CHANGE, System.currentTimeMillis() - startTts);
-
-		return new AsyncResult<PasswordResponse>(holder.getResponse());
-	}
-	
-	@Async
-	public AsyncResult<PasswordResponse> setPassword(String userId, String password, String domain, boolean retry) throws InterruptedException {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
 
-		Session session = getSession(domain);
-		if (session == null) {
-			logNoAuthenticatedWebsocket("Failed to get an authenticated WebSocket connection for setPassword for " + domain, domain);
-			response.setMessage("No authenticated WebSocket connection available");
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
 		Request request = new Request();
-		request.setCommand(Commands.SET_PASSWORD);
-		request.setTarget(userId);
-		request.setPayload(password);
+		request.setCommand(command);
+		request.setTarget(target);
+		request.setPayload(payload);
 
 		try {
 			request.sign(configuration.getWebSocketKey());
 		}
 		catch (Exception ex) {
-			log.error("Failed to sign setPassword message", ex);
-			response.setMessage("Failed to sign setPassword message: " + ex.getMessage());
+			log.error("Failed to sign " + command + " message", ex);
+			response.setMessage("Failed to sign " + command + " message: " + ex.getMessage());
 			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
+			return CompletableFuture.completedFuture(response);
 		}
 
-		String data = null;
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-
-			data = mapper.writeValueAsString(request);
-		}
-		catch (JsonProcessingException ex) {
-			response.setMessage("Cannot serialize setPassword request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
 		long startTts = System.currentTimeMillis();
 
-		TextMessage message = new TextMessage(data);
+		CompletableFuture<PasswordResponse> result;
 		try {
-			putRequest(request.getTransactionUuid(), new RequestHolder(request));
+			// wait for result for X seconds, default 4
+			result = send(session, request, configuration.getMaxWait() * 100);
+		}
+		catch (JsonProcessingException ex) {
+			log.error("Cannot serialize " + command + " request", ex);
 
-			sendMessage(session, message);
+			response.setMessage("Cannot serialize " + command + " request: " + ex.getMessage());
+			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
+			return CompletableFuture.completedFuture(response);
 		}
 		catch (IOException ex) {
-			log.error("Failed to send setPassword request", ex);
-						
-			response.setMessage("Failed to send setPassword request: " + ex.getMessage());
+			log.error("Failed to send " + command + " request", ex);
+
+			response.setMessage("Failed to send " + command + " request: " + ex.getMessage());
 			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
+			return CompletableFuture.completedFuture(response);
 		}
-		
-		// wait for result for X seconds
-		int tries = 0;
-		ResponseHolder holder = null;
-		do {
-			holder = responses.get(request.getTransactionUuid());
-			
-			if (holder != null) {
-				break;
-			}
-			
-			Thread.sleep(100);
-			
-			tries++;
-		} while(tries <= configuration.getMaxWait());
-		
-		if (holder == null) {
-			if (timeoutCounter >= 4) {
-				log.error("Timeout waiting for response on setPassword with transactionUUid " + request.getTransactionUuid());
-			}
-			else {
-				log.warn("Timeout waiting for response on setPassword with transactionUUid " + request.getTransactionUuid());
-			}
-			
-			// flag session as bad, so it will be closed
+		catch (SessionLimitExceededException ex) {
+			// the agent is not reading what we send it, and the connection has been closed, so try another connection
+			log.warn("Outbound queue limit exceeded on " + session.getIdentifier() + " when sending " + command + ": " + ex.getMessage());
+
 			session.setBadState(true);
 
-			if (!retry) {
-				response.setMessage("Timeout waiting for response");
-				response.setStatus(PasswordStatus.TIMEOUT);
-				timeoutCounter++;
-				return new AsyncResult<PasswordResponse>(response);
-			}
-			else {
-				// try once more, against a new connection
-				return setPassword(userId, password, domain, false);
+			if (retry) {
+				return sendRequest(command, target, payload, domain, false);
 			}
-		}
-		
-		timeoutCounter = 0;
-
-		session.logRequest(Commands.SET_PASSWORD, System.currentTimeMillis() - startTts);
 
-		return new AsyncResult<PasswordResponse>(holder.getResponse());
-	}
-	
-	@Async
-	public AsyncResult<PasswordResponse> unlockAccount(String userId, String domain, boolean retry) throws InterruptedException {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
-
-		Session session = getSession(domain);
-		if (session == null) {
-			logNoAuthenticatedWebsocket("Failed to get an authenticated WebSocket connection for unlockAccount for " + domain, domain);
-			response.setMessage("No authenticated WebSocket connection available");
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		Request request = new Request();
-		request.setCommand(Commands.UNLOCK_ACCOUNT);
-		request.setTarget(userId);
-
-		try {
-			request.sign(configuration.getWebSocketKey());
-		}
-		catch (Exception ex) {
-			log.error("Failed to sign unlockAccount message", ex);
-			response.setMessage("Failed to sign unlockAccount message: " + ex.getMessage());
+			response.setMessage("Failed to send " + command + " request: " + ex.getMessage());
 			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
+			return CompletableFuture.completedFuture(response);
 		}
 
-		String data = null;
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-
-			data = mapper.writeValueAsString(request);
-		}
-		catch (JsonProcessingException ex) {
-			response.setMessage("Cannot serialize unlockAccount request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-
-		long startTts = System.currentTimeMillis();
+		return result.handle((passwordResponse, ex) -> {
+			if (ex == null) {
+				timeoutCounter = 0;
 
-		TextMessage message = new TextMessage(data);
-		try {
-			putRequest(request.getTransactionUuid(), new RequestHolder(request));
+				session.logRequest(command, System.currentTimeMillis() - startTts);
 
-			sendMessage(session, message);
-		}
-		catch (IOException ex) {
-			log.error("Failed to send unlockAccount request", ex);
-						
-			response.setMessage("Failed to send unlockAccount request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		// wait for result for X seconds
-		int tries = 0;
-		ResponseHolder holder = null;
-		do {
-			holder = responses.get(request.getTransactionUuid());
-			
-			if (holder != null) {
-				break;
+				return CompletableFuture.completedFuture(passwordResponse);
 			}
-			
-			Thread.sleep(100);
-			
-			tries++;
-		} while(tries <= configuration.getMaxWait());
-		
-		if (holder == null) {
+
+			// the future is only completed exceptionally on timeout
 			if (timeoutCounter >= 4) {
-				log.error("Timeout waiting for response on unlockAccount with transactionUUid " + request.getTransactionUuid());
+				log.error("Timeout waiting for response on " + command + " with transactionUuid " + request.getTransactionUuid());
 			}
 			else {
-				log.warn("Timeout waiting for response on unlockAccount with transactionUUid " + request.getTransactionUuid());
+				log.warn("Timeout waiting for response on " + command + " with transactionUuid " + request.getTransactionUuid());
 			}
-			
+
 			// flag session as bad, so it will be closed
 			session.setBadState(true);
-			
+
 			if (!retry) {
 				response.setMessage("Timeout waiting for response");
 				response.setStatus(PasswordStatus.TIMEOUT);
 				timeoutCounter++;
-				return new AsyncResult<PasswordResponse>(response);
+				return CompletableFuture.completedFuture(response);
 			}
-			else {
-				// try once more, against a new connection
-				return unlockAccount(userId, domain, false);
-			}
-		}
-		
-		timeoutCounter = 0;
-
-		session.logRequest(Commands.UNLOCK_ACCOUNT, System.currentTimeMillis() - startTts);
 
-		return new AsyncResult<PasswordResponse>(holder.getResponse());
+			// try once more, against a new connection - this runs on the scheduler thread that fired the timeout, so send from another thread
+			return CompletableFuture.completedFuture(request).thenComposeAsync(r -> sendRequest(command, target, payload, domain, false), requestRetryExecutor);
+		}).thenCompose(Function.identity());
 	}
 
-	@Async
-	public AsyncResult<PasswordResponse> passwordExpires(String userId, String domain, boolean retry) throws InterruptedException {
-		PasswordResponse response = new PasswordResponse();
-		response.setStatus(PasswordStatus.FAILURE);
+	/**
+	 * Sends the request and returns a future that is completed with the response, or completed exceptionally with a TimeoutException
+	 * if no response has arrived within timeoutMs. Either way the request is removed from the map of outstanding requests.
+	 */
+	private CompletableFuture<PasswordResponse> send(Session session, Request request, long timeoutMs) throws IOException {
+		TextMessage message = new TextMessage(REQUEST_WRITER.writeValueAsString(request));
 
-		Session session = getSession(domain);
-		if (session == null) {
-			logNoAuthenticatedWebsocket("Failed to get an authenticated WebSocket connection for passwordExpires for " + domain, domain);
-			response.setMessage("No authenticated WebSocket connection available");
-			return new AsyncResult<PasswordResponse>(response);
-		}
+		String transactionUuid = request.getTransactionUuid();
+		RequestHolder holder = new RequestHolder(request);
+		CompletableFuture<PasswordResponse> future = holder.getFuture();
 
-		// if not running at least version 2.1.0, we will just return OK and do nothing
-		if (!verifyVersion(session, 2, 1)) {
-			response.setStatus(PasswordStatus.OK);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-		
-		Request request = new Request();
-		request.setCommand(Commands.PASSWORD_EXPIRES_SOON);
-		request.setTarget(userId);
-
-		try {
-			request.sign(configuration.getWebSocketKey());
-		}
-		catch (Exception ex) {
-			log.error("Failed to sign passwordExpires message", ex);
-			response.setMessage("Failed to sign passwordExpires message: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
-
-		String data = null;
-		try {
-			ObjectMapper mapper = new ObjectMapper();
+		putRequest(transactionUuid, holder);
+		session.getOutstandingRequests().incrementAndGet();
 
-			data = mapper.writeValueAsString(request);
-		}
-		catch (JsonProcessingException ex) {
-			response.setMessage("Cannot serialize passwordExpires request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
-		}
+		ScheduledFuture<?> timeout = taskScheduler.schedule(() -> {
+			if (requests.remove(transactionUuid, holder)) {
+				future.completeExceptionally(new TimeoutException("Timeout waiting for response on " + transactionUuid));
+			}
+		}, Instant.now().plusMillis(timeoutMs));
 
-		long startTts = System.currentTimeMillis();
+		future.whenComplete((response, ex) -> {
+			timeout.cancel(false);
+			session.getOutstandingRequests().decrementAndGet();
+		});
 
-		TextMessage message = new TextMessage(data);
 		try {
-			putRequest(request.getTransactionUuid(), new RequestHolder(request));
-
 			sendMessage(session, message);
 		}
-		catch (IOException ex) {
-			log.error("Failed to send passwordExpires request", ex);
+		catch (IOException | RuntimeException ex) {
+			requests.remove(transactionUuid);
+			timeout.cancel(false);
+			session.getOutstandingRequests().decrementAndGet();
 
-			response.setMessage("Failed to send passwordExpires request: " + ex.getMessage());
-			response.setStatus(PasswordStatus.TECHNICAL_ERROR);
-			return new AsyncResult<PasswordResponse>(response);
+			throw ex;
 		}
 
-		// wait for result for X seconds
-		int tries = 0;
-		ResponseHolder holder = null;
-		do {
-			holder = responses.get(request.getTransactionUuid());
-
-			if (holder != null) {
-				break;
-			}
-
-			Thread.sleep(100);
-
-			tries++;
-		} while(tries <= configuration.getMaxWait());
-
-		if (holder == null) {
-			if (timeoutCounter >= 4) {
-				log.error("Timeout waiting for response on passwordExpires with transactionUUid " + request.getTransactionUuid());
-			}
-			else {
-				log.warn("Timeout waiting for response on passwordExpires with transactionUUid " + request.getTransactionUuid());
-			}
+		return future;
+	}
 
-			// flag session as bad, so it will be closed
-			session.setBadState(true);
+	private void logNoAuthenticatedWebsocket(String message, String domain) {
+		LocalDateTime ttsFirstNoConnection = ttsFirstNoConnectionMap.get(domain);
 
-			if (!retry) {
-				response.setMessage("Timeout waiting for response");
-				response.setStatus(PasswordStatus.TIMEOUT);
-				timeoutCounter++;
-				return new AsyncResult<PasswordResponse>(response);
+		if (ttsFirstNoConnection != null) {
+			// once it has been 15 minutes without a connection, start logging errors
+			if (ttsFirstNoConnection.isBefore(LocalDateTime.now().minusMinutes(15))) {
+				log.error(message);
 			}
 			else {
-				// try once more, against a new connection
-				return passwordExpires(userId, domain, false);
+				log.warn(message);
 			}
 		}
+		else {
+			ttsFirstNoConnection = LocalDateTime.now();
+			ttsFirstNoConnectionMap.put(domain, ttsFirstNoConnection);
 
-		timeoutCounter = 0;
-
-		session.logRequest(Commands.PASSWORD_EXPIRES_SOON, System.currentTimeMillis() - startTts);
-
-		return new AsyncResult<PasswordResponse>(holder.getResponse());
+			log.warn(message);
+		}
 	}
-	
+
 	private void sendAuthenticateRequest(Session session) {
 		Request request = new Request();
 		request.setCommand(Commands.AUTHENTICATE);
@@ -587,9 +275,7 @@ public class SocketHandler extends TextWebSocketHandler {
 
 		String data = null;
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-
-			data = mapper.writeValueAsString(request);
+			data = REQUEST_WRITER.writeValueAsString(request);
 		}
 		catch (JsonProcessingException ex) {
 			log.error("Cannot serialize authenticate request", ex);
@@ -602,7 +288,7 @@ public class SocketHandler extends TextWebSocketHandler {
 
 			sendMessage(session, message);
 		}
-		catch (IOException ex) {
+		catch (IOException | SessionLimitExceededException ex) {
 			log.error("Failed to send Authenticate request", ex);
 		}
 	}
@@ -610,39 +296,36 @@ public class SocketHandler extends TextWebSocketHandler {
 	// Handle the response from the client
 	@Override
 	public void handleTextMessage(WebSocketSession webSocketSession, TextMessage textMessage) throws InterruptedException, IOException {
-		ObjectMapper mapper = new ObjectMapper();
-		Response message = mapper.readValue(textMessage.getPayload(), Response.class);
+		Response message = RESPONSE_READER.readValue(textMessage.getPayload());
 
-		RequestHolder holder = requests.get(message.getTransactionUuid());
+		// dealt with, so remove from queue (removing it also means a timeout can no longer fire for it)
+		RequestHolder holder = requests.remove(message.getTransactionUuid());
 		if (holder == null) {
 			log.error("Got response for unknown request: " + message);
 			return;
 		}
 
-		// dealt with, so remove from queue
-		requests.remove(message.getTransactionUuid());
-		
 		Request inResponseTo = holder.getRequest();
 		if (!inResponseTo.validateEcho(message)) {
 			log.error("Response does not echo correctly! request=" + inResponseTo + ", response=" + message);
-			invalidateRequest(message.getTransactionUuid(), "Response did not correctly echo request");
+			invalidateRequest(holder, "Response did not correctly echo request");
 			return;
 		}
 
 		if (!message.verify(configuration.getWebSocketKey())) {
 			log.error("Got invalid hmac on Authenticate response: " + message);
-			invalidateRequest(message.getTransactionUuid(), "Got invalid hmac on response");
+			invalidateRequest(holder, "Got invalid hmac on response");
 			return;
 		}
 
 		switch (message.getCommand()) {
 			case Commands.IS_ALIVE:
-				handleIsAliveResponse(message);
+				holder.getFuture().complete(null);
 				break;
 			case Commands.AUTHENTICATE:
-				Optional<Session> clientSession = sessions.stream().filter(cs -> cs.getSession().equals(webSocketSession)).findAny();
-				if (clientSession.isPresent()) {
-					handleAuthenticateResponse(clientSession.get(), message, holder.getRequest());
+				Session clientSession = sessions.get(webSocketSession.getId());
+				if (clientSession != null) {
+					handleAuthenticateResponse(clientSession, message, holder.getRequest());
 				}
 				else {
 					log.error("We got a message from an unknown websocket client: " + message);
@@ -651,13 +334,13 @@ public class SocketHandler extends TextWebSocketHandler {
 			case Commands.VALIDATE_PASSWORD:
 			case Commands.SET_PASSWORD:
 			case Commands.SET_PASSWORD_WITH_FORCED_CHANGE:
-				handlePasswordResponse(message);
+				handlePasswordResponse(holder, message);
 				break;
 			case Commands.UNLOCK_ACCOUNT:
-				handleUnlockResponse(message);
+				handleUnlockResponse(holder, message);
 				break;
 			case Commands.PASSWORD_EXPIRES_SOON:
-				handlePasswordExpiresResponse(message);
+				handlePasswordExpiresResponse(holder, message);
 				break;
 			default:
 				log.error("Unknown command for message: " + message);
@@ -665,41 +348,29 @@ public class SocketHandler extends TextWebSocketHandler {
 		}
 	}
 
-	private void invalidateRequest(String transactionUuid, String message) {
+	private void invalidateRequest(RequestHolder holder, String message) {
 		PasswordResponse response = new PasswordResponse();
 		response.setStatus(PasswordStatus.TECHNICAL_ERROR);
 		response.setMessage(message);
 
-		ResponseHolder holder = new ResponseHolder(response);
-
-		responses.put(transactionUuid, holder);
+		holder.getFuture().complete(response);
 	}
 
-	private void handleIsAliveResponse(Response message) {		
-		responses.put(message.getTransactionUuid(), new ResponseHolder(null));
-	}
-
-	private void handleUnlockResponse(Response message) {
+	private void handleUnlockResponse(RequestHolder holder, Response message) {
 		PasswordResponse response = new PasswordResponse();
 		response.setStatus(("true".equals(message.getStatus())) ? PasswordStatus.OK : PasswordStatus.FAILURE);
 		response.setMessage(message.getMessage());
 
-		ResponseHolder holder = new ResponseHolder(response);
-		
-		responses.put(message.getTransactionUuid(), holder);
-
 		log.info("Unlock account for " + message.getTarget() + ": " + message.getStatus() + " / " + message.getServerName() + " / " + message.getMessage());
+
+		holder.getFuture().complete(response);
 	}
 	
-	private void handlePasswordResponse(Response message) {
+	private void handlePasswordResponse(RequestHolder holder, Response message) {
 		PasswordResponse response = new PasswordResponse();
 		response.setStatus(("true".equals(message.getStatus())) ? PasswordStatus.OK : PasswordStatus.FAILURE);
 		response.setMessage(message.getMessage());
 
-		ResponseHolder holder = new ResponseHolder(response);
-		
-		responses.put(message.getTransactionUuid(), holder);
-
 		switch (message.getCommand()) {
 			case "VALIDATE_PASSWORD":
 				log.info("Validate password for " + message.getTarget() + ": " + message.getStatus() + " / " + message.getServerName() + " / " + message.getMessage());
@@ -712,22 +383,24 @@ public class SocketHandler extends TextWebSocketHandler {
 				// ignore
 				break;
 		}
+
+		holder.getFuture().complete(response);
 	}
 
-	private void handlePasswordExpiresResponse(Response message) {
+	private void handlePasswordExpiresResponse(RequestHolder holder, Response message) {
 		PasswordResponse response = new PasswordResponse();
 		response.setStatus(("true".equals(message.getStatus())) ? PasswordStatus.OK : PasswordStatus.FAILURE);
 		response.setMessage(message.getMessage());
 
-		ResponseHolder holder = new ResponseHolder(response);
-
-		responses.put(message.getTransactionUuid(), holder);
-
 		log.info("PasswordExpires for " + message.getTarget() + ": " + message.getStatus() + " / " + message.getServerName() + " / " + message.getMessage());
+
+		holder.getFuture().complete(response);
 	}
 	
 	// synchronize all sends to avoid [TEXT_PARTIAL_WRITING]
-	private synchronized void sendMessage(Session session, TextMessage message) throws IOException {
+	// the session is a ConcurrentWebSocketSessionDecorator, so this only blocks while writing to this particular agent, and
+	// if another thread is already writing to it, the message is queued for that thread to send
+	private void sendMessage(Session session, TextMessage message) throws IOException {
 		session.getSession().sendMessage(message);
 	}
 	
@@ -744,6 +417,10 @@ public class SocketHandler extends TextWebSocketHandler {
 			session.setDomain(message.getTarget());
 			session.setVersion(message.getClientVersion());
 
+			if (session.getDomain() != null) {
+				sessionsByDomain.computeIfAbsent(session.getDomain(), d -> new CopyOnWriteArrayList<>()).add(session);
+			}
+
 			log.info("Authenticated connection from client (version=" + message.getClientVersion() + ", server=" + message.getServerName() + ") for domain " + message.getTarget() + " - sessionID = " + session.getId() + ", activeSession=" + activeConnections(session.getDomain()));
 		}
 		else {
@@ -753,11 +430,11 @@ public class SocketHandler extends TextWebSocketHandler {
 
 	@Override
 	public void afterConnectionEstablished(WebSocketSession webSocketSession) throws Exception {
-		Session session = new Session(webSocketSession);
+		// gives each agent its own outbound queue, so a slow or stalled agent does not hold up messages to the other agents,
+		// and is closed if it does not keep up with the messages sent to it
+		Session session = new Session(new ConcurrentWebSocketSessionDecorator(webSocketSession, configuration.getSendTimeLimit(), configuration.getSendBufferSizeLimit()));
 
-		synchronized (sessions) {
-			sessions.add(session);			
-		}
+		sessions.put(webSocketSession.getId(), session);
 		
 		log.info("Connection established - sending AuthRequest - sessionID=" + session.getIdentifier());
 
@@ -768,17 +445,21 @@ public class SocketHandler extends TextWebSocketHandler {
 	public void afterConnectionClosed(WebSocketSession webSocketSession, CloseStatus status) throws Exception {
 		
 		// log what we are closing
-		Session closingSession = sessions.stream().filter(s -> s.getSession().equals(webSocketSession)).findFirst().orElse(null);
+		Session closingSession = sessions.remove(webSocketSession.getId());
 		if (closingSession != null) {
 			log.info("Closing " + closingSession.toString());
-		}
-		
-		synchronized (sessions) {
-			sessions.removeIf(s -> s.getSession().equals(webSocketSession));
+
+			if (closingSession.getDomain() != null) {
+				sessionsByDomain.computeIfPresent(closingSession.getDomain(), (d, domainSessions) -> {
+					domainSessions.remove(closingSession);
+
+					return domainSessions.isEmpty() ? null : domainSessions;
+				});
+			}
 		}
 		
 		Map<String, Long> sessionCount = new HashMap<>();
-		for (Session session : sessions) {
+		for (Session session : sessions.values()) {
 			Long count = sessionCount.get(session.getDomain());
 			if (count == null) {
 				count = 0L;
@@ -790,12 +471,37 @@ public class SocketHandler extends TextWebSocketHandler {
 		log.info("After closing connection: " + sessionCount.toString());
 	}
 	
+	/**
+	 * Picks the healthy connection for the domain with the lowest expected wait, estimated as the number of requests it is already
+	 * processing (plus this one) times its average response time. Connections that are equally good are picked at random.
+	 */
 	private Session getSession(String domain) {
-		List<Session> matchingSessions = sessions.stream()
-				.filter(s -> s.isAuthenticated() && !s.isStale() && Objects.equals(s.getDomain(), domain))
-				.collect(Collectors.toList());
+		List<Session> domainSessions = (domain != null) ? sessionsByDomain.get(domain) : null;
+		if (domainSessions == null) {
+			return null;
+		}
+
+		Session best = null;
+		double bestLoad = 0;
+		int ties = 0;
+
+		for (Session session : domainSessions) {
+			if (!session.isAuthenticated() || session.isStale()) {
+				continue;
+			}
+
+			double load = session.getLoad();
+			if (best == null || load < bestLoad) {
+				best = session;
+				bestLoad = load;
+				ties = 1;
+			}
+			else if (load == bestLoad && random.nextInt(++ties) == 0) {
+				best = session;
+			}
+		}
 
-		if (matchingSessions.size() == 0) {
+		if (best == null) {
 			return null;
 		}
 		
@@ -807,35 +513,27 @@ public class SocketHandler extends TextWebSocketHandler {
 			;
 		}
 		
-		return matchingSessions.get(random.nextInt(matchingSessions.size()));
+		return best;
 	}
 
 	public List<Session> getSessions() {
-		return sessions;
+		return new ArrayList<>(sessions.values());
 	}
 	
+	// requests are removed when they are answered or time out, this only removes requests nobody waits for (e.g. AUTHENTICATE) that never got a response
 	public void cleanupRequestResponse() {
 		for (String key : requests.keySet()) {
 			RequestHolder holder = requests.get(key);
 
-			if (holder.getTts().isBefore(LocalDateTime.now())) {
+			if (holder != null && holder.getTts().isBefore(LocalDateTime.now())) {
 				log.info("Removing request which we never got a response for with uuid " + holder.getRequest().getTransactionUuid());
 				requests.remove(key);
 			}
 		}
-		
-		for (String key : responses.keySet()) {
-			ResponseHolder holder = responses.get(key);
-
-			if (holder.getTts().isBefore(LocalDateTime.now())) {
-				responses.remove(key);
-			}
-		}
 	}
 	
 	public void sendIsAlive() {
-		// make a copy to avoid ConcurrentModificationException
-		List<Session> tmp = new ArrayList<>(sessions);
+		List<Session> tmp = new ArrayList<>(sessions.values());
 		
 		for (Session session : tmp) {
 			if (!session.supportsIsAliveCheck()) {
@@ -853,22 +551,19 @@ public class SocketHandler extends TextWebSocketHandler {
 				continue;
 			}
 
-			String data = null;
+			CompletableFuture<PasswordResponse> result;
 			try {
-				ObjectMapper mapper = new ObjectMapper();
-
-				data = mapper.writeValueAsString(request);
+				result = send(session, request, IS_ALIVE_TIMEOUT_MS);
 			}
 			catch (JsonProcessingException ex) {
 				log.error("JsonProcessing issue on isAlive message", ex);
 				continue;
 			}
+			catch (SessionLimitExceededException ex) {
+				// the decorator has already closed the connection
+				log.warn("Outbound queue limit exceeded on attempting to send IsAlive to " + session.getIdentifier() + ", message: " + ex.getMessage());
 
-			TextMessage message = new TextMessage(data);
-			try {
-				putRequest(request.getTransactionUuid(), new RequestHolder(request));
-
-				sendMessage(session, message);
+				continue;
 			}
 			catch (IllegalStateException ex) {
 				try {
@@ -894,44 +589,25 @@ public class SocketHandler extends TextWebSocketHandler {
 
 				continue;
 			}
-			
-			// wait for result for 3 seconds
-			int tries = 0;
-			ResponseHolder holder = null;
-			do {
-				holder = responses.get(request.getTransactionUuid());
-				
-				if (holder != null) {
-					break;
-				}
-				
-				try {
-					Thread.sleep(100);
-				}
-				catch (Exception ignored) {
-					;
-				}
-				
-				tries++;
-			} while(tries <= 30);
 
-			if (holder == null) {
+			// no response within 3 seconds, so close the connection - the other sessions are checked in the meantime
+			result.exceptionally(ex -> {
 				try {
 					log.info("Closing connection on websocket client due to timeout. " + session.toString());
 
 					session.getSession().close();
 				}
-				catch (Exception ex) {
-					log.warn("Failed to close connection - sessionID = " + session.getIdentifier(), ex);
+				catch (Exception ex2) {
+					log.warn("Failed to close connection - sessionID = " + session.getIdentifier(), ex2);
 				}
 
-				continue;
-			}
+				return null;
+			});
 		}
 	}
 
 	public void closeStaleSessions() {
-		for (Session session : sessions) {
+		for (Session session : sessions.values()) {
 			if (session.isStale()) {
 				try {
 					log.info("Closing stale connection on websocket client. " + session.toString());
@@ -950,7 +626,7 @@ public class SocketHandler extends TextWebSocketHandler {
 	
 	private int activeConnections(String domain) {
 		if (domain != null) {
-			return (int) sessions.stream().filter(s -> Objects.equals(domain, s.getDomain())).count();
+			return (int) sessions.values().stream().filter(s -> Objects.equals(domain, s.getDomain())).count();
 		}
 		
 		return sessions.size();
@@ -990,4 +666,4 @@ public class SocketHandler extends TextWebSocketHandler {
 		return false;
 	}
 
-}
\ No newline at end of file
+}